@@ -0,0 +1,119 @@
+import java.nio.CharBuffer;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class BatchEvaluator {
+    /*
+    The BatchEvaluator evaluates many independent scripts in parallel. A script is the text a user would have typed
+    into a new calculator, lines end at "\n", "\r" or "\r\n", and its result is the same as running it through a new
+    SRPN: everything it printed and the stack it left.
+
+    The scripts are split into ranges on a ForkJoinPool, one task per range, so idle workers steal the ranges of
+    busy ones when some scripts take longer than others. A range does not create a calculator per script, it takes
+    an idle Worker of the evaluator, or makes one if there is none, runs its scripts one after another on the
+    Worker's calculator, resetting it between them, and gives the Worker back, the same way as a CalculatorPool. That
+    also keeps the LineCaches warm, scripts that share lines share their compiled Programs. The Workers belong to the
+    evaluator, nothing is left behind on the threads of the pool.
+
+    The results are in the same order as the scripts. Scripts share no state, so the results do not depend on which
+    worker ran which script.
+    */
+
+//  Each worker gets about this many ranges, enough for work stealing to even out scripts of different lengths.
+    private static final int RANGES_PER_WORKER = 8;
+
+    private final ForkJoinPool pool;
+    private final ArrayBlockingQueue<Worker> idle;
+
+    public BatchEvaluator() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public BatchEvaluator(ForkJoinPool pool) {
+        this.pool = pool;
+//      Only as many Workers are busy at once as the pool has threads, a few more are kept for when it compensates.
+        this.idle = new ArrayBlockingQueue<>(2 * pool.getParallelism());
+    }
+
+    public List<ScriptResult> evaluate(Stream<? extends CharSequence> scripts) {
+        return evaluate(scripts.collect(Collectors.toList()));
+    }
+
+    public List<ScriptResult> evaluate(List<? extends CharSequence> scripts) {
+        ScriptResult[] results = new ScriptResult[scripts.size()];
+        int threshold = Math.max(1, scripts.size() / (this.pool.getParallelism() * RANGES_PER_WORKER));
+
+        this.pool.invoke(new Range(scripts, results, 0, scripts.size(), threshold));
+        return List.of(results);
+    }
+
+    int idleWorkers() {
+        return this.idle.size();
+    }
+
+    private final class Range extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<? extends CharSequence> scripts;
+        private final ScriptResult[] results;
+        private final int start;
+        private final int end;
+        private final int threshold;
+
+        Range(List<? extends CharSequence> scripts, ScriptResult[] results, int start, int end, int threshold) {
+            this.scripts = scripts;
+            this.results = results;
+            this.start = start;
+            this.end = end;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.end - this.start <= this.threshold) {
+                Worker worker = BatchEvaluator.this.idle.poll();
+                if (worker == null) worker = new Worker();
+                try {
+                    for (int i = this.start; i < this.end; ++i) this.results[i] = worker.evaluate(this.scripts.get(i));
+                } finally {
+                    BatchEvaluator.this.idle.offer(worker);
+                }
+                return;
+            }
+
+            int middle = (this.start + this.end) >>> 1;
+            invokeAll(new Range(this.scripts, this.results, this.start, middle, this.threshold),
+                    new Range(this.scripts, this.results, middle, this.end, this.threshold));
+        }
+    }
+
+    private static final class Worker {
+//      A calculator lent to one range at a time and the sink that collects the output of the script it is running.
+        private final MemoryOutputSink output = new MemoryOutputSink();
+        private final SRPN calculator = new SRPN(this.output);
+
+        ScriptResult evaluate(CharSequence script) {
+            this.calculator.reset();
+            this.output.clear();
+
+            int start = 0;
+            int length = script.length();
+            for (int i = 0; i < length; ++i) {
+                char c = script.charAt(i);
+                if (c != '\n' && c != '\r') continue;
+
+                this.calculator.processCommand(CharBuffer.wrap(script, start, i));
+                if (c == '\r' && i + 1 < length && script.charAt(i + 1) == '\n') ++i;
+                start = i + 1;
+            }
+//          The last line does not need a line break.
+            if (start < length) this.calculator.processCommand(CharBuffer.wrap(script, start, length));
+
+            return new ScriptResult(List.copyOf(this.output.lines()), this.calculator.numbers.toArray());
+        }
+    }
+}
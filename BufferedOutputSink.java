@@ -0,0 +1,149 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+
+public class BufferedOutputSink implements OutputSink {
+    /*
+    The BufferedOutputSink writes the calculator's output to an OutputStream in the same format System.out.println
+    produced, one value or message per line. Values are formatted straight into a reusable byte buffer, so printing a
+    number does not create a String, and the buffer is only written to the stream when it is flushed or full.
+
+    When flushEachLine is true the buffer is flushed at the end of every line of input, which is what an interactive
+    user needs. Otherwise it is up to the owner to call flush(), for example at the end of a batch or at EOF.
+    */
+
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes();
+    private static final byte[][] DIAGNOSTICS = new byte[Diagnostic.values().length][];
+    private static final byte[] UNRECOGNISED = "Unrecognised operator or operand \"".getBytes();
+
+    static {
+        for (Diagnostic diagnostic: Diagnostic.values()) {
+            DIAGNOSTICS[diagnostic.ordinal()] = diagnostic.message().getBytes();
+        }
+    }
+
+    private final OutputStream out;
+    private final boolean flushEachLine;
+    private final byte[] buffer;
+    private int count;
+
+    public BufferedOutputSink(OutputStream out) {
+        this(out, false);
+    }
+
+    public BufferedOutputSink(OutputStream out, boolean flushEachLine) {
+        this(out, flushEachLine, DEFAULT_BUFFER_SIZE);
+    }
+
+    public BufferedOutputSink(OutputStream out, boolean flushEachLine, int bufferSize) {
+//      The buffer must at least hold the longest value, "-2147483648" and a line separator.
+        if (bufferSize < 16) throw new IllegalArgumentException("Buffer size too small: " + bufferSize);
+
+        this.out = out;
+        this.flushEachLine = flushEachLine;
+        this.buffer = new byte[bufferSize];
+        this.count = 0;
+    }
+
+    @Override
+    public void value(int value) {
+        ensureCapacity(11 + LINE_SEPARATOR.length);
+
+//      Write the digits from the right, using a long so that Integer.MIN_VALUE can be negated.
+        long number = value;
+        if (number < 0) {
+            this.buffer[this.count++] = '-';
+            number = -number;
+        }
+
+        int digits = 1;
+        for (long n = number; n >= 10; n /= 10) ++digits;
+
+        int position = this.count + digits;
+        this.count = position;
+        do {
+            this.buffer[--position] = (byte) ('0' + number % 10);
+            number /= 10;
+        } while (number != 0);
+
+        writeLineSeparator();
+    }
+
+    @Override
+    public void diagnostic(Diagnostic diagnostic) {
+        write(DIAGNOSTICS[diagnostic.ordinal()]);
+        writeLineSeparator();
+    }
+
+    @Override
+    public void unrecognised(CharSequence operand) {
+        write(UNRECOGNISED);
+//      ASCII characters go straight into the buffer, only the rest of an operand from another character on is encoded.
+        for (int i = 0; i < operand.length(); ++i) {
+            char c = operand.charAt(i);
+            if (c >= 0x80) {
+                write(operand.subSequence(i, operand.length()).toString().getBytes(Charset.defaultCharset()));
+                break;
+            }
+            ensureCapacity(1);
+            this.buffer[this.count++] = (byte) c;
+        }
+        ensureCapacity(1);
+        this.buffer[this.count++] = '"';
+        writeLineSeparator();
+    }
+
+    @Override
+    public void endOfLine() {
+        if (this.flushEachLine) flush();
+    }
+
+    @Override
+    public void flush() {
+        try {
+            drain();
+            this.out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void write(byte[] bytes) {
+        if (bytes.length > this.buffer.length) {
+            try {
+                drain();
+                this.out.write(bytes);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return;
+        }
+
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, this.buffer, this.count, bytes.length);
+        this.count += bytes.length;
+    }
+
+    private void writeLineSeparator() {
+        ensureCapacity(LINE_SEPARATOR.length);
+        for (byte b: LINE_SEPARATOR) this.buffer[this.count++] = b;
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (this.count + bytes <= this.buffer.length) return;
+
+        try {
+            drain();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void drain() throws IOException {
+        if (this.count == 0) return;
+        this.out.write(this.buffer, 0, this.count);
+        this.count = 0;
+    }
+}
@@ -0,0 +1,51 @@
+import java.nio.ByteBuffer;
+
+public class ByteCharSequence implements CharSequence {
+    /*
+    A ByteCharSequence is a view of a range of ASCII bytes in a ByteBuffer as a CharSequence. It lets lines be read
+    straight out of a memory mapped file or a network buffer and passed to SRPN.processCommand without decoding them
+    into a String first. The same object can be pointed at a new range with set(), so one can be reused for every
+    line.
+
+    Each byte is one char, it is up to the caller to only use this for ASCII input.
+    */
+
+    private ByteBuffer buffer;
+    private int start;
+    private int length;
+
+    public ByteCharSequence() {
+        this.buffer = ByteBuffer.allocate(0);
+    }
+
+    public ByteCharSequence set(ByteBuffer buffer, int start, int end) {
+        this.buffer = buffer;
+        this.start = start;
+        this.length = end - start;
+        return this;
+    }
+
+    @Override
+    public int length() {
+        return this.length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= this.length) throw new IndexOutOfBoundsException("Index: " + index);
+        return (char) (this.buffer.get(this.start + index) & 0xFF);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > this.length || start > end) throw new IndexOutOfBoundsException();
+        return new ByteCharSequence().set(this.buffer, this.start + start, this.start + end);
+    }
+
+    @Override
+    public String toString() {
+        char[] chars = new char[this.length];
+        for (int i = 0; i < this.length; ++i) chars[i] = (char) (this.buffer.get(this.start + i) & 0xFF);
+        return new String(chars);
+    }
+}
@@ -0,0 +1,767 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+final class BytecodeCompiler {
+    /*
+    The BytecodeCompiler turns a Program into a class of its own, so a line that is run very often no longer goes
+    through the interpreter loop in SRPN.execute(). The class is defined with Lookup.defineHiddenClass, so it can be
+    unloaded again once the line is no longer cached, and has one method that runs the line's instructions in order.
+
+    Most of a line is runs of arithmetic, whole numbers, "r" and operators. Each run is compiled to arithmetic on
+    local variables, one for each stack element the run reads or writes, which the JIT keeps in registers:
+
+        "3 + 4 *" -> s0 = ints[size - 1]; s1 = 3; s0 = saturate((long) s0 + s1); s1 = 4;
+                     s0 = IntArithmetic.apply(MULTIPLY, s0, s1); ints[size - 1] = s0
+
+    How deep the run takes the stack does not depend on the values, so whether it can underflow or overflow from the
+    depth the stack is at is checked once on the way in, along with the elements it reads being whole numbers. Where
+    that fails, the run is left to the calculator, see SRPN.resume(). Inside the run only an operator other than "+"
+    or "-" can go wrong, a result that is not a whole number or a division by zero. The elements are then written
+    back and the calculator carries on from that operator, which it does exactly as the interpreter would. Anything
+    else, "d", "=" and unrecognised characters, is a call to SRPN.perform() between the runs. The operators of a run
+    are counted for the metrics when it is done, they are counted whether they succeed or not.
+
+    HotSpot does not JIT compile a method with more than 8000 bytes of bytecode, so a Program whose method would be
+    larger than that is left to the interpreter, the method would only be interpreted as well, more slowly.
+    */
+
+    static final int DEFAULT_THRESHOLD = 1000;
+//  HotSpot's HugeMethodLimit.
+    static final int MAX_METHOD_BYTES = 8000;
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+//  Class file constants
+    private static final int MAGIC = 0xCAFEBABE;
+    private static final int JAVA_17 = 61;
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+    private static final int FULL_FRAME = 255;
+    private static final int ITEM_INTEGER = 1;
+    private static final int ITEM_OBJECT = 7;
+
+//  Opcodes
+    private static final int ICONST_0 = 0x03;
+    private static final int DCONST_0 = 0x0e;
+    private static final int DCONST_1 = 0x0f;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int LDC2_W = 0x14;
+    private static final int ILOAD = 0x15;
+    private static final int LLOAD = 0x16;
+    private static final int ALOAD = 0x19;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int ALOAD_2 = 0x2c;
+    private static final int ALOAD_3 = 0x2d;
+    private static final int IALOAD = 0x2e;
+    private static final int LALOAD = 0x2f;
+    private static final int ISTORE = 0x36;
+    private static final int LSTORE = 0x37;
+    private static final int ASTORE = 0x3a;
+    private static final int ASTORE_3 = 0x4e;
+    private static final int IASTORE = 0x4f;
+    private static final int LASTORE = 0x50;
+    private static final int DUP = 0x59;
+    private static final int DUP2 = 0x5c;
+    private static final int IADD = 0x60;
+    private static final int LADD = 0x61;
+    private static final int ISUB = 0x64;
+    private static final int LSUB = 0x65;
+    private static final int ISHL = 0x78;
+    private static final int ISHR = 0x7a;
+    private static final int IAND = 0x7e;
+    private static final int IXOR = 0x82;
+    private static final int I2L = 0x85;
+    private static final int L2I = 0x88;
+    private static final int LCMP = 0x94;
+    private static final int IFEQ = 0x99;
+    private static final int IFNE = 0x9a;
+    private static final int IF_ICMPLT = 0xa1;
+    private static final int IF_ICMPGE = 0xa2;
+    private static final int IF_ICMPGT = 0xa3;
+    private static final int GOTO = 0xa7;
+    private static final int RETURN = 0xb1;
+    private static final int GETFIELD = 0xb4;
+    private static final int PUTFIELD = 0xb5;
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+
+//  Locals of run(): this, the calculator and the Program, then the ones below, the stack elements of a run and a long.
+    private static final int STACK = 3;
+    private static final int INTS = 4;
+    private static final int SIZE = 5;
+    private static final int PC = 6;
+    private static final int FIRST_ELEMENT = 7;
+    private static final int RESULT = FIRST_ELEMENT + OperandStack.CAPACITY;
+    private static final int MAX_LOCALS = RESULT + 2;
+    private static final int MAX_STACK = 8;
+
+    private BytecodeCompiler() {}
+
+    static CompiledProgram compile(Program program) {
+//      Returns null for a Program that is not worth compiling or too long to compile, or that runs words.
+        if (program.size() == 0 || program.usesWords()) return null;
+
+        byte[] bytes = generate(program);
+        if (bytes == null) return null;
+        try {
+            MethodHandles.Lookup hidden = LOOKUP.defineHiddenClass(bytes, true);
+            return (CompiledProgram) hidden.findConstructor(hidden.lookupClass(), MethodType.methodType(void.class))
+                    .invoke();
+        } catch (Throwable e) {
+            throw new IllegalStateException("Could not compile " + program, e);
+        }
+    }
+
+    static byte[] generate(Program program) {
+//      The class file for a Program, or null if its method would be more than MAX_METHOD_BYTES.
+        ConstantPool pool = new ConstantPool();
+        int thisClass = pool.classInfo("SRPNLine");
+        int object = pool.classInfo("java/lang/Object");
+        int compiledProgram = pool.classInfo("CompiledProgram");
+        int objectInit = pool.methodref(object, "<init>", "()V");
+        Refs refs = new Refs(pool);
+        int init = pool.utf8("<init>");
+        int initType = pool.utf8("()V");
+        int run = pool.utf8("run");
+        int runType = pool.utf8("(LSRPN;LProgram;)V");
+        int codeAttribute = pool.utf8("Code");
+        int stackMapTable = pool.utf8("StackMapTable");
+
+        Code code = new Code();
+        code.write(ALOAD_1);
+        code.field(GETFIELD, refs.numbers);
+        code.write(ASTORE_3);
+        code.write(ALOAD_3);
+        code.field(GETFIELD, refs.ints);
+        code.write(ASTORE, INTS);
+
+        int constant = 0;
+        int symbol = 0;
+        for (int pc = 0; pc < program.code.length; ) {
+            byte opcode = program.code[pc];
+            if (isArithmetic(program, pc, constant)) {
+                int end = pc;
+                int pushes = 0;
+                while (end < program.code.length && isArithmetic(program, end, constant + pushes)) {
+                    if (program.code[end++] == Program.PUSH) ++pushes;
+                }
+                arithmetic(code, pool, refs, program, pc, end, constant);
+                constant += pushes;
+                pc = end;
+            } else {
+                double number = opcode == Program.PUSH ? program.constants[constant++] : 0;
+                char c = opcode == Program.UNKNOWN ? program.symbols[symbol++] : symbolOf(opcode);
+                perform(code, pool, refs, opcode, number, c);
+                ++pc;
+            }
+            if (code.size() > MAX_METHOD_BYTES) return null;
+        }
+        code.write(RETURN);
+        byte[] method = code.toByteArray();
+        if (method.length > MAX_METHOD_BYTES) return null;
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(method.length + 1024);
+            DataOutputStream out = new DataOutputStream(bytes);
+            byte[] frames = code.frames(new int[] {thisClass, refs.srpn, refs.program, refs.operandStack, refs.intArray});
+            out.writeInt(MAGIC);
+            out.writeShort(0);
+            out.writeShort(JAVA_17);
+            pool.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(object);
+            out.writeShort(1);
+            out.writeShort(compiledProgram);
+            out.writeShort(0);
+
+            out.writeShort(2);
+            byte[] constructor = {ALOAD_0, (byte) INVOKESPECIAL, (byte) (objectInit >> 8), (byte) objectInit, (byte) RETURN};
+            writeMethod(out, init, initType, codeAttribute, 1, 1, constructor, 0, null);
+            writeMethod(out, run, runType, codeAttribute, MAX_STACK, MAX_LOCALS, method, stackMapTable, frames);
+
+            out.writeShort(0);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static boolean isArithmetic(Program program, int pc, int constant) {
+//      Whether the instruction can be part of a run of arithmetic, a push of a whole number, "r" or an operator.
+        byte opcode = program.code[pc];
+        if (opcode == Program.PUSH) return wholeNumber(program.constants[constant]);
+        return opcode == Program.RANDOM || Program.isOperator(opcode);
+    }
+
+    private static boolean wholeNumber(double number) {
+//      Whether the number is pushed as an int, see OperandStack.
+        double saturated = SRPN.handleSaturation(number);
+        return (int) saturated == saturated && Double.doubleToRawLongBits(saturated) != Double.doubleToRawLongBits(-0.0);
+    }
+
+    private static void arithmetic(Code code, ConstantPool pool, Refs refs, Program program, int start, int end,
+                                   int constant) {
+        /*
+        A run of arithmetic, the instructions from start to end. Heights are relative to the depth of the stack at
+        the start of the run, the element at height h is in local FIRST_ELEMENT + reads + h.
+        */
+
+        int height = 0;
+        int reads = 0;
+        int highest = 0;
+        boolean pushes = false;
+        boolean risky = false;
+        int[] operators = new int[Program.POWER + 1];
+        for (int pc = start; pc < end; ++pc) {
+            byte opcode = program.code[pc];
+            if (Program.isOperator(opcode)) {
+                reads = Math.max(reads, 2 - height);
+                --height;
+                ++operators[opcode];
+                risky |= opcode != Program.ADD && opcode != Program.SUBTRACT;
+            } else {
+                highest = Math.max(highest, ++height);
+                pushes = true;
+            }
+        }
+        int lowest = reads;
+        int deepest = OperandStack.CAPACITY - highest;
+        int elements = reads + highest;
+
+        if (lowest > deepest) {
+//          The run underflows or overflows from any depth, it is left to the calculator as it is.
+            for (int pc = start; pc < end; ++pc) {
+                byte opcode = program.code[pc];
+                double number = opcode == Program.PUSH ? program.constants[constant++] : 0;
+                perform(code, pool, refs, opcode, number, symbolOf(opcode));
+            }
+            return;
+        }
+
+        int fail = code.label(1);
+        int bail = risky ? code.label(2 + elements) : -1;
+        int done = code.label(0);
+
+//      size = stack.size, checked to be in range and the elements read to be whole numbers.
+        code.write(ALOAD_3);
+        code.field(GETFIELD, refs.size);
+        code.write(ISTORE, SIZE);
+        if (lowest > 0) {
+            code.write(ILOAD, SIZE);
+            pushInt(code, pool, lowest);
+            code.jump(IF_ICMPLT, fail);
+        }
+        if (deepest < OperandStack.CAPACITY) {
+            code.write(ILOAD, SIZE);
+            pushInt(code, pool, deepest);
+            code.jump(IF_ICMPGT, fail);
+        }
+        if (reads > 0) {
+            code.write(ALOAD_3);
+            code.field(GETFIELD, refs.notInts);
+            code.write(ILOAD, SIZE);
+            pushInt(code, pool, reads);
+            code.write(ISUB);
+            code.write(ISHR);
+            pushInt(code, pool, (1 << reads) - 1);
+            code.write(IAND);
+            code.jump(IFNE, fail);
+        }
+
+//      The elements read are loaded, the others are zeroed when a failed operator may write them all back.
+        for (int h = -reads; h < highest; ++h) {
+            if (h < 0) {
+                loadElementIndex(code, pool, h);
+                code.write(IALOAD);
+            } else if (risky) {
+                code.write(ICONST_0);
+            } else {
+                continue;
+            }
+            code.write(ISTORE, FIRST_ELEMENT + reads + h);
+        }
+
+        height = 0;
+        for (int pc = start; pc < end; ++pc) {
+            byte opcode = program.code[pc];
+            int top = FIRST_ELEMENT + reads + height;
+            if (opcode == Program.PUSH) {
+                pushInt(code, pool, (int) SRPN.handleSaturation(program.constants[constant++]));
+                code.write(ISTORE, top);
+                ++height;
+            } else if (opcode == Program.RANDOM) {
+                code.write(ALOAD_1);
+                code.method(INVOKEVIRTUAL, refs.nextRandom);
+                code.write(ISTORE, top);
+                ++height;
+            } else if (opcode == Program.ADD || opcode == Program.SUBTRACT) {
+//              b = saturate((long) b +/- a), which is always a whole number.
+                code.write(ILOAD, top - 2);
+                code.write(I2L);
+                code.write(ILOAD, top - 1);
+                code.write(I2L);
+                code.write(opcode == Program.ADD ? LADD : LSUB);
+                code.method(INVOKESTATIC, refs.saturate);
+                code.write(L2I);
+                code.write(ISTORE, top - 2);
+                --height;
+            } else {
+//              b = IntArithmetic.apply(opcode, b, a), the calculator carries on from here if it is not a whole number.
+                pushInt(code, pool, pc);
+                code.write(ISTORE, PC);
+                code.write(BIPUSH, opcode);
+                code.write(ILOAD, top - 2);
+                code.write(ILOAD, top - 1);
+                code.method(INVOKESTATIC, refs.apply);
+                code.write(LSTORE, RESULT);
+                code.write(LLOAD, RESULT);
+                code.write(LDC2_W);
+                code.writeShort(pool.longInfo(IntArithmetic.NOT_AN_INT));
+                code.write(LCMP);
+                code.jump(IFEQ, bail);
+                code.write(LLOAD, RESULT);
+                code.write(L2I);
+                code.write(ISTORE, top - 2);
+                --height;
+            }
+        }
+
+//      The elements from the lowest one written to the top are written back, they are all whole numbers.
+        int written = Integer.MAX_VALUE;
+        for (int h = 0, pc = start; pc < end; ++pc) {
+            h += Program.isOperator(program.code[pc]) ? -1 : 1;
+            written = Math.min(written, h - 1);
+        }
+        for (int h = written; h < height; ++h) {
+            loadElementIndex(code, pool, h);
+            code.write(ILOAD, FIRST_ELEMENT + reads + h);
+            code.write(IASTORE);
+        }
+        if (height > written) {
+//          stack.notInts &= ~(mask << (size + written))
+            code.write(ALOAD_3);
+            code.write(DUP);
+            code.field(GETFIELD, refs.notInts);
+            pushInt(code, pool, (1 << (height - written)) - 1);
+            code.write(ILOAD, SIZE);
+            if (written != 0) {
+                pushInt(code, pool, written);
+                code.write(IADD);
+            }
+            code.write(ISHL);
+            pushInt(code, pool, -1);
+            code.write(IXOR);
+            code.write(IAND);
+            code.field(PUTFIELD, refs.notInts);
+        }
+        if (height != 0) {
+            code.write(ALOAD_3);
+            code.write(ILOAD, SIZE);
+            pushInt(code, pool, height);
+            code.write(IADD);
+            code.field(PUTFIELD, refs.size);
+        }
+        countOperators(code, pool, refs, operators);
+        if (pushes) {
+//          if (calculator.peakDepth < size + highest) calculator.peakDepth = size + highest
+            code.write(ALOAD_1);
+            code.field(GETFIELD, refs.peakDepth);
+            code.write(ILOAD, SIZE);
+            pushInt(code, pool, highest);
+            code.write(IADD);
+            code.jump(IF_ICMPGE, done);
+            code.write(ALOAD_1);
+            code.write(ILOAD, SIZE);
+            pushInt(code, pool, highest);
+            code.write(IADD);
+            code.field(PUTFIELD, refs.peakDepth);
+        }
+        code.jump(GOTO, done);
+
+        if (risky) {
+//          An operator failed, every element is written back, those above the top are not part of the stack.
+            code.mark(bail);
+            for (int h = -reads; h < highest; ++h) {
+                loadElementIndex(code, pool, h);
+                code.write(ILOAD, FIRST_ELEMENT + reads + h);
+                code.write(IASTORE);
+            }
+            resume(code, pool, refs, start, end, true);
+            code.jump(GOTO, done);
+        }
+
+        code.mark(fail);
+        resume(code, pool, refs, start, end, false);
+        code.mark(done);
+    }
+
+    private static void resume(Code code, ConstantPool pool, Refs refs, int start, int end, boolean failed) {
+//      calculator.resume(program, start, failed ? pc : start, end, size)
+        code.write(ALOAD_1);
+        code.write(ALOAD_2);
+        pushInt(code, pool, start);
+        if (failed) {
+            code.write(ILOAD, PC);
+        } else {
+            pushInt(code, pool, start);
+        }
+        pushInt(code, pool, end);
+        code.write(ILOAD, SIZE);
+        code.method(INVOKEVIRTUAL, refs.resume);
+    }
+
+    private static void loadElementIndex(Code code, ConstantPool pool, int height) {
+//      ints and the index of the element at a height relative to size.
+        code.write(ALOAD, INTS);
+        code.write(ILOAD, SIZE);
+        if (height != 0) {
+            pushInt(code, pool, height);
+            code.write(IADD);
+        }
+    }
+
+    private static void countOperators(Code code, ConstantPool pool, Refs refs, int[] operators) {
+//      calculator.counts[operator] += how often it appears, for each operator of a run.
+        for (int operator = Program.ADD; operator <= Program.POWER; ++operator) {
+            if (operators[operator] == 0) continue;
+            code.write(ALOAD_1);
+            code.field(GETFIELD, refs.counts);
+            pushInt(code, pool, operator);
+            code.write(DUP2);
+            code.write(LALOAD);
+            pushInt(code, pool, operators[operator]);
+            code.write(I2L);
+            code.write(LADD);
+            code.write(LASTORE);
+        }
+    }
+
+    private static void perform(Code code, ConstantPool pool, Refs refs, byte opcode, double number, char c) {
+//      calculator.perform(opcode, number, c)
+        code.write(ALOAD_1);
+        code.write(BIPUSH, opcode);
+        pushDouble(code, pool, number);
+        pushChar(code, pool, c);
+        code.method(INVOKEVIRTUAL, refs.perform);
+    }
+
+    private static void pushInt(Code code, ConstantPool pool, int value) {
+        if (value >= -1 && value <= 5) {
+            code.write(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            code.write(BIPUSH, value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            code.write(SIPUSH);
+            code.writeShort(value);
+        } else {
+            code.write(LDC_W);
+            code.writeShort(pool.intInfo(value));
+        }
+    }
+
+    private static char symbolOf(byte opcode) {
+//      The symbol of an instruction that is not PUSH or UNKNOWN, perform() ignores it but it helps reading the bytecode.
+        return switch (opcode) {
+            case Program.ADD -> '+';
+            case Program.SUBTRACT -> '-';
+            case Program.MULTIPLY -> '*';
+            case Program.DIVIDE -> '/';
+            case Program.MODULO -> '%';
+            case Program.POWER -> '^';
+            case Program.DISPLAY -> 'd';
+            case Program.RANDOM -> 'r';
+            default -> '=';
+        };
+    }
+
+    private static void pushDouble(Code code, ConstantPool pool, double number) {
+//      dconst only for +0.0 and 1.0, -0.0 has to come from the constant pool to keep its sign.
+        if (Double.doubleToRawLongBits(number) == 0) {
+            code.write(DCONST_0);
+        } else if (number == 1) {
+            code.write(DCONST_1);
+        } else {
+            code.write(LDC2_W);
+            code.writeShort(pool.doubleInfo(number));
+        }
+    }
+
+    private static void pushChar(Code code, ConstantPool pool, char c) {
+//      sipush sign extends, so a char above Short.MAX_VALUE comes from the constant pool.
+        if (c <= Short.MAX_VALUE) {
+            code.write(SIPUSH);
+            code.writeShort(c);
+        } else {
+            code.write(LDC_W);
+            code.writeShort(pool.intInfo(c));
+        }
+    }
+
+    private static void writeMethod(DataOutputStream out, int name, int type, int codeAttribute, int maxStack,
+                                    int maxLocals, byte[] code, int stackMapTable, byte[] frames) throws IOException {
+//      frames is the StackMapTable of the code, or null if it has no branches.
+        out.writeShort(ACC_PUBLIC);
+        out.writeShort(name);
+        out.writeShort(type);
+        out.writeShort(1);
+        out.writeShort(codeAttribute);
+        out.writeInt(12 + code.length + (frames == null ? 0 : 6 + frames.length));
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0);
+        if (frames == null) {
+            out.writeShort(0);
+        } else {
+            out.writeShort(1);
+            out.writeShort(stackMapTable);
+            out.writeInt(frames.length);
+            out.write(frames);
+        }
+    }
+
+    private static final class Refs {
+//      The classes, fields and methods the generated code uses.
+        final int srpn;
+        final int program;
+        final int operandStack;
+        final int intArray;
+        final int numbers;
+        final int counts;
+        final int peakDepth;
+        final int ints;
+        final int notInts;
+        final int size;
+        final int perform;
+        final int resume;
+        final int nextRandom;
+        final int apply;
+        final int saturate;
+
+        Refs(ConstantPool pool) {
+            this.srpn = pool.classInfo("SRPN");
+            this.program = pool.classInfo("Program");
+            this.operandStack = pool.classInfo("OperandStack");
+            this.intArray = pool.classInfo("[I");
+            int intArithmetic = pool.classInfo("IntArithmetic");
+            this.numbers = pool.fieldref(this.srpn, "numbers", "LOperandStack;");
+            this.counts = pool.fieldref(this.srpn, "counts", "[J");
+            this.peakDepth = pool.fieldref(this.srpn, "peakDepth", "I");
+            this.ints = pool.fieldref(this.operandStack, "ints", "[I");
+            this.notInts = pool.fieldref(this.operandStack, "notInts", "I");
+            this.size = pool.fieldref(this.operandStack, "size", "I");
+            this.perform = pool.methodref(this.srpn, "perform", "(BDC)V");
+            this.resume = pool.methodref(this.srpn, "resume", "(LProgram;IIII)V");
+            this.nextRandom = pool.methodref(this.srpn, "nextRandom", "()I");
+            this.apply = pool.methodref(intArithmetic, "apply", "(BII)J");
+            this.saturate = pool.methodref(intArithmetic, "saturate", "(J)J");
+        }
+    }
+
+    private static final class Code {
+        /*
+        The bytecode of a method. Branches are written to labels, which are patched once the code is done. At every
+        label the operand stack is empty and the locals are the objects set up at the start of the method followed by
+        a number of ints given when the label is made, which is all the StackMapTable needs to say about it.
+        */
+
+        private byte[] bytes = new byte[256];
+        private int size;
+        private int[] labels = new int[16];
+        private int[] labelInts = new int[16];
+        private int labelCount;
+        private int[] jumps = new int[16];
+        private int jumpCount;
+
+        int size() {
+            return this.size;
+        }
+
+        void write(int b) {
+            if (this.size == this.bytes.length) this.bytes = Arrays.copyOf(this.bytes, 2 * this.size);
+            this.bytes[this.size++] = (byte) b;
+        }
+
+        void write(int opcode, int operand) {
+            write(opcode);
+            write(operand);
+        }
+
+        void writeShort(int value) {
+            write(value >> 8);
+            write(value);
+        }
+
+        void field(int opcode, int field) {
+            write(opcode);
+            writeShort(field);
+        }
+
+        void method(int opcode, int method) {
+            write(opcode);
+            writeShort(method);
+        }
+
+        int label(int ints) {
+            if (this.labelCount == this.labels.length) {
+                this.labels = Arrays.copyOf(this.labels, 2 * this.labelCount);
+                this.labelInts = Arrays.copyOf(this.labelInts, 2 * this.labelCount);
+            }
+            this.labels[this.labelCount] = -1;
+            this.labelInts[this.labelCount] = ints;
+            return this.labelCount++;
+        }
+
+        void mark(int label) {
+            this.labels[label] = this.size;
+        }
+
+        void jump(int opcode, int label) {
+//          The label is written in place of the offset until the offset is known.
+            if (this.jumpCount == this.jumps.length) this.jumps = Arrays.copyOf(this.jumps, 2 * this.jumpCount);
+            this.jumps[this.jumpCount++] = this.size;
+            write(opcode);
+            writeShort(label);
+        }
+
+        byte[] toByteArray() {
+            for (int i = 0; i < this.jumpCount; ++i) {
+                int at = this.jumps[i];
+                int label = (this.bytes[at + 1] & 0xff) << 8 | this.bytes[at + 2] & 0xff;
+                int offset = this.labels[label] - at;
+                this.bytes[at + 1] = (byte) (offset >> 8);
+                this.bytes[at + 2] = (byte) offset;
+            }
+            this.jumpCount = 0;
+            return Arrays.copyOf(this.bytes, this.size);
+        }
+
+        byte[] frames(int[] objects) throws IOException {
+//          A full frame at each label, no two labels are at the same place. Returns null if there are no labels.
+            if (this.labelCount == 0) return null;
+            Integer[] order = new Integer[this.labelCount];
+            for (int i = 0; i < order.length; ++i) order[i] = i;
+            Arrays.sort(order, (a, b) -> Integer.compare(this.labels[a], this.labels[b]));
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeShort(order.length);
+            int previous = -1;
+            for (int label: order) {
+                out.writeByte(FULL_FRAME);
+                out.writeShort(this.labels[label] - previous - 1);
+                previous = this.labels[label];
+                out.writeShort(objects.length + this.labelInts[label]);
+                for (int object: objects) {
+                    out.writeByte(ITEM_OBJECT);
+                    out.writeShort(object);
+                }
+                for (int i = 0; i < this.labelInts[label]; ++i) out.writeByte(ITEM_INTEGER);
+                out.writeShort(0);
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    private static final class ConstantPool {
+//      The constant pool of the class, each distinct constant is added once.
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(this.bytes);
+        private final Map<Object, Integer> indices = new HashMap<>();
+        private int next = 1;
+
+        int utf8(String value) {
+            return add("utf8:" + value, 1, CONSTANT_UTF8, out -> out.writeUTF(value));
+        }
+
+        int classInfo(String name) {
+            int utf8 = utf8(name);
+            return add("class:" + name, 1, CONSTANT_CLASS, out -> out.writeShort(utf8));
+        }
+
+        int intInfo(int value) {
+            return add("int:" + value, 1, CONSTANT_INTEGER, out -> out.writeInt(value));
+        }
+
+        int longInfo(long value) {
+            return add("long:" + value, 2, CONSTANT_LONG, out -> out.writeLong(value));
+        }
+
+        int doubleInfo(double value) {
+//          Keyed by the raw bits so that -0.0 and 0.0 are different constants, a double takes two entries.
+            return add(Double.doubleToRawLongBits(value), 2, CONSTANT_DOUBLE, out -> out.writeDouble(value));
+        }
+
+        int methodref(int owner, String name, String type) {
+            int nameAndType = nameAndType(name, type);
+            return add("methodref:" + owner + "." + name + type, 1, CONSTANT_METHODREF, out -> {
+                out.writeShort(owner);
+                out.writeShort(nameAndType);
+            });
+        }
+
+        int fieldref(int owner, String name, String type) {
+            int nameAndType = nameAndType(name, type);
+            return add("fieldref:" + owner + "." + name + type, 1, CONSTANT_FIELDREF, out -> {
+                out.writeShort(owner);
+                out.writeShort(nameAndType);
+            });
+        }
+
+        private int nameAndType(String name, String type) {
+            int nameIndex = utf8(name);
+            int typeIndex = utf8(type);
+            return add("nameAndType:" + name + type, 1, CONSTANT_NAME_AND_TYPE, out -> {
+                out.writeShort(nameIndex);
+                out.writeShort(typeIndex);
+            });
+        }
+
+        private int add(Object key, int entries, int tag, Entry entry) {
+            Integer index = this.indices.get(key);
+            if (index != null) return index;
+
+            try {
+                this.out.writeByte(tag);
+                entry.writeTo(this.out);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            int added = this.next;
+            this.next += entries;
+            this.indices.put(key, added);
+            return added;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeShort(this.next);
+            this.bytes.writeTo(out);
+        }
+    }
+
+    private interface Entry {
+        void writeTo(DataOutputStream out) throws IOException;
+    }
+}
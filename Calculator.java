@@ -0,0 +1,98 @@
+public final class Calculator implements AutoCloseable {
+    /*
+    A Calculator is the way to embed the calculator in another program. Each line is evaluated with the ResultSink
+    that should receive its results, so one Calculator can serve many callers in turn, and the calculator keeps its
+    stack between lines exactly as it does when lines are typed in:
+
+        calculator.evaluate("3 4 +", sink);    // nothing
+        calculator.evaluate("=", sink);        // sink.value(7)
+
+    Once a line has been seen it comes from the LineCache, and evaluating it again does not allocate. reset() starts
+    over with an empty stack, keeping the cache.
+
+    A Calculator is not thread safe. For request scoped use, take one from a CalculatorPool and close it when the
+    request is done, which resets it and gives it back to the pool. Closing it again before it is acquired again does
+    nothing, so it is never in the pool twice.
+    */
+
+    private final SRPN calculator;
+    private final Forwarder output;
+    private final CalculatorPool pool;
+
+//  Whether the Calculator has been given back to its pool since it was last acquired.
+    boolean released;
+
+    public Calculator() {
+        this(new LineCache(), null);
+    }
+
+    public Calculator(LineCache cache) {
+        this(cache, null);
+    }
+
+    Calculator(LineCache cache, CalculatorPool pool) {
+        this.output = new Forwarder();
+        this.calculator = new SRPN(cache, this.output);
+        this.pool = pool;
+    }
+
+    public Diagnostic evaluate(CharSequence line, ResultSink sink) {
+//      Evaluates a line, sending its results to sink. Returns the first diagnostic of the line, or null if it had none.
+        this.output.sink = sink;
+        try {
+            this.calculator.processCommand(line);
+        } finally {
+            this.output.sink = null;
+        }
+        return this.calculator.outcome();
+    }
+
+    public void reset() {
+        this.calculator.reset();
+    }
+
+    public int depth() {
+//      How many values are on the stack.
+        return this.calculator.numbers.size();
+    }
+
+    public CalculatorMetrics getMetrics() {
+        return this.calculator.getMetrics();
+    }
+
+    @Override
+    public void close() {
+//      Gives a Calculator taken from a pool back to it, a Calculator of its own is only reset.
+        if (this.pool != null) {
+            if (this.released) return;
+            this.released = true;
+            this.pool.release(this);
+        } else {
+            reset();
+        }
+    }
+
+    private static final class Forwarder implements OutputSink {
+//      Passes what the calculator prints on to the sink of the line being evaluated.
+        ResultSink sink;
+
+        @Override
+        public void value(int value) {
+            this.sink.value(value);
+        }
+
+        @Override
+        public void diagnostic(Diagnostic diagnostic) {
+            this.sink.diagnostic(diagnostic);
+        }
+
+        @Override
+        public void unrecognised(CharSequence operand) {
+//          The calculator only ever finds one unrecognised character at a time when it runs lines.
+            for (int i = 0; i < operand.length(); ++i) this.sink.unrecognised(operand.charAt(i));
+        }
+
+        @Override
+        public void flush() {}
+    }
+}
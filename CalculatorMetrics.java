@@ -0,0 +1,196 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class CalculatorMetrics implements CalculatorMetricsMBean {
+    /*
+    CalculatorMetrics are cumulative counters of what calculators have done, exposed as a JMX MBean for dashboards.
+    An SRPN has its own metrics unless it is given some to share, and they all feed the process wide PROCESS metrics
+    as well, which are registered as "srpn:type=Calculator,name=process" the first time a calculator is created. A
+    calculator's own metrics are only registered if register() is called. A server with thousands of sessions would
+    not want an MBean for each, nor the counters, so its sessions share PROCESS itself.
+
+    The counters are LongAdders, so many calculators running on different threads can update the process metrics
+    without contending on one memory location. A calculator does not touch them for every token either, it counts
+    in a plain array while it handles a line and adds the counts once at the end of the line.
+
+    The current stack depth is the depth at the end of the last line, for PROCESS it is the total over all
+    calculators. The max stack depth is the deepest the stack has been at any point.
+    */
+
+    static final int LINES = 0;
+//  The operator counters share the values of the operator opcodes in Program.
+    static final int RANDOM = 7;
+    static final int EQUALS = 8;
+    static final int DISPLAY = 9;
+//  The diagnostic counters are in the order of Diagnostic.
+    static final int DIAGNOSTICS = 10;
+    static final int COUNTERS = DIAGNOSTICS + Diagnostic.values().length;
+
+    public static final CalculatorMetrics PROCESS = new CalculatorMetrics(null);
+    private static final String PROCESS_NAME = "process";
+    private static volatile boolean processRegistered;
+
+    private final CalculatorMetrics parent;
+    private final LongAdder[] counters;
+    private final LongAdder depth;
+    private final LongAccumulator maxDepth;
+    private ObjectName objectName;
+
+    public CalculatorMetrics() {
+        this(PROCESS);
+    }
+
+    CalculatorMetrics(CalculatorMetrics parent) {
+        this.parent = parent;
+        this.counters = new LongAdder[COUNTERS];
+        for (int i = 0; i < COUNTERS; ++i) this.counters[i] = new LongAdder();
+        this.depth = new LongAdder();
+        this.maxDepth = new LongAccumulator(Math::max, 0);
+    }
+
+    void add(long[] counts, int depthChange, int peakDepth) {
+        /*
+        Adds the counts of a line. depthChange is how much deeper the stack is than at the start of the line and
+        peakDepth the deepest it was during the line.
+        */
+
+        for (int i = 0; i < COUNTERS; ++i) {
+            if (counts[i] != 0) this.counters[i].add(counts[i]);
+        }
+        if (depthChange != 0) this.depth.add(depthChange);
+        this.maxDepth.accumulate(peakDepth);
+
+        if (this.parent != null) this.parent.add(counts, depthChange, peakDepth);
+    }
+
+    static void registerProcessMetrics() {
+        if (processRegistered) return;
+
+        synchronized (CalculatorMetrics.class) {
+            if (processRegistered) return;
+            processRegistered = true;
+            try {
+                PROCESS.register(PROCESS_NAME);
+            } catch (JMException e) {
+//              Metrics are not worth failing for, the calculator works the same without them.
+                System.err.println("Could not register calculator metrics: " + e.getMessage());
+            }
+        }
+    }
+
+    public synchronized void register(String name) throws JMException {
+        if (this.objectName != null) throw new InstanceAlreadyExistsException(this.objectName.toString());
+
+        ObjectName objectName = new ObjectName("srpn:type=Calculator,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        this.objectName = objectName;
+    }
+
+    public synchronized void unregister() throws JMException {
+        if (this.objectName == null) throw new InstanceNotFoundException("Calculator metrics are not registered");
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.unregisterMBean(this.objectName);
+        this.objectName = null;
+    }
+
+    private long count(int counter) {
+        return this.counters[counter].sum();
+    }
+
+    @Override
+    public long getLinesProcessed() {
+        return count(LINES);
+    }
+
+    @Override
+    public long getAdditions() {
+        return count(Program.ADD);
+    }
+
+    @Override
+    public long getSubtractions() {
+        return count(Program.SUBTRACT);
+    }
+
+    @Override
+    public long getMultiplications() {
+        return count(Program.MULTIPLY);
+    }
+
+    @Override
+    public long getDivisions() {
+        return count(Program.DIVIDE);
+    }
+
+    @Override
+    public long getModulos() {
+        return count(Program.MODULO);
+    }
+
+    @Override
+    public long getPowers() {
+        return count(Program.POWER);
+    }
+
+    @Override
+    public long getRandomDraws() {
+        return count(RANDOM);
+    }
+
+    @Override
+    public long getEqualsEmissions() {
+        return count(EQUALS);
+    }
+
+    @Override
+    public long getDisplayEmissions() {
+        return count(DISPLAY);
+    }
+
+    @Override
+    public long getStackUnderflows() {
+        return count(DIAGNOSTICS + Diagnostic.STACK_UNDERFLOW.ordinal());
+    }
+
+    @Override
+    public long getStackOverflows() {
+        return count(DIAGNOSTICS + Diagnostic.STACK_OVERFLOW.ordinal());
+    }
+
+    @Override
+    public long getDivideByZeros() {
+        return count(DIAGNOSTICS + Diagnostic.DIVIDE_BY_ZERO.ordinal());
+    }
+
+    @Override
+    public long getStackEmpties() {
+        return count(DIAGNOSTICS + Diagnostic.STACK_EMPTY.ordinal());
+    }
+
+    @Override
+    public long getUnrecognisedOperands() {
+        return count(DIAGNOSTICS + Diagnostic.UNRECOGNISED.ordinal());
+    }
+
+    @Override
+    public long getWordLimitsReached() {
+        return count(DIAGNOSTICS + Diagnostic.WORD_LIMIT.ordinal());
+    }
+
+    @Override
+    public long getCurrentStackDepth() {
+        return this.depth.sum();
+    }
+
+    @Override
+    public long getMaxStackDepth() {
+        return this.maxDepth.get();
+    }
+}
@@ -0,0 +1,42 @@
+public interface CalculatorMetricsMBean {
+    /*
+    The attributes of the calculator's JMX MBean, see CalculatorMetrics. Every count is cumulative since the metrics
+    were created.
+    */
+
+    long getLinesProcessed();
+
+    long getAdditions();
+
+    long getSubtractions();
+
+    long getMultiplications();
+
+    long getDivisions();
+
+    long getModulos();
+
+    long getPowers();
+
+    long getRandomDraws();
+
+    long getEqualsEmissions();
+
+    long getDisplayEmissions();
+
+    long getStackUnderflows();
+
+    long getStackOverflows();
+
+    long getDivideByZeros();
+
+    long getStackEmpties();
+
+    long getUnrecognisedOperands();
+
+    long getWordLimitsReached();
+
+    long getCurrentStackDepth();
+
+    long getMaxStackDepth();
+}
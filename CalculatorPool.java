@@ -0,0 +1,50 @@
+import java.util.concurrent.ArrayBlockingQueue;
+
+public final class CalculatorPool {
+    /*
+    A CalculatorPool lends Calculators out to threads, so a service can evaluate the lines of a request on a
+    Calculator whose LineCache is already warm instead of building a new one every time:
+
+        try (Calculator calculator = pool.acquire()) {
+            calculator.evaluate(line, sink);
+        }
+
+    acquire() takes an idle Calculator, or makes a new one if there is none, and closing the Calculator resets it and
+    gives it back. The pool keeps at most capacity idle Calculators, any more are dropped when they are given back.
+    The pool is thread safe, the Calculators are not, each one is only used by the thread that acquired it until it
+    is closed.
+    */
+
+    public static final int DEFAULT_CAPACITY = 2 * Runtime.getRuntime().availableProcessors();
+
+    private final ArrayBlockingQueue<Calculator> idle;
+    private final int cacheCapacity;
+
+    public CalculatorPool() {
+        this(DEFAULT_CAPACITY, LineCache.DEFAULT_CAPACITY);
+    }
+
+    public CalculatorPool(int capacity, int cacheCapacity) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity must be at least 1: " + capacity);
+        if (cacheCapacity < 0) throw new IllegalArgumentException("Cache capacity must not be negative: " + cacheCapacity);
+
+        this.idle = new ArrayBlockingQueue<>(capacity);
+        this.cacheCapacity = cacheCapacity;
+    }
+
+    public Calculator acquire() {
+        Calculator calculator = this.idle.poll();
+        if (calculator == null) return new Calculator(new LineCache(this.cacheCapacity), this);
+        calculator.released = false;
+        return calculator;
+    }
+
+    void release(Calculator calculator) {
+        calculator.reset();
+        this.idle.offer(calculator);
+    }
+
+    public int idle() {
+        return this.idle.size();
+    }
+}
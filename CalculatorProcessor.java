@@ -0,0 +1,257 @@
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class CalculatorProcessor implements Flow.Processor<String, Result> {
+    /*
+    A CalculatorProcessor puts one calculator in a reactive pipeline. It subscribes to lines of input, runs each with
+    processCommand() and publishes what the calculator prints as Results to a single subscriber, for example:
+
+        "3 4 + =", "d", "1 0 /" -> VALUE 7, DISPLAY [7], DIAGNOSTIC divide-by-zero
+
+    It only takes lines as fast as its subscriber takes results. At most capacity lines are requested from upstream
+    and buffered, in a SpscRingBuffer, and more are requested in batches of half the capacity as lines are run. A line
+    is only run when the results of the line before have all been published, so the results waiting for demand are
+    those of a single line. That bound is per line, not a fixed number, a line of many "d"s on a deep stack leaves
+    a Result for each "d" waiting, as many as the longest line upstream can send. A slow subscriber therefore slows
+    down the publisher instead of letting the buffers grow from line to line.
+
+    The signals to the subscriber are serialised by a drain loop, whichever thread brings new lines or demand runs
+    it, the calculator is only ever used by one thread at a time. The loop signals nothing until the subscriber's
+    onSubscribe() has returned, even if it requests results from inside it. Once upstream completes or fails and every
+    line has been run and its results published, the subscriber is completed or given the error.
+    */
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private final SRPN calculator;
+    private final ArrayDeque<Result> results;
+    private final SpscRingBuffer<String> lines;
+    private final int batch;
+
+    private volatile Flow.Subscription upstream;
+    private volatile Flow.Subscriber<? super Result> downstream;
+    private volatile boolean subscribed;
+    private final AtomicLong requested;
+    private final AtomicInteger work;
+    private int consumed;
+
+    private volatile boolean done;
+    private volatile Throwable error;
+    private volatile boolean cancelled;
+    private volatile Throwable violation;
+    private boolean terminated;
+
+    public CalculatorProcessor() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public CalculatorProcessor(int capacity) {
+//      capacity is the number of lines that can be buffered, a power of two of at least 2.
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two of at least 2: " + capacity);
+        }
+
+        this.results = new ArrayDeque<>();
+        this.calculator = new SRPN(new LineCache(), new Collector(this.results));
+        this.lines = new SpscRingBuffer<>(capacity);
+        this.batch = capacity / 2;
+        this.requested = new AtomicLong();
+        this.work = new AtomicInteger();
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        Objects.requireNonNull(subscription);
+        if (this.upstream != null) {
+            subscription.cancel();
+            return;
+        }
+
+        this.upstream = subscription;
+        if (this.cancelled) {
+            subscription.cancel();
+            return;
+        }
+        subscription.request(this.lines.capacity());
+    }
+
+    @Override
+    public void onNext(String line) {
+        Objects.requireNonNull(line);
+        if (this.done) return;
+        if (!this.lines.offer(line)) {
+//          Upstream sent more than was requested.
+            this.upstream.cancel();
+            onError(new IllegalStateException("More lines than were requested"));
+            return;
+        }
+        drain();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        Objects.requireNonNull(throwable);
+        if (this.done) return;
+        this.error = throwable;
+        this.done = true;
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+        if (this.done) return;
+        this.done = true;
+        drain();
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super Result> subscriber) {
+        Objects.requireNonNull(subscriber);
+        synchronized (this) {
+            if (this.downstream != null) {
+                subscriber.onSubscribe(new Flow.Subscription() {
+                    public void request(long n) {}
+                    public void cancel() {}
+                });
+                subscriber.onError(new IllegalStateException("A CalculatorProcessor has only one subscriber"));
+                return;
+            }
+            this.downstream = subscriber;
+        }
+
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    CalculatorProcessor.this.violation = new IllegalArgumentException("Requested " + n + " results");
+                } else {
+                    addRequested(n);
+                }
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                cancelUpstream();
+                drain();
+            }
+        });
+        this.subscribed = true;
+        drain();
+    }
+
+    private void cancelUpstream() {
+        this.cancelled = true;
+        Flow.Subscription upstream = this.upstream;
+        if (upstream != null) upstream.cancel();
+    }
+
+    private void addRequested(long n) {
+        while (true) {
+            long current = this.requested.get();
+            long next = current + n < 0 ? Long.MAX_VALUE : current + n;
+            if (this.requested.compareAndSet(current, next)) return;
+        }
+    }
+
+    private void drain() {
+//      Only one thread runs the loop at a time, a call while it runs makes it go round again.
+        if (this.work.getAndIncrement() != 0) return;
+
+        int missed = 1;
+        do {
+//          No signal may reach the subscriber before its onSubscribe() has returned.
+            Flow.Subscriber<? super Result> downstream = this.subscribed ? this.downstream : null;
+            if (this.violation != null && !this.terminated && downstream != null) {
+//              A subscriber that breaks the rules is given the error straight away, the lines are dropped.
+                cancelUpstream();
+                this.terminated = true;
+                downstream.onError(this.violation);
+            }
+            if (this.cancelled) {
+                this.results.clear();
+                while (this.lines.poll() != null) {}
+            } else if (downstream != null && !this.terminated) {
+                emit(downstream);
+            }
+            missed = this.work.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void emit(Flow.Subscriber<? super Result> downstream) {
+        long requested = this.requested.get();
+        long emitted = 0;
+
+        while (true) {
+            if (this.results.isEmpty()) {
+//              Completion is only checked here, after every result of the lines before has been published.
+                boolean done = this.done;
+                String line = this.lines.poll();
+                if (line == null) {
+                    if (done) terminate(downstream);
+                    break;
+                }
+                this.calculator.processCommand(line);
+                if (++this.consumed == this.batch) {
+                    this.consumed = 0;
+                    this.upstream.request(this.batch);
+                }
+                continue;
+            }
+            if (emitted == requested) break;
+
+            downstream.onNext(this.results.poll());
+            ++emitted;
+            if (this.cancelled) return;
+        }
+
+        if (emitted != 0 && requested != Long.MAX_VALUE) this.requested.addAndGet(-emitted);
+    }
+
+    private void terminate(Flow.Subscriber<? super Result> downstream) {
+        this.terminated = true;
+        Throwable error = this.error;
+        if (error != null) {
+            downstream.onError(error);
+        } else {
+            downstream.onComplete();
+        }
+    }
+
+    private static final class Collector implements OutputSink {
+//      Turns what the calculator prints into Results, waiting to be published.
+        private final ArrayDeque<Result> results;
+
+        Collector(ArrayDeque<Result> results) {
+            this.results = results;
+        }
+
+        @Override
+        public void value(int value) {
+            this.results.add(Result.value(value));
+        }
+
+        @Override
+        public void display(OperandStack stack) {
+            int[] values = new int[stack.size()];
+            for (int i = 0; i < values.length; ++i) values[i] = stack.floor(i);
+            this.results.add(Result.display(values));
+        }
+
+        @Override
+        public void diagnostic(Diagnostic diagnostic) {
+            this.results.add(Result.diagnostic(diagnostic));
+        }
+
+        @Override
+        public void unrecognised(CharSequence operand) {
+            this.results.add(Result.unrecognised(operand.toString()));
+        }
+
+        @Override
+        public void flush() {}
+    }
+}
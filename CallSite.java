@@ -0,0 +1,52 @@
+final class CallSite {
+    /*
+    A CallSite is a word in a Program, a run of letters the calculator looks up in its Dictionary when the Program
+    runs. The Definition it finds is cached with the Dictionary and its version, so running the Program again does not
+    look the word up again unless something has been defined since. A word that is not defined is cached as well.
+
+    The bodies of a library's words are shared by every calculator using the library, and each calculator looks their
+    words up in a Dictionary of its own, so one Binding would be replaced on every call as sessions take turns. Their
+    call sites are marked shared when the library is frozen and look the word up each time instead. Any other Program
+    belongs to one calculator, but the cache is still an immutable Binding replaced as a whole, a thread sees either
+    the old one or the new one.
+    */
+
+    final String name;
+    private Binding binding;
+    private boolean shared;
+
+    CallSite(String name) {
+        this.name = name;
+    }
+
+    static void share(Program program) {
+//      Marks the call sites of a library body, and of the words it defines, written before the library is published.
+        for (CallSite site: program.sites) site.shared = true;
+        for (Definition definition: program.definitions) share(definition.body());
+    }
+
+    Definition resolve(Dictionary dictionary) {
+        if (this.shared) return dictionary.lookup(this.name);
+
+        Binding binding = this.binding;
+        if (binding != null && binding.dictionary == dictionary && binding.version == dictionary.version()) {
+            return binding.definition;
+        }
+
+        Definition definition = dictionary.lookup(this.name);
+        this.binding = new Binding(dictionary, dictionary.version(), definition);
+        return definition;
+    }
+
+    private static final class Binding {
+        final Dictionary dictionary;
+        final long version;
+        final Definition definition;
+
+        Binding(Dictionary dictionary, long version, Definition definition) {
+            this.dictionary = dictionary;
+            this.version = version;
+            this.definition = definition;
+        }
+    }
+}
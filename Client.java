@@ -0,0 +1,54 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+class Client {
+
+    // A client for the calculator server, for trying it out on localhost
+    // Everything typed on stdin is sent to the server and everything the server
+    // sends back is printed on stdout, on end-of-file (Ctrl-D) the connection is
+    // half closed so the server finishes the session and closes it
+    //
+    //     java Main --server 7000
+    //     java Client localhost 7000
+
+    public static void main(String[] args) {
+        if(args.length != 2) {
+            System.err.println("Usage: java Client <host> <port>");
+            System.exit(2);
+        }
+
+        try(Socket socket = new Socket(args[0], Integer.parseInt(args[1]))) {
+            socket.setTcpNoDelay(true);
+
+            Thread sender = new Thread(() -> {
+                try {
+                    copy(System.in, socket.getOutputStream());
+                    socket.shutdownOutput();
+                }
+                catch(IOException e) {
+                    // The connection was closed by the server
+                }
+            }, "srpn-client-sender");
+            sender.setDaemon(true);
+            sender.start();
+
+            copy(socket.getInputStream(), System.out);
+            System.exit(0);
+        }
+        catch(IOException | NumberFormatException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8192];
+        int read;
+        while((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+            out.flush();
+        }
+    }
+}
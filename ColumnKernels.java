@@ -0,0 +1,12 @@
+interface ColumnKernels {
+    /*
+    The arithmetic of a ColumnTemplate, applied to a whole column of operands at a time: b[i] = b[i] operator a[i]
+    for the first length rows, saturated the same way as SRPN.apply(). Division by zero is up to the caller.
+    */
+
+    void apply(byte operator, double[] b, double[] a, int length);
+
+    ColumnKernels SCALAR = (operator, b, a, length) -> {
+        for (int i = 0; i < length; ++i) b[i] = SRPN.apply(operator, b[i], a[i]);
+    };
+}
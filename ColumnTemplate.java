@@ -0,0 +1,231 @@
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntUnaryOperator;
+
+public final class ColumnTemplate {
+    /*
+    A ColumnTemplate is a line of input with placeholders, "$0", "$1" and so on, that is evaluated for every row of a
+    table given as int columns, placeholder $N taking its value from column N. The result of a row is what "=" would
+    print after a new calculator processed the line with the row's values in place of the placeholders, e.g.
+
+        "$0*$1+$2" over the columns {2, 3}, {10, 20} and {1, 1} -> {21, 61}
+
+    The template is compiled once. The Program it compiles to is then run a column at a time rather than a row at a
+    time, ROWS_PER_BLOCK rows at once, so each instruction is one loop over a column instead of a trip through the
+    interpreter for every row. The loops use the Vector API when the JVM was started with
+    --add-modules jdk.incubator.vector, and plain loops otherwise.
+
+    Only templates that are arithmetic alone are accepted, numbers, placeholders and operators that never underflow
+    or overflow the stack. A division by zero depends on the values, the rows that divide by zero are evaluated by a
+    calculator instead, so their results are the same as well.
+
+    A placeholder has to be a number of its own in the line whatever its value. Compiling checks the line compiles to
+    the same instructions with positive and negative values, which rules out placeholders run together with digits,
+    letters or other placeholders, and a "-" that would be the sign of a placeholder, as " -$0" is a negative number
+    for a positive value but a subtraction for a negative one. "$0-$1" is fine, that "-" is a subtraction either way.
+    */
+
+    static final int ROWS_PER_BLOCK = 1024;
+
+    private static final ColumnKernels KERNELS = loadKernels();
+
+//  Two sets of values the placeholders are compiled with, to tell placeholders from the template's own numbers.
+    private static final int FIRST_SENTINEL = 1_000_000_000;
+    private static final int SECOND_SENTINEL = 2_000_000_000;
+
+    private final String template;
+    private final int[] placeholderStarts;
+    private final int[] placeholderEnds;
+    private final int[] placeholderColumns;
+    private final int columns;
+
+    private final byte[] code;
+    private final double[] constants;
+//  For each PUSH, the column its value comes from, or -1 for a number of the template.
+    private final int[] sources;
+
+    private ColumnTemplate(String template, int[] starts, int[] ends, int[] columns, Program program, int[] sources) {
+        this.template = template;
+        this.placeholderStarts = starts;
+        this.placeholderEnds = ends;
+        this.placeholderColumns = columns;
+        this.columns = Arrays.stream(columns).max().orElse(-1) + 1;
+        this.code = program.code;
+        this.constants = program.constants;
+        this.sources = sources;
+    }
+
+    public static ColumnTemplate compile(String template) {
+        List<int[]> placeholders = new ArrayList<>();
+        for (int i = 0; i < template.length(); ++i) {
+            char c = template.charAt(i);
+            if (c == '#') throw new IllegalArgumentException("Templates cannot contain comments: " + template);
+            if (c != '$') continue;
+
+            int end = i + 1;
+            while (end < template.length() && Lexer.isDigit(template.charAt(end))) ++end;
+            if (end == i + 1 || end - i > 6) throw new IllegalArgumentException("Bad placeholder at " + i + ": " + template);
+            placeholders.add(new int[] {i, end, Integer.parseInt(template, i + 1, end, 10)});
+            i = end - 1;
+        }
+
+        int[] starts = placeholders.stream().mapToInt(p -> p[0]).toArray();
+        int[] ends = placeholders.stream().mapToInt(p -> p[1]).toArray();
+        int[] columns = placeholders.stream().mapToInt(p -> p[2]).toArray();
+
+        LineCompiler compiler = new LineCompiler();
+        Program first = compiler.compile(substitute(template, starts, ends, columns, column -> FIRST_SENTINEL + column));
+        Program second = compiler.compile(substitute(template, starts, ends, columns, column -> SECOND_SENTINEL + column));
+        Program negative = compiler.compile(substitute(template, starts, ends, columns, column -> -FIRST_SENTINEL - column));
+
+        if (!Arrays.equals(first.code, second.code) || !Arrays.equals(first.code, negative.code)) {
+            throw new IllegalArgumentException("Placeholders must be numbers of their own: " + template);
+        }
+
+//      The numbers that differ between the compilations are the placeholders.
+        int[] sources = new int[first.constants.length];
+        int found = 0;
+        for (int i = 0; i < sources.length; ++i) {
+            sources[i] = -1;
+            if (first.constants[i] == second.constants[i]) continue;
+
+            int column = (int) first.constants[i] - FIRST_SENTINEL;
+            if (negative.constants[i] != -first.constants[i] || second.constants[i] != SECOND_SENTINEL + column) {
+                throw new IllegalArgumentException("Placeholders must be numbers of their own: " + template);
+            }
+            sources[i] = column;
+            ++found;
+        }
+        if (found != columns.length) {
+            throw new IllegalArgumentException("Placeholders must be numbers of their own: " + template);
+        }
+
+        checkArithmetic(template, first);
+        return new ColumnTemplate(template, starts, ends, columns, first, sources);
+    }
+
+    private static void checkArithmetic(String template, Program program) {
+//      The stack starts empty for every row, so whether it underflows or overflows is the same for every row.
+        int depth = 0;
+        for (byte opcode: program.code) {
+            if (opcode == Program.PUSH) {
+                if (++depth > OperandStack.CAPACITY) throw new IllegalArgumentException("Template overflows: " + template);
+            } else if (Program.isOperator(opcode)) {
+                if (depth-- < 2) throw new IllegalArgumentException("Template underflows: " + template);
+            } else {
+                throw new IllegalArgumentException("Templates can only contain arithmetic: " + template);
+            }
+        }
+        if (depth == 0) throw new IllegalArgumentException("Template is empty: " + template);
+    }
+
+    public int columns() {
+//      How many columns the template reads, one more than its highest placeholder.
+        return this.columns;
+    }
+
+    public static boolean isVectorized() {
+        return KERNELS != ColumnKernels.SCALAR;
+    }
+
+    public int[] evaluate(int[]... columns) {
+        int rows = columns.length == 0 ? 0 : columns[0].length;
+        int[] results = new int[rows];
+        evaluate(columns, results, KERNELS);
+        return results;
+    }
+
+    void evaluate(int[][] columns, int[] results, ColumnKernels kernels) {
+        if (columns.length < this.columns) {
+            throw new IllegalArgumentException("Template needs " + this.columns + " columns: " + this.template);
+        }
+        for (int[] column: columns) {
+            if (column.length != results.length) throw new IllegalArgumentException("Columns differ in length");
+        }
+
+        double[][] stack = new double[OperandStack.CAPACITY][ROWS_PER_BLOCK];
+        boolean[] divideByZero = new boolean[ROWS_PER_BLOCK];
+        Fallback fallback = null;
+
+        for (int start = 0; start < results.length; start += ROWS_PER_BLOCK) {
+            int length = Math.min(ROWS_PER_BLOCK, results.length - start);
+            boolean anyDivideByZero = false;
+            int depth = 0;
+            int constant = 0;
+
+            for (byte opcode: this.code) {
+                if (opcode == Program.PUSH) {
+                    double[] top = stack[depth++];
+                    int source = this.sources[constant];
+                    if (source < 0) {
+                        Arrays.fill(top, 0, length, SRPN.handleSaturation(this.constants[constant]));
+                    } else {
+                        int[] column = columns[source];
+                        for (int i = 0; i < length; ++i) top[i] = column[start + i];
+                    }
+                    ++constant;
+                    continue;
+                }
+
+                double[] a = stack[--depth];
+                if (opcode == Program.DIVIDE) {
+                    for (int i = 0; i < length; ++i) {
+                        if (a[i] == 0) {
+                            divideByZero[i] = true;
+                            anyDivideByZero = true;
+                        }
+                    }
+                }
+                kernels.apply(opcode, stack[depth - 1], a, length);
+            }
+
+            double[] top = stack[depth - 1];
+            for (int i = 0; i < length; ++i) results[start + i] = (int) Math.floor(top[i]);
+
+            if (anyDivideByZero) {
+                if (fallback == null) fallback = new Fallback();
+                for (int i = 0; i < length; ++i) {
+                    if (!divideByZero[i]) continue;
+                    divideByZero[i] = false;
+                    results[start + i] = fallback.evaluate(columns, start + i);
+                }
+            }
+        }
+    }
+
+    private final class Fallback {
+//      A calculator for the rows that divide by zero, which prints "Divide by 0." and carries on differently.
+        private final SRPN calculator = new SRPN(new BufferedOutputSink(OutputStream.nullOutputStream()));
+
+        int evaluate(int[][] columns, int row) {
+            this.calculator.reset();
+            ColumnTemplate template = ColumnTemplate.this;
+            this.calculator.processCommand(substitute(template.template, template.placeholderStarts,
+                    template.placeholderEnds, template.placeholderColumns, column -> columns[column][row]));
+            return this.calculator.numbers.floor(this.calculator.numbers.size() - 1);
+        }
+    }
+
+    private static String substitute(String template, int[] starts, int[] ends, int[] columns, IntUnaryOperator value) {
+//      The template with each placeholder replaced by the value for its column.
+        StringBuilder line = new StringBuilder(template.length() + starts.length * 11);
+        int copied = 0;
+        for (int i = 0; i < starts.length; ++i) {
+            line.append(template, copied, starts[i]).append(value.applyAsInt(columns[i]));
+            copied = ends[i];
+        }
+        return line.append(template, copied, template.length()).toString();
+    }
+
+    private static ColumnKernels loadKernels() {
+//      The Vector API kernels are only loaded if the module is there, any other JVM uses the scalar kernels.
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) return ColumnKernels.SCALAR;
+        try {
+            return (ColumnKernels) Class.forName("VectorKernels").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return ColumnKernels.SCALAR;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+public class CompiledLine {
+    /*
+    A CompiledLine is what the calculator remembers about a line of input it has already seen. It holds the Program
+    the line compiles to and whether a multi-line comment is still open once the line has been read, which is all
+    processCommand needs to handle the same line again without lexing it.
+
+    A line with constant arithmetic also holds the folded Program the ConstantFolder made of it, with the counts of
+    the operators that were folded and, for each depth the stack can be at, how deep the original would get or -1 if
+    it could overflow, in which case only the original may be run.
+
+    The calculator counts how often the line is run, and once the count reaches its compile threshold the Program is
+    compiled to bytecode, which is run from then on.
+    */
+
+    final Program program;
+    final boolean endsInComment;
+    final Program folded;
+    final int[] foldedOperators;
+    final byte[] peaks;
+    int invocations;
+    CompiledProgram compiled;
+
+    CompiledLine(Program program, boolean endsInComment) {
+        this(program, endsInComment, null, null, null);
+    }
+
+    CompiledLine(Program program, boolean endsInComment, Program folded, int[] foldedOperators, byte[] peaks) {
+        this.program = program;
+        this.endsInComment = endsInComment;
+        this.folded = folded;
+        this.foldedOperators = foldedOperators;
+        this.peaks = peaks;
+    }
+
+    public Program program() {
+        return this.program;
+    }
+
+    public Program folded() {
+//      The Program with its constant arithmetic folded, null if there was nothing to fold.
+        return this.folded;
+    }
+
+    public boolean endsInComment() {
+        return this.endsInComment;
+    }
+}
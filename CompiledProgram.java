@@ -0,0 +1,8 @@
+interface CompiledProgram {
+    /*
+    A Program compiled to bytecode by the BytecodeCompiler. Running it has exactly the same effect on the calculator
+    as SRPN.execute() running the Program, which is passed in for the parts the calculator carries on with itself.
+    */
+
+    void run(SRPN calculator, Program program);
+}
@@ -0,0 +1,96 @@
+import java.util.Arrays;
+
+final class ConstantFolder {
+    /*
+    The ConstantFolder works out constant arithmetic in a Program once, when the line is compiled, instead of every
+    time the line is run. An operator whose two operands are numbers pushed by the line itself is replaced by a push
+    of its result, and folding repeats through the Program, so a line like "3*4+2^8" becomes a single push of 268:
+
+        [3, 4, *, 2, 8, ^, +] -> [268]
+
+    The result is worked out with SRPN.apply(), the arithmetic of processOperation, including the saturation after
+    every step, so it is exactly the value the calculator would have pushed. Only two pushes directly followed by an
+    operator are folded, anything in between, such as "r", "d", "=" or an unrecognised character, stops folding. A
+    division by zero is never folded, it has to print its message.
+
+    The one thing folding changes is how deep the stack gets, the folded Program pushes fewer values. That only
+    matters if the original would overflow, so the folded Program is only run when the original cannot overflow
+    from the depth the stack is at. That is worked out for every starting depth when the line is compiled. It can only
+    be known up front if every operator either has its operands or cannot have them whatever the values, a division
+    that is left in the Program may not pop if it divides by zero, so a line like that is not folded at all.
+
+    The calculator's metrics still count the folded operators and the depth the original would have reached, so they
+    are the same whichever Program runs.
+    */
+
+    private ConstantFolder() {}
+
+    static CompiledLine fold(Program program, boolean endsInComment) {
+//      How deep the stack gets depends on what the words of a line do when it runs, so those lines are not folded.
+        if (program.usesWords()) return new CompiledLine(program, endsInComment);
+
+        byte[] code = new byte[program.code.length];
+        double[] constants = new double[program.constants.length];
+        int[] foldedOperators = new int[Program.POWER + 1];
+        int size = 0;
+        int constantsSize = 0;
+        int originalConstant = 0;
+        boolean folded = false;
+
+        for (byte opcode: program.code) {
+            if (opcode == Program.PUSH) {
+                code[size++] = Program.PUSH;
+                constants[constantsSize++] = program.constants[originalConstant++];
+                continue;
+            }
+
+            boolean constantOperands = Program.isOperator(opcode) && size >= 2 && code[size - 1] == Program.PUSH
+                    && code[size - 2] == Program.PUSH;
+            if (constantOperands) {
+//              The constants are saturated when they are pushed, so the operands are the saturated values.
+                double a = SRPN.handleSaturation(constants[constantsSize - 1]);
+                double b = SRPN.handleSaturation(constants[constantsSize - 2]);
+                if (opcode != Program.DIVIDE || a != 0) {
+                    --size;
+                    --constantsSize;
+                    constants[constantsSize - 1] = SRPN.apply(opcode, b, a);
+                    ++foldedOperators[opcode];
+                    folded = true;
+                    continue;
+                }
+            }
+
+            if (opcode == Program.DIVIDE) return new CompiledLine(program, endsInComment);
+            code[size++] = opcode;
+        }
+
+        if (!folded) return new CompiledLine(program, endsInComment);
+
+        Program result = new Program(Arrays.copyOf(code, size), Arrays.copyOf(constants, constantsSize), program.symbols);
+        return new CompiledLine(program, endsInComment, result, foldedOperators, peaks(program));
+    }
+
+    private static byte[] peaks(Program program) {
+//      The deepest the original gets from each starting depth, or -1 if it would overflow from that depth. "r" pushes
+//      as well as PUSH does.
+        byte[] peaks = new byte[OperandStack.CAPACITY + 1];
+
+        for (int start = 0; start <= OperandStack.CAPACITY; ++start) {
+            int depth = start;
+            int peak = start;
+            for (byte opcode: program.code) {
+                if (opcode == Program.PUSH || opcode == Program.RANDOM) {
+                    if (depth == OperandStack.CAPACITY) {
+                        peak = -1;
+                        break;
+                    }
+                    peak = Math.max(peak, ++depth);
+                } else if (Program.isOperator(opcode) && depth >= 2) {
+                    --depth;
+                }
+            }
+            peaks[start] = (byte) peak;
+        }
+        return peaks;
+    }
+}
@@ -0,0 +1,61 @@
+public final class Definition {
+    /*
+    A Definition is a word defined with ": name body ;", its name and its body compiled to a Program once, when the
+    definition is compiled. Running the word runs the body, see SRPN.execute().
+
+    A line is a definition if it starts with ":" and ends with ";", each with whitespace between it and the rest of
+    the line. The name is the first piece of the line after the ":" and has to be made of letters, but not "d" or
+    "r", which are always instructions of their own so a name with them in it could never be used. Any other line is
+    what it has always been, so a line that only looks like a definition still prints its unrecognised characters.
+
+        ": sq 2^ ;" -> sq, [2, ^]        "3 sq =" prints 9
+    */
+
+    private final String name;
+    private final Program body;
+    private final String source;
+
+    Definition(String name, Program body, String source) {
+        this.name = name;
+        this.body = body;
+        this.source = source;
+    }
+
+    public String name() {
+        return this.name;
+    }
+
+    Program body() {
+        return this.body;
+    }
+
+    static Definition parse(CharSequence line, LineCompiler compiler) {
+//      Compiles a definition, or returns null if the line is not one.
+        int start = 0;
+        int end = line.length();
+        while (start < end && Lexer.isWhitespace(line.charAt(start))) ++start;
+        while (end > start && Lexer.isWhitespace(line.charAt(end - 1))) --end;
+
+        if (end - start < 3 || line.charAt(start) != ':' || line.charAt(end - 1) != ';') return null;
+        if (!Lexer.isWhitespace(line.charAt(start + 1)) || !Lexer.isWhitespace(line.charAt(end - 2))) return null;
+
+        int nameStart = start + 1;
+        while (Lexer.isWhitespace(line.charAt(nameStart))) ++nameStart;
+        int nameEnd = nameStart;
+        while (nameEnd < end - 1 && isNameCharacter(line.charAt(nameEnd))) ++nameEnd;
+        if (nameEnd == nameStart || !Lexer.isWhitespace(line.charAt(nameEnd))) return null;
+
+        String name = line.subSequence(nameStart, nameEnd).toString();
+        Program body = compiler.compile(line, nameEnd, end - 1);
+        return new Definition(name, body, line.subSequence(start, end).toString());
+    }
+
+    static boolean isNameCharacter(char c) {
+        return (c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z') && c != 'd' && c != 'r';
+    }
+
+    @Override
+    public String toString() {
+        return this.source;
+    }
+}
@@ -0,0 +1,32 @@
+public enum Diagnostic {
+    /*
+    The messages the calculator prints when it cannot carry out an instruction. Each one has the exact text the legacy
+    calculator printed, the "Unrecognised operator or operand" message also names the operand so it is printed
+    through OutputSink.unrecognised() instead, UNRECOGNISED is only used to identify it. WORD_LIMIT is new, the legacy
+    calculator had no words, see SRPN.invoke().
+    */
+
+    STACK_UNDERFLOW("Stack underflow", "underflow"),
+    STACK_OVERFLOW("Stack overflow.", "overflow"),
+    DIVIDE_BY_ZERO("Divide by 0.", "divide-by-zero"),
+    STACK_EMPTY("Stack empty.", "stack-empty"),
+    WORD_LIMIT("Word limit reached.", "word-limit"),
+    UNRECOGNISED("Unrecognised operator or operand", "unrecognised");
+
+    private final String message;
+    private final String outcome;
+
+    Diagnostic(String message, String outcome) {
+        this.message = message;
+        this.outcome = outcome;
+    }
+
+    public String message() {
+        return this.message;
+    }
+
+    public String outcome() {
+//      A short name for the diagnostic, used where a line's outcome is recorded.
+        return this.outcome;
+    }
+}
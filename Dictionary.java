@@ -0,0 +1,156 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public final class Dictionary {
+    /*
+    A Dictionary holds the words a calculator can run by name, see Definition. Each calculator has a Dictionary of its
+    own for the words defined in its session, and it can have a parent, a library of words shared by many sessions,
+    looked in for any word the session has not defined itself. A library is compiled once and then frozen, it is
+    read only from then on, so any number of calculators on any number of threads can share it.
+
+    Every definition adds one to the version of the Dictionary. Call sites cache the Definition a name resolved to
+    together with the version, and only look the name up again once the version has changed, except in the words of a
+    frozen library, which every session resolves against its own Dictionary, see CallSite.
+
+    writeTo() and readFrom() save the words of a session as part of a calculator's snapshot: the number of words in a
+    short, then the source of each definition, its length in a short and its characters. A Dictionary can be given a
+    limit on the bytes its words take that way, so a snapshot has a fixed largest size, see fits().
+    */
+
+    private final Dictionary parent;
+    private final Map<String, Definition> words;
+    private final int maxEncodedSize;
+    private int encodedSize;
+    private LineCompiler compiler;
+    private long version;
+    private volatile boolean frozen;
+
+    public Dictionary() {
+        this(null);
+    }
+
+    public Dictionary(Dictionary parent) {
+        this(parent, Integer.MAX_VALUE);
+    }
+
+    Dictionary(Dictionary parent, int maxEncodedSize) {
+        if (parent != null && !parent.frozen) throw new IllegalArgumentException("A parent Dictionary must be frozen");
+
+        this.parent = parent;
+        this.words = new LinkedHashMap<>();
+        this.maxEncodedSize = maxEncodedSize;
+        this.encodedSize = Short.BYTES;
+    }
+
+    public Dictionary parent() {
+        return this.parent;
+    }
+
+    public void define(CharSequence definition) {
+//      Defines a word from a line such as ": sq 2^ ;".
+        if (this.compiler == null) this.compiler = new LineCompiler();
+        Definition word = Definition.parse(definition, this.compiler);
+        if (word == null) throw new IllegalArgumentException("Not a definition: " + definition);
+        define(word);
+    }
+
+    void define(Definition definition) {
+        if (this.frozen) throw new IllegalStateException("Dictionary is frozen");
+        if (!fits(definition)) throw new IllegalStateException("No room for the definition of " + definition.name());
+        this.encodedSize = encodedSizeWith(definition);
+        this.words.put(definition.name(), definition);
+        ++this.version;
+    }
+
+    boolean fits(Definition definition) {
+//      Whether the words would still be within the limit of the Dictionary with definition added.
+        return encodedSizeWith(definition) <= this.maxEncodedSize;
+    }
+
+    private int encodedSizeWith(Definition definition) {
+        Definition replaced = this.words.get(definition.name());
+        int size = this.encodedSize + encodedSize(definition);
+        return replaced != null ? size - encodedSize(replaced) : size;
+    }
+
+    private static int encodedSize(Definition definition) {
+        return Short.BYTES + definition.toString().length() * Character.BYTES;
+    }
+
+    public Definition lookup(String name) {
+//      The Definition of a word, from this Dictionary or its parent, or null if it is not defined.
+        Definition definition = this.words.get(name);
+        if (definition == null && this.parent != null) definition = this.parent.lookup(name);
+        return definition;
+    }
+
+    void clear() {
+//      Forgets the words of this Dictionary, the parent keeps its own.
+        if (this.frozen) throw new IllegalStateException("Dictionary is frozen");
+        if (this.words.isEmpty()) return;
+        this.words.clear();
+        this.encodedSize = Short.BYTES;
+        ++this.version;
+    }
+
+    int encodedSize() {
+//      The number of bytes writeTo() writes.
+        return this.encodedSize;
+    }
+
+    void writeTo(ByteBuffer buffer) {
+        buffer.putShort((short) this.words.size());
+        for (Definition definition: this.words.values()) {
+            String source = definition.toString();
+            buffer.putShort((short) source.length());
+            for (int i = 0; i < source.length(); ++i) buffer.putChar(source.charAt(i));
+        }
+    }
+
+    void readFrom(ByteBuffer buffer) {
+        /*
+        Adds the words written by writeTo() to this Dictionary. A word that is not a definition, or that does not fit,
+        throws an IllegalArgumentException, so a Dictionary that is read into should be new and discarded then.
+        */
+
+        try {
+            int count = buffer.getShort() & 0xFFFF;
+            StringBuilder source = new StringBuilder();
+            for (int i = 0; i < count; ++i) {
+                int length = buffer.getShort() & 0xFFFF;
+                if (length * Character.BYTES > buffer.remaining()) throw new IllegalArgumentException("Truncated words");
+                source.setLength(0);
+                for (int j = 0; j < length; ++j) source.append(buffer.getChar());
+
+                if (this.compiler == null) this.compiler = new LineCompiler();
+                Definition definition = Definition.parse(source, this.compiler);
+                if (definition == null) throw new IllegalArgumentException("Not a definition: " + source);
+                if (!fits(definition)) throw new IllegalArgumentException("Too many words");
+                define(definition);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated words", e);
+        }
+    }
+
+    long version() {
+        return this.version;
+    }
+
+    public int size() {
+        return this.words.size();
+    }
+
+    public Dictionary freeze() {
+//      Makes the Dictionary read only, so it can be the parent of other Dictionaries. Returns this Dictionary.
+        for (Definition definition: this.words.values()) CallSite.share(definition.body());
+        this.frozen = true;
+        return this;
+    }
+
+    public boolean isFrozen() {
+        return this.frozen;
+    }
+}
@@ -0,0 +1,85 @@
+final class IntArithmetic {
+    /*
+    IntArithmetic is the calculator's arithmetic on ints, for the common case of two operands that are whole numbers.
+    It gives exactly the value SRPN.apply() gives for the same operands, which works in doubles and saturates after
+    every step, without converting to or from a double:
+
+        add, subtract and multiply are worked out in a long, where they cannot overflow, and then saturated,
+        divide and modulo are exact in a long as well, and "^" is worked out by squaring, saturating as it goes.
+
+    Not every result of two whole numbers is a whole number. A division that does not come out even leaves a
+    fraction, modulo by zero is NaN, and a zero can be the -0.0 of a double, "0 * -5", "0 / -5" and "-4 % 2" all give
+    -0.0. apply() returns NOT_AN_INT for those, the caller works them out with SRPN.apply() instead.
+    */
+
+//  Returned by apply() when the result is not a whole number, every other result is in the range of an int.
+    static final long NOT_AN_INT = Long.MIN_VALUE;
+
+//  The magnitude "^" stops at, anything from here on saturates.
+    private static final long POWER_LIMIT = 1L << 31;
+
+    private IntArithmetic() {}
+
+    static long apply(byte operation, int b, int a) {
+//      The result of b operation a, saturated, or NOT_AN_INT.
+        return switch (operation) {
+            case Program.ADD -> saturate((long) b + a);
+            case Program.SUBTRACT -> saturate((long) b - a);
+            case Program.MULTIPLY -> multiply(b, a);
+            case Program.DIVIDE -> divide(b, a);
+            case Program.MODULO -> modulo(b, a);
+            case Program.POWER -> power(b, a);
+            default -> throw new IllegalStateException("Unexpected value: " + operation);
+        };
+    }
+
+    private static long multiply(int b, int a) {
+        long result = (long) b * a;
+//      A zero times a negative number is -0.0.
+        if (result == 0 && (a < 0 || b < 0)) return NOT_AN_INT;
+        return saturate(result);
+    }
+
+    private static long divide(int b, int a) {
+        if (a == 0 || (long) b % a != 0) return NOT_AN_INT;
+        if (b == 0 && a < 0) return NOT_AN_INT;
+//      Integer.MIN_VALUE / -1 is one more than Integer.MAX_VALUE, which is why this is done in a long.
+        return saturate((long) b / a);
+    }
+
+    private static long modulo(int b, int a) {
+        if (a == 0) return NOT_AN_INT;
+        long result = (long) b % a;
+//      The result has the sign of b, so a zero from a negative b is -0.0.
+        if (result == 0 && b < 0) return NOT_AN_INT;
+        return result;
+    }
+
+    private static long power(int b, int a) {
+        /*
+        (int) Math.pow(b, a) for whole numbers: pow() is exact for any result a double can hold, and the cast saturates
+        and drops the fraction of a negative power. So a negative power is 0 unless b is 1 or -1, or 0, which is
+        infinity and so Integer.MAX_VALUE.
+        */
+
+        boolean negative = b < 0 && (a & 1) == 1;
+        if (a < 0) {
+            if (b == 0) return Integer.MAX_VALUE;
+            if (b == 1 || b == -1) return negative ? -1 : 1;
+            return 0;
+        }
+
+        long base = Math.abs((long) b);
+        long result = 1;
+        for (int exponent = a; exponent > 0; exponent >>>= 1) {
+            if ((exponent & 1) == 1) result = Math.min(result * base, POWER_LIMIT);
+            base = Math.min(base * base, POWER_LIMIT);
+        }
+        return saturate(negative ? -result : result);
+    }
+
+    static long saturate(long number) {
+//      The same as SRPN.handleSaturation() for a long.
+        return Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, number));
+    }
+}
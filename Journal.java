@@ -0,0 +1,407 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongFunction;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+public final class Journal implements AutoCloseable {
+    /*
+    The Journal is a write-ahead log of the lines calculators have been given, so their sessions can be rebuilt after
+    a crash. A calculator with a journal, see SRPN.setJournal(), appends every line to it before running the line,
+    tagged with the id of its session. Every line gets a sequence number, one more than the line before it.
+
+    Appending only copies the line into a buffer. A committer thread writes the buffer out and forces it to disk at
+    most once every commit window, so the lines of many sessions are made durable by one force(), a group commit.
+    awaitDurable() waits for a line to be on disk, for callers that must not answer before it is.
+
+    The log is kept in segments in one directory, each a file named after the sequence number of its first line. A
+    segment that has grown past the segment size is closed and the next batch starts a new one. Each line is a record:
+
+        length (int), sequence (long), session (long), the line's chars, CRC32C of everything before it (int)
+
+    A char takes one to three bytes, as in CESU-8, so any line comes back exactly as it was. A record cut short by a
+    crash fails its checksum, replay() stops there and opening the journal again cuts it off.
+
+    Recovery restores a SnapshotFile and replays the journal from the sequence number it was taken at, see recover().
+    Once a snapshot has been taken, compact() deletes the segments it covers.
+    */
+
+    public static final int DEFAULT_SEGMENT_BYTES = 64 << 20;
+    public static final long DEFAULT_COMMIT_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".log";
+    private static final int HEADER_BYTES = Integer.BYTES + Long.BYTES + Long.BYTES;
+    private static final int RECORD_BYTES = HEADER_BYTES + Integer.BYTES;
+    private static final int BUFFER_BYTES = 1 << 20;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long commitWindowNanos;
+
+    private final ReentrantLock lock;
+    private final Condition appended;
+    private final Condition committed;
+//  Lines are appended to filling while the committer writes out writing, they swap at every commit.
+    private ByteBuffer filling;
+    private ByteBuffer writing;
+    private final CRC32C checksum;
+    private long nextSequence;
+    private long firstPendingSequence;
+    private volatile long durableSequence;
+    private IOException failure;
+    private boolean closed;
+
+    private FileChannel segment;
+    private long segmentSize;
+    private final Thread committer;
+
+    public Journal(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_BYTES, DEFAULT_COMMIT_WINDOW_NANOS);
+    }
+
+    public Journal(Path directory, int segmentBytes, long commitWindowNanos) throws IOException {
+        /*
+        Opens the journal in directory, creating it if there is none. The lines of an existing journal are kept, a
+        torn record at the end of it is cut off and numbering carries on from the last whole line.
+        */
+
+        if (segmentBytes < 1) throw new IllegalArgumentException("Segment size must be at least 1: " + segmentBytes);
+        if (commitWindowNanos < 0) throw new IllegalArgumentException("Commit window must not be negative");
+
+        this.directory = Files.createDirectories(directory);
+        this.segmentBytes = segmentBytes;
+        this.commitWindowNanos = commitWindowNanos;
+        this.lock = new ReentrantLock();
+        this.appended = this.lock.newCondition();
+        this.committed = this.lock.newCondition();
+        this.filling = ByteBuffer.allocateDirect(BUFFER_BYTES);
+        this.writing = ByteBuffer.allocateDirect(BUFFER_BYTES);
+        this.checksum = new CRC32C();
+
+        long last = 0;
+        List<Path> segments = segments(directory);
+        for (int i = 0; i < segments.size(); ++i) {
+            Path path = segments.get(i);
+            long[] end = {firstSequence(path) - 1};
+            long valid = scan(path, 0, (sequence, session, line) -> end[0] = sequence);
+            if (i == segments.size() - 1 && valid == 0) {
+                Files.delete(path);
+            } else if (i == segments.size() - 1 && valid < Files.size(path)) {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    channel.truncate(valid);
+                    channel.force(true);
+                }
+            }
+            last = Math.max(last, end[0]);
+        }
+        this.nextSequence = last + 1;
+        this.firstPendingSequence = this.nextSequence;
+        this.durableSequence = last;
+
+        this.committer = new Thread(this::commitLoop, "journal-committer");
+        this.committer.setDaemon(true);
+        this.committer.start();
+    }
+
+    public long append(long session, CharSequence line) {
+//      Appends a line of a session, returning its sequence number. The line is on disk within one commit window.
+        int length = line.length();
+        this.lock.lock();
+        try {
+            checkOpen();
+            int size = RECORD_BYTES + encodedLength(line, length);
+            while (this.filling.remaining() < size) {
+                if (this.filling.position() == 0) {
+                    this.filling = ByteBuffer.allocateDirect(Math.max(size, 2 * this.filling.capacity()));
+                    break;
+                }
+                this.appended.signal();
+                this.committed.awaitUninterruptibly();
+                checkOpen();
+            }
+
+            ByteBuffer buffer = this.filling;
+            long sequence = this.nextSequence++;
+            int start = buffer.position();
+            buffer.putInt(size);
+            buffer.putLong(sequence);
+            buffer.putLong(session);
+            for (int i = 0; i < length; ++i) putChar(buffer, line.charAt(i));
+
+            int end = buffer.position();
+            this.checksum.reset();
+            this.checksum.update(buffer.limit(end).position(start));
+            buffer.limit(buffer.capacity());
+            buffer.putInt((int) this.checksum.getValue());
+
+            if (start == 0) this.appended.signal();
+            return sequence;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public void awaitDurable(long sequence) {
+//      Waits until the line with the given sequence number, and every line before it, has been forced to disk.
+        if (this.durableSequence >= sequence) return;
+
+        this.lock.lock();
+        try {
+            while (this.durableSequence < sequence) {
+                if (this.failure != null) throw new UncheckedIOException(this.failure);
+                if (this.closed && !this.committer.isAlive()) throw new IllegalStateException("Journal is closed");
+                this.committed.awaitUninterruptibly();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public long lastSequence() {
+//      The sequence number of the last line appended, 0 if there is none.
+        this.lock.lock();
+        try {
+            return this.nextSequence - 1;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public long durableSequence() {
+        return this.durableSequence;
+    }
+
+    public int compact(long covered) throws IOException {
+        /*
+        Deletes the segments whose lines all have sequence numbers of at most covered, once a snapshot has been taken
+        that covers them. The segment being written to is never deleted. Returns the number of segments deleted.
+        */
+
+        List<Path> segments = segments(this.directory);
+        int deleted = 0;
+        for (int i = 0; i + 1 < segments.size(); ++i) {
+            if (firstSequence(segments.get(i + 1)) > covered + 1) break;
+            Files.delete(segments.get(i));
+            ++deleted;
+        }
+        return deleted;
+    }
+
+    @Override
+    public void close() throws IOException {
+//      Writes out and forces everything appended so far, then closes the journal.
+        this.lock.lock();
+        try {
+            this.closed = true;
+            this.appended.signal();
+        } finally {
+            this.lock.unlock();
+        }
+
+        try {
+            this.committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (this.segment != null) this.segment.close();
+        if (this.failure != null) throw this.failure;
+    }
+
+    private void commitLoop() {
+        while (true) {
+            long last;
+            long first;
+            boolean done;
+            this.lock.lock();
+            try {
+//              Waits for a line, then for the rest of the commit window so that lines appended meanwhile join it.
+                while (this.filling.position() == 0 && !this.closed) this.appended.awaitUninterruptibly();
+                long window = this.commitWindowNanos;
+                while (window > 0 && !this.closed && this.filling.position() < this.filling.capacity() / 2) {
+                    try {
+                        window = this.appended.awaitNanos(window);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+
+                ByteBuffer full = this.filling;
+                this.filling = this.writing;
+                this.writing = full;
+                last = this.nextSequence - 1;
+                first = this.firstPendingSequence;
+                this.firstPendingSequence = this.nextSequence;
+                done = this.closed;
+                this.committed.signalAll();
+            } finally {
+                this.lock.unlock();
+            }
+
+            try {
+                if (this.writing.position() > 0) write(this.writing.flip(), first);
+                this.writing.clear();
+            } catch (IOException e) {
+                this.lock.lock();
+                try {
+                    this.failure = e;
+                    this.closed = true;
+                    this.committed.signalAll();
+                } finally {
+                    this.lock.unlock();
+                }
+                return;
+            }
+
+            this.lock.lock();
+            try {
+                this.durableSequence = last;
+                this.committed.signalAll();
+                if (done && this.filling.position() == 0) return;
+            } finally {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    private void write(ByteBuffer batch, long firstSequence) throws IOException {
+//      Writes a batch of records and forces it, starting a new segment first if the current one is full.
+        if (this.segment == null || this.segmentSize >= this.segmentBytes) {
+            if (this.segment != null) this.segment.close();
+            Path path = this.directory.resolve(String.format("%s%020d%s", PREFIX, firstSequence, SUFFIX));
+            this.segment = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            this.segmentSize = 0;
+        }
+
+        while (batch.hasRemaining()) this.segmentSize += this.segment.write(batch);
+        this.segment.force(false);
+    }
+
+    private void checkOpen() {
+        if (this.failure != null) throw new UncheckedIOException(this.failure);
+        if (this.closed) throw new IllegalStateException("Journal is closed");
+    }
+
+    public static long replay(Path directory, long after, Replay replay) throws IOException {
+        /*
+        Passes every line of the journal in directory with a sequence number greater than after to replay, in order.
+        Returns the sequence number of the last line passed, or after if there was none.
+        */
+
+        long[] last = {after};
+        for (Path path: segments(directory)) {
+            scan(path, after, (sequence, session, line) -> {
+                replay.line(sequence, session, line);
+                last[0] = sequence;
+            });
+        }
+        return last[0];
+    }
+
+    public static long recover(Path snapshot, Path directory, LongFunction<SRPN> sessions) throws IOException {
+        /*
+        Rebuilds the sessions from a SnapshotFile, if there is one, and the lines journalled since it was taken.
+        sessions gives the calculator for each session id, which should not have a journal yet, or replaying the
+        lines would journal them again. Returns the sequence number of the last line replayed.
+        */
+
+        long after = 0;
+        if (Files.exists(snapshot)) {
+            SnapshotFile.read(snapshot, sessions);
+            after = SnapshotFile.journalSequence(snapshot);
+        }
+        return replay(directory, after, (sequence, session, line) -> sessions.apply(session).processCommand(line));
+    }
+
+    public interface Replay {
+        void line(long sequence, long session, CharSequence line);
+    }
+
+    private static long scan(Path path, long after, Replay replay) throws IOException {
+//      Reads the records of a segment, returning the length of the part that holds whole records.
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CRC32C checksum = new CRC32C();
+            StringBuilder line = new StringBuilder();
+
+            while (buffer.remaining() >= RECORD_BYTES) {
+                int start = buffer.position();
+                int size = buffer.getInt(start);
+                if (size < RECORD_BYTES || size > buffer.remaining()) break;
+
+                checksum.reset();
+                checksum.update(buffer.duplicate().position(start).limit(start + size - Integer.BYTES));
+                if (buffer.getInt(start + size - Integer.BYTES) != (int) checksum.getValue()) break;
+
+                long sequence = buffer.getLong(start + Integer.BYTES);
+                long session = buffer.getLong(start + Integer.BYTES + Long.BYTES);
+                if (sequence > after) {
+                    line.setLength(0);
+                    buffer.position(start + HEADER_BYTES);
+                    while (buffer.position() < start + size - Integer.BYTES) line.append(getChar(buffer));
+                    replay.line(sequence, session, line);
+                }
+                buffer.position(start + size);
+            }
+            return buffer.position();
+        }
+    }
+
+    private static List<Path> segments(Path directory) throws IOException {
+//      The segments in directory, oldest first.
+        List<Path> segments = new ArrayList<>();
+        if (!Files.isDirectory(directory)) return segments;
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(path -> {
+                String name = path.getFileName().toString();
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+            }).sorted().forEach(segments::add);
+        }
+        return segments;
+    }
+
+    private static long firstSequence(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    private static int encodedLength(CharSequence line, int length) {
+        int bytes = length;
+        for (int i = 0; i < length; ++i) {
+            char c = line.charAt(i);
+            if (c >= 0x80) bytes += c >= 0x800 ? 2 : 1;
+        }
+        return bytes;
+    }
+
+    private static void putChar(ByteBuffer buffer, char c) {
+        if (c < 0x80) {
+            buffer.put((byte) c);
+        } else if (c < 0x800) {
+            buffer.put((byte) (0xc0 | c >> 6));
+            buffer.put((byte) (0x80 | c & 0x3f));
+        } else {
+            buffer.put((byte) (0xe0 | c >> 12));
+            buffer.put((byte) (0x80 | c >> 6 & 0x3f));
+            buffer.put((byte) (0x80 | c & 0x3f));
+        }
+    }
+
+    private static char getChar(ByteBuffer buffer) {
+        int b = buffer.get() & 0xff;
+        if (b < 0x80) return (char) b;
+        if (b < 0xe0) return (char) ((b & 0x1f) << 6 | buffer.get() & 0x3f);
+        return (char) ((b & 0x0f) << 12 | (buffer.get() & 0x3f) << 6 | buffer.get() & 0x3f);
+    }
+}
@@ -0,0 +1,188 @@
+public class Lexer {
+    /*
+    The Lexer turns a line of input into typed tokens in a single pass over its characters. It replaces the regex
+    splitting the calculator used to do, but keeps the legacy rules for how a line is broken up:
+
+    - whitespace separates independent pieces of input, each piece is treated as if it was entered on its own line.
+
+    - "d", "r", "=" and the operators "+*%/^" are always tokens of their own.
+
+    - "-" is only part of a number when it is followed by a digit and starts a run of characters, otherwise it is the
+    subtraction operator. So "10--5" is [10, -, -5] and "4-5" is [4, -, 5].
+
+    - a run of characters that is not a number is split into single characters. So "5test" is [5, t, e, s, t], digits
+    become numbers and anything else is unknown.
+
+    The Lexer is used like a cursor, next() returns the type of the next token and the number() and symbol() methods
+    return the value of that token. Nothing is allocated per token so one Lexer can be reused for every line.
+    */
+
+    public enum Token { NUMBER, OPERATOR, DISPLAY, RANDOM, EQUALS, UNKNOWN, SEPARATOR, END }
+
+    private CharSequence input;
+    private int position;
+    private int length;
+    private int runStart;
+    private int runEnd;
+    private int explodeEnd;
+    private double number;
+    private char symbol;
+
+    public Lexer() {
+        reset("");
+    }
+
+    public Lexer reset(CharSequence input) {
+        return reset(input, 0, input.length());
+    }
+
+    public Lexer reset(CharSequence input, int start, int end) {
+        this.input = input;
+        this.position = start;
+        this.length = end;
+        this.runStart = start;
+        this.runEnd = start;
+        this.explodeEnd = start;
+        return this;
+    }
+
+    public double number() {
+        return this.number;
+    }
+
+    public char symbol() {
+        return this.symbol;
+    }
+
+    public Token next() {
+//      We are in the middle of a run that is being split into single characters.
+        if (this.position < this.explodeEnd) return single(this.input.charAt(this.position++));
+
+//      We are in the middle of a run of characters, for example the "4-5" in "1+4-5".
+        if (this.position < this.runEnd) return nextInRun();
+
+        if (this.position >= this.length) return Token.END;
+
+        char c = this.input.charAt(this.position);
+
+        if (isWhitespace(c)) {
+            while (this.position < this.length && isWhitespace(this.input.charAt(this.position))) ++this.position;
+            return Token.SEPARATOR;
+        }
+
+        if (isDelimiter(this.position)) {
+            ++this.position;
+            return symbolToken(c);
+        }
+
+//      Anything else starts a run which ends at whitespace or at a delimiter.
+        this.runStart = this.position;
+        this.runEnd = this.position + 1;
+        while (this.runEnd < this.length) {
+            char next = this.input.charAt(this.runEnd);
+            if (isWhitespace(next) || isDelimiter(this.runEnd)) break;
+            ++this.runEnd;
+        }
+
+        return nextInRun();
+    }
+
+    private Token nextInRun() {
+        int start = this.position;
+
+//      A "-" inside a run is always an operator unless it is the first character of the run.
+        if (this.input.charAt(start) == '-' && start != this.runStart) {
+            ++this.position;
+            this.symbol = '-';
+            return Token.OPERATOR;
+        }
+
+        int end = start + 1;
+        while (end < this.runEnd && this.input.charAt(end) != '-') ++end;
+
+        if (isNumber(this.input, start, end)) {
+            this.number = parseNumber(this.input, start, end);
+            this.position = end;
+            return Token.NUMBER;
+        }
+
+        this.explodeEnd = end;
+        return single(this.input.charAt(this.position++));
+    }
+
+    private Token single(char c) {
+        if (isDigit(c)) {
+            this.number = c - '0';
+            return Token.NUMBER;
+        }
+
+        if (c == '-') {
+            this.symbol = c;
+            return Token.OPERATOR;
+        }
+
+        this.symbol = c;
+        return Token.UNKNOWN;
+    }
+
+    private Token symbolToken(char c) {
+        this.symbol = c;
+
+        return switch (c) {
+            case 'd' -> Token.DISPLAY;
+            case 'r' -> Token.RANDOM;
+            case '=' -> Token.EQUALS;
+            default -> Token.OPERATOR;
+        };
+    }
+
+    private boolean isDelimiter(int index) {
+//      Only count "-" as an operator if it is not followed by a digit.
+        char c = this.input.charAt(index);
+        if (c == '-') return index + 1 >= this.length || !isDigit(this.input.charAt(index + 1));
+        return c == 'd' || c == 'r' || c == '=' || isOperator(c);
+    }
+
+    public static boolean isOperator(char c) {
+        return c == '+' || c == '-' || c == '*' || c == '/' || c == '%' || c == '^';
+    }
+
+    public static boolean isWhitespace(char c) {
+//      The same characters as the regex "\s".
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    public static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    public static boolean isNumber(CharSequence s, int start, int end) {
+//      Equivalent to the regex "-?\d+".
+        if (start < end && s.charAt(start) == '-') ++start;
+        if (start >= end) return false;
+
+        for (int i = start; i < end; ++i) {
+            if (!isDigit(s.charAt(i))) return false;
+        }
+
+        return true;
+    }
+
+    public static double parseNumber(CharSequence s, int start, int end) {
+        /*
+        Parses a string matching "-?\d+". Anything above the range of an integer will be saturated by the calculator,
+        so once the value is well outside that range we stop accumulating digits. Like Double.parseDouble, "-0" gives
+        negative zero.
+        */
+
+        boolean negative = s.charAt(start) == '-';
+        if (negative) ++start;
+
+        long value = 0;
+        for (int i = start; i < end; ++i) {
+            if (value < 1L << 32) value = value * 10 + (s.charAt(i) - '0');
+        }
+
+        return negative ? -(double) value : (double) value;
+    }
+}
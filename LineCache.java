@@ -0,0 +1,135 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class LineCache {
+    /*
+    The LineCache is a bounded least recently used cache of lines the calculator has already compiled. It maps a raw
+    line of input to its CompiledLine, so a line that is entered again skips the Lexer and the LineCompiler entirely.
+
+    The same text means different things depending on whether a multi-line comment is open when it is entered, for
+    example "1 2 + # 3" adds 1 and 2 outside a comment but only closes the comment inside one. So the key is the
+    line together with the comment state it was entered in.
+
+    Lookups take any CharSequence and are made with a reusable probe key, a lookup that hits does not allocate. The
+    cache counts hits, misses and evictions. A LineCache is not thread safe, each calculator has its own.
+
+    Lines longer than MAX_LINE_LENGTH are not cached. A line that long is rarely entered twice, and keeping it would
+    hold its text and its Programs, which grow with it, for as long as it stays in the cache.
+    */
+
+    public static final int DEFAULT_CAPACITY = 1024;
+    public static final int MAX_LINE_LENGTH = 4096;
+
+    private final int capacity;
+    private final LinkedHashMap<Key, CompiledLine> lines;
+    private final Key probe;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public LineCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public LineCache(int capacity) {
+        if (capacity < 0) throw new IllegalArgumentException("Capacity must not be negative: " + capacity);
+
+        this.capacity = capacity;
+        this.probe = new Key();
+        this.lines = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CompiledLine> eldest) {
+                if (size() <= LineCache.this.capacity) return false;
+                ++LineCache.this.evictions;
+                return true;
+            }
+        };
+    }
+
+    public CompiledLine get(CharSequence line, boolean inComment) {
+        CompiledLine compiled = this.lines.get(this.probe.set(line, inComment));
+        this.probe.line = null;
+
+        if (compiled == null) {
+            ++this.misses;
+        } else {
+            ++this.hits;
+        }
+
+        return compiled;
+    }
+
+    public void put(CharSequence line, boolean inComment, CompiledLine compiled) {
+        if (this.capacity == 0 || line.length() > MAX_LINE_LENGTH) return;
+        this.lines.put(new Key().set(line.toString(), inComment), compiled);
+    }
+
+    public int size() {
+        return this.lines.size();
+    }
+
+    public int capacity() {
+        return this.capacity;
+    }
+
+    public long hits() {
+        return this.hits;
+    }
+
+    public long misses() {
+        return this.misses;
+    }
+
+    public long evictions() {
+        return this.evictions;
+    }
+
+    public void clear() {
+        this.lines.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "LineCache[size=" + size() + ", capacity=" + this.capacity + ", hits=" + this.hits + ", misses="
+                + this.misses + ", evictions=" + this.evictions + "]";
+    }
+
+    private static final class Key {
+//      Keys stored in the map hold a String, the probe holds whatever CharSequence is being looked up.
+        CharSequence line;
+        boolean inComment;
+        int hash;
+
+        Key set(CharSequence line, boolean inComment) {
+            this.line = line;
+            this.inComment = inComment;
+
+            int hash = inComment ? 1 : 0;
+            for (int i = 0, length = line.length(); i < length; ++i) hash = 31 * hash + line.charAt(i);
+            this.hash = hash;
+
+            return this;
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key other)) return false;
+            if (this.hash != other.hash || this.inComment != other.inComment) return false;
+
+            CharSequence a = this.line;
+            CharSequence b = other.line;
+            if (a.length() != b.length()) return false;
+            for (int i = 0, length = a.length(); i < length; ++i) {
+                if (a.charAt(i) != b.charAt(i)) return false;
+            }
+
+            return true;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class LineCompiler {
+    /*
+    The LineCompiler turns a line of input into a Program. It reads the tokens of the line from a Lexer and uses the
+    shunting yard algorithm to put them in the order the legacy calculator processes them, so a line is only parsed
+    once and the Program can be run by the calculator as many times as needed.
+
+    A LineCompiler keeps its buffers between calls, it is not safe to use one from several threads at once.
+    */
+
+    private final Lexer lexer;
+    private char[] operators;
+    private byte[] code;
+    private double[] constants;
+    private char[] symbols;
+    private final StringBuilder word;
+    private final List<CallSite> sites;
+    private int codeSize;
+    private int constantsSize;
+    private int symbolsSize;
+
+    public LineCompiler() {
+        this.lexer = new Lexer();
+        this.operators = new char[16];
+        this.code = new byte[64];
+        this.constants = new double[32];
+        this.symbols = new char[8];
+        this.word = new StringBuilder();
+        this.sites = new ArrayList<>();
+    }
+
+    public Program compile(CharSequence line) {
+        return compile(line, 0, line.length());
+    }
+
+    public Program compile(CharSequence line, int start, int end) {
+        this.codeSize = 0;
+        this.constantsSize = 0;
+        this.symbolsSize = 0;
+        this.sites.clear();
+
+        handleInfix(this.lexer.reset(line, start, end));
+
+        if (this.codeSize == 0) return Program.EMPTY;
+
+        return new Program(Arrays.copyOf(this.code, this.codeSize), Arrays.copyOf(this.constants, this.constantsSize),
+                Arrays.copyOf(this.symbols, this.symbolsSize), this.sites.toArray(Program.NO_SITES), Program.NO_DEFINITIONS);
+    }
+
+    private void handleInfix(Lexer lexer) {
+    /*
+        This method handles the infix behaviour the legacy calculator produces. It takes a Lexer positioned at the
+        start of a line and emits an instruction for each token in the correct order for the polish calculator to
+        process. Whitespace separates the line into pieces which are handled independently, as if each was entered on
+        its own line.
+
+        This method uses the precedence() helper to find the order of precedence an operator has, in the case the
+        lower the value the higher the precedence.
+
+        Then there is a loop over all the tokens. If a token is not an operator it is emitted straight away. If a
+        token is an operator then it will pop and emit all operators from the operator stack until the operator at
+        the top of the stack is of equal or less precedence, then the operator will be added to the operator stack. A
+        "d" pops and emits every operator before it is emitted itself.
+
+        Finally at the end of each piece if there are any operators remaining on the stack they are emitted.
+
+        A run of letters is a word, it is emitted as an INVOKE of its name, see Dictionary. The letters were each an
+        unknown symbol emitted in place, and that is what a word that is not defined does when it is run.
+
+        For Example:
+
+            "10+2-3+10*2" -> [10, +, 2, -, 3, +, 10, *, 2] -> [10, 2, +, 3, 10, 2, *, +, -].
+
+        We end up with a slightly modified version of Bodmas where precedence is respected but calculations are made
+        right to left instead of left to right. This implementation is a slightly modified implementation of Dijskra's
+        shunting yard algorithm, for more information see https://brilliant.org/wiki/shunting-yard-algorithm/.
+     */
+
+        int operators = 0;
+
+        while (true) {
+            Lexer.Token token = lexer.next();
+
+            if (token == Lexer.Token.UNKNOWN && Definition.isNameCharacter(lexer.symbol())) {
+                this.word.append(lexer.symbol());
+                continue;
+            }
+            if (this.word.length() > 0) emitWord();
+
+            switch (token) {
+                case NUMBER -> emitConstant(lexer.number());
+                case RANDOM -> emit(Program.RANDOM);
+                case EQUALS -> emit(Program.EQUALS);
+                case UNKNOWN -> emitSymbol(lexer.symbol());
+                case OPERATOR -> {
+                    char operator = lexer.symbol();
+                    while (operators > 0 && precedence(this.operators[operators - 1]) < precedence(operator)) {
+                        emit(Program.operatorCode(this.operators[--operators]));
+                    }
+                    if (operators == this.operators.length) {
+                        this.operators = Arrays.copyOf(this.operators, operators * 2);
+                    }
+                    this.operators[operators++] = operator;
+                }
+                case DISPLAY -> {
+                    while (operators > 0) emit(Program.operatorCode(this.operators[--operators]));
+                    emit(Program.DISPLAY);
+                }
+                case SEPARATOR, END -> {
+                    while (operators > 0) emit(Program.operatorCode(this.operators[--operators]));
+                    if (token == Lexer.Token.END) return;
+                }
+            }
+        }
+    }
+
+    static int precedence(char operator) {
+        return switch (operator) {
+            case '^' -> 0;
+            case '%' -> 1;
+            case '*', '/' -> 2;
+            case '+' -> 3;
+            case '-' -> 4;
+            default -> throw new IllegalStateException("Unexpected value: " + operator);
+        };
+    }
+
+    private void emit(byte opcode) {
+        if (this.codeSize == this.code.length) this.code = Arrays.copyOf(this.code, this.codeSize * 2);
+        this.code[this.codeSize++] = opcode;
+    }
+
+    private void emitConstant(double value) {
+        if (this.constantsSize == this.constants.length) {
+            this.constants = Arrays.copyOf(this.constants, this.constantsSize * 2);
+        }
+        this.constants[this.constantsSize++] = value;
+        emit(Program.PUSH);
+    }
+
+    private void emitWord() {
+        this.sites.add(new CallSite(this.word.toString()));
+        this.word.setLength(0);
+        emit(Program.INVOKE);
+    }
+
+    private void emitSymbol(char symbol) {
+        if (this.symbolsSize == this.symbols.length) this.symbols = Arrays.copyOf(this.symbols, this.symbolsSize * 2);
+        this.symbols[this.symbolsSize++] = symbol;
+        emit(Program.UNKNOWN);
+    }
+}
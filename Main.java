@@ -1,16 +1,117 @@
 import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 class Main {
 
+    // Files are memory mapped in windows of this size, a window is remapped from the
+    // start of the last line when a line crosses the end of it
+    private static final long MAP_WINDOW = 1L << 30;
+
     // main method
     // reads in input from the command line
     // and passes this input to the processCommand method in SRPN
+    // with --file <path> it reads the lines of a file instead
+    // with --stream it evaluates the input without reading whole lines into memory
+    // with --server <port> it serves a calculator to each TCP connection instead, see Client
+    // with --thread-server <port> it does the same with a thread for each connection
+    // with --pipeline it reads, evaluates and prints stdin on three threads, see Pipeline
+
+    private static final String USAGE = "Usage: java Main [--file <path> | --stream | --pipeline | --server <port> [event loops] | --thread-server <port>]";
 
     public static void main(String[] args) {
+        if(args.length > 0 && args[0].equals("--file")) {
+            if(args.length != 2) {
+                System.err.println(USAGE);
+                System.exit(2);
+            }
+            try {
+                runFile(Path.of(args[1]));
+                System.exit(0);
+            }
+            catch(IOException | UncheckedIOException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        if(args.length > 0 && args[0].equals("--server")) {
+            if(args.length < 2 || args.length > 3) {
+                System.err.println(USAGE);
+                System.exit(2);
+            }
+            try {
+                // Listens on all interfaces, one event loop per processor unless told otherwise
+                int port = Integer.parseInt(args[1]);
+                int loops = args.length == 3 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+                Server server = new Server(new InetSocketAddress(port), loops);
+                server.start();
+                System.err.println("Listening on port " + server.getPort());
+                return;
+            }
+            catch(IOException | IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        if(args.length > 0 && args[0].equals("--thread-server")) {
+            if(args.length != 2) {
+                System.err.println(USAGE);
+                System.exit(2);
+            }
+            // Virtual threads when the JVM has them, platform threads otherwise
+            SessionRunner runner = new SessionRunner();
+            try(ServerSocket server = new ServerSocket(Integer.parseInt(args[1]), 1024)) {
+                System.err.println("Listening on port " + server.getLocalPort()
+                        + (runner.isVirtual() ? " with virtual threads" : " with platform threads"));
+                runner.serve(server);
+                System.exit(0);
+            }
+            catch(IOException | IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        if(args.length > 0 && args[0].equals("--pipeline")) {
+            // Same output as the default mode, but reading and printing do not hold up the calculator
+            try {
+                new Pipeline().run(System.in, new FileOutputStream(FileDescriptor.out));
+                System.exit(0);
+            }
+            catch(IOException | UncheckedIOException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        if(args.length > 0 && args[0].equals("--stream")) {
+            // Evaluates stdin one character at a time, for input with lines too long to hold in memory
+            BufferedOutputSink output = new BufferedOutputSink(new FileOutputStream(FileDescriptor.out), false, 1 << 16);
+            try {
+                new StreamingEvaluator(new SRPN(output)).evaluate(new InputStreamReader(System.in));
+                output.flush();
+                System.exit(0);
+            }
+            catch(IOException | UncheckedIOException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+        }
+
         // Code to take input from the command line
         // This input is passed to the processCommand
         // method in SRPN.java
-        SRPN sprn = new SRPN();
+        // Output is buffered and flushed whenever there is no more input waiting to be read,
+        // so a whole batch of piped input is written out in one go
+        BufferedOutputSink output = new BufferedOutputSink(new FileOutputStream(FileDescriptor.out));
+        SRPN sprn = new SRPN(output);
 
         BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
 
@@ -20,16 +121,97 @@ class Main {
                 String command = reader.readLine();
                 //Close on an End-of-file (EOF) (Ctrl-D on the terminal)
                 if(command == null){
+                    output.flush();
                     //Exit code 0 for a graceful exit
                     System.exit(0);
                 }
                 //Otherwise, (attempt to) process the character
                 sprn.processCommand(command);
+                if(!reader.ready()) output.flush();
             }
         }
-        catch(IOException e) {
+        catch(IOException | UncheckedIOException e) {
             System.err.println(e.getMessage());
             System.exit(1);
         }
     }
-}
\ No newline at end of file
+
+    private static void runFile(Path path) throws IOException {
+        // Batch mode, the file is memory mapped and the bytes are scanned for line breaks directly.
+        // Lines are split the same way BufferedReader.readLine splits them, at "\n", "\r" or "\r\n".
+        // ASCII lines are passed to processCommand as a view of the mapped bytes, any other line is
+        // decoded to a String the same way the interactive path would decode it.
+        // Output is only flushed at the end, the number of lines per second is reported on stderr.
+        BufferedOutputSink output = new BufferedOutputSink(new FileOutputStream(FileDescriptor.out), false, 1 << 16);
+        SRPN sprn = new SRPN(output);
+        ByteCharSequence line = new ByteCharSequence();
+        long lines = 0;
+        long started = System.nanoTime();
+
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            long window = MAP_WINDOW;
+
+            while(position < size) {
+                long length = Math.min(window, size - position);
+                boolean lastWindow = position + length == size;
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                int limit = (int) length;
+                int start = 0;
+                boolean ascii = true;
+                int i = 0;
+
+                while(i < limit) {
+                    byte b = buffer.get(i);
+                    if(b != '\n' && b != '\r') {
+                        if(b < 0) ascii = false;
+                        ++i;
+                        continue;
+                    }
+                    // A "\r" at the end of a window may be the first half of a "\r\n"
+                    if(b == '\r' && i + 1 == limit && !lastWindow) break;
+
+                    processLine(sprn, line, buffer, start, i, ascii);
+                    ++lines;
+                    i += b == '\r' && i + 1 < limit && buffer.get(i + 1) == '\n' ? 2 : 1;
+                    start = i;
+                    ascii = true;
+                }
+
+                if(lastWindow) {
+                    // The last line of the file does not need a line break
+                    if(start < limit) {
+                        processLine(sprn, line, buffer, start, limit, ascii);
+                        ++lines;
+                    }
+                    break;
+                }
+
+                if(start == 0) {
+                    // The line is longer than the window, try again with a bigger one
+                    if(window >= Integer.MAX_VALUE) throw new IOException("Line too long in " + path);
+                    window = Math.min(window * 2, Integer.MAX_VALUE);
+                }
+                position += start;
+            }
+        }
+
+        output.flush();
+
+        double seconds = (System.nanoTime() - started) / 1e9;
+        System.err.printf("Processed %d lines in %.3f s (%.0f lines/sec)%n", lines, seconds, lines / Math.max(seconds, 1e-9));
+    }
+
+    private static void processLine(SRPN sprn, ByteCharSequence line, MappedByteBuffer buffer, int start, int end,
+                                    boolean ascii) {
+        if(ascii) {
+            sprn.processCommand(line.set(buffer, start, end));
+            return;
+        }
+
+        byte[] bytes = new byte[end - start];
+        buffer.get(start, bytes);
+        sprn.processCommand(new String(bytes, Charset.defaultCharset()));
+    }
+}
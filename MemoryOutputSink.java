@@ -0,0 +1,48 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class MemoryOutputSink implements OutputSink {
+    /*
+    The MemoryOutputSink keeps every line the calculator prints in a list, so tests and programs embedding the
+    calculator can look at its output without capturing System.out. Each line is exactly what the legacy calculator
+    would have printed.
+    */
+
+    private final List<String> lines;
+
+    public MemoryOutputSink() {
+        this.lines = new ArrayList<>();
+    }
+
+    @Override
+    public void value(int value) {
+        this.lines.add(Integer.toString(value));
+    }
+
+    @Override
+    public void diagnostic(Diagnostic diagnostic) {
+        this.lines.add(diagnostic.message());
+    }
+
+    @Override
+    public void unrecognised(CharSequence operand) {
+        this.lines.add("Unrecognised operator or operand \"" + operand + "\"");
+    }
+
+    @Override
+    public void flush() {}
+
+    public List<String> lines() {
+        return Collections.unmodifiableList(this.lines);
+    }
+
+    public void clear() {
+        this.lines.clear();
+    }
+
+    @Override
+    public String toString() {
+        return String.join(System.lineSeparator(), this.lines);
+    }
+}
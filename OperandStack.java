@@ -0,0 +1,194 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class OperandStack {
+    /*
+    The OperandStack is the calculator's working memory. It stores the operands as primitives in fixed size arrays,
+    so pushing and popping never boxes a value or takes a lock. The capacity matches the limit the calculator
+    has always had, a push onto a full stack is a programming error, the calculator prints "Stack overflow." before
+    that can happen.
+
+    Almost every operand is a whole number, so operands are kept as ints, and the calculator can do its arithmetic
+    and print them without a conversion, see IntArithmetic. The few that are not, fractions from a division, NaN
+    from modulo by zero and -0.0, are kept as doubles instead, with a bit for each element saying which it is. Either
+    kind reads back as a double with push(), pop(), peek() and get().
+
+    Elements can be read from the bottom of the stack to the top with get(), index 0 being the bottom.
+
+    writeTo() and readFrom() save the stack in a compact binary form, as part of a calculator's snapshot: the size in a
+    byte, the bits saying which elements are not ints in an int, and then each element from the bottom up, an int in
+    four bytes or a double in eight. A double is written with its raw bits, so NaN and -0.0 come back unchanged.
+    */
+
+    public static final int CAPACITY = 23;
+
+    private static final long NEGATIVE_ZERO = Double.doubleToRawLongBits(-0.0);
+
+//  ints, notInts and size are also used directly by the code of the BytecodeCompiler.
+    final int[] ints;
+    private final double[] doubles;
+//  Bit i is set when element i is in doubles rather than ints.
+    int notInts;
+    int size;
+
+    public OperandStack() {
+        this.ints = new int[CAPACITY];
+        this.doubles = new double[CAPACITY];
+        this.notInts = 0;
+        this.size = 0;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    public boolean isFull() {
+        return this.size == CAPACITY;
+    }
+
+    public void push(double value) {
+        if (this.size == CAPACITY) throw new IllegalStateException("Stack overflow.");
+        int whole = (int) value;
+        if (whole == value && Double.doubleToRawLongBits(value) != NEGATIVE_ZERO) {
+            this.ints[this.size] = whole;
+            this.notInts &= ~(1 << this.size);
+        } else {
+            this.doubles[this.size] = value;
+            this.notInts |= 1 << this.size;
+        }
+        ++this.size;
+    }
+
+    public void pushInt(int value) {
+        if (this.size == CAPACITY) throw new IllegalStateException("Stack overflow.");
+        this.ints[this.size] = value;
+        this.notInts &= ~(1 << this.size);
+        ++this.size;
+    }
+
+    public double pop() {
+        if (this.size == 0) throw new IllegalStateException("Stack underflow");
+        return valueAt(--this.size);
+    }
+
+    public int popInt() {
+//      Only for an element that isInt().
+        if (this.size == 0) throw new IllegalStateException("Stack underflow");
+        return this.ints[--this.size];
+    }
+
+    public double peek() {
+        if (this.size == 0) throw new IllegalStateException("Stack underflow");
+        return valueAt(this.size - 1);
+    }
+
+    public double get(int index) {
+//      Index 0 is the bottom of the stack, index size() - 1 is the top.
+        checkIndex(index);
+        return valueAt(index);
+    }
+
+    public boolean isInt(int index) {
+//      Whether the element is a whole number kept as an int, which anything but a fraction, NaN or -0.0 is.
+        checkIndex(index);
+        return (this.notInts & (1 << index)) == 0;
+    }
+
+    public boolean topTwoAreInts() {
+        if (this.size < 2) throw new IllegalStateException("Stack underflow");
+        return (this.notInts & (3 << (this.size - 2))) == 0;
+    }
+
+    public boolean isTopZero() {
+//      Whether the top is 0 or -0.0, without converting it to a double.
+        if (this.size == 0) throw new IllegalStateException("Stack underflow");
+        int top = this.size - 1;
+        return (this.notInts & (1 << top)) == 0 ? this.ints[top] == 0 : this.doubles[top] == 0;
+    }
+
+    public int floor(int index) {
+//      The element rounded down to an int, which is what "=" and "d" print.
+        checkIndex(index);
+        return (this.notInts & (1 << index)) == 0 ? this.ints[index] : (int) Math.floor(this.doubles[index]);
+    }
+
+    void setIntsWritten(int from, int size) {
+//      For code that has stored whole numbers in ints from index from up to size directly, makes them the top.
+        if (size > from) this.notInts &= ~(((1 << (size - from)) - 1) << from);
+        this.size = size;
+    }
+
+    public void clear() {
+        this.size = 0;
+    }
+
+    public double[] toArray() {
+//      Returns a copy of the stack from bottom to top.
+        double[] values = new double[this.size];
+        for (int i = 0; i < this.size; ++i) values[i] = valueAt(i);
+        return values;
+    }
+
+    int encodedSize() {
+//      The number of bytes writeTo() writes.
+        int doubles = Integer.bitCount(this.notInts & ((1 << this.size) - 1));
+        return 1 + Integer.BYTES + this.size * Integer.BYTES + doubles * Integer.BYTES;
+    }
+
+    void writeTo(ByteBuffer buffer) {
+        int notInts = this.notInts & ((1 << this.size) - 1);
+        buffer.put((byte) this.size);
+        buffer.putInt(notInts);
+        for (int i = 0; i < this.size; ++i) {
+            if ((notInts & (1 << i)) == 0) {
+                buffer.putInt(this.ints[i]);
+            } else {
+                buffer.putLong(Double.doubleToRawLongBits(this.doubles[i]));
+            }
+        }
+    }
+
+    void readFrom(ByteBuffer buffer) {
+        /*
+        Replaces the stack with one written by writeTo(). The stack is only changed once the whole encoding has been
+        found to be there and valid, otherwise an IllegalArgumentException is thrown.
+        */
+
+        if (buffer.remaining() < 1 + Integer.BYTES) throw new IllegalArgumentException("Truncated stack");
+        int size = buffer.get(buffer.position());
+        int notInts = buffer.getInt(buffer.position() + 1);
+        if (size < 0 || size > CAPACITY) throw new IllegalArgumentException("Bad stack size: " + size);
+        if ((notInts & ~((1 << size) - 1)) != 0) throw new IllegalArgumentException("Bad stack mask: " + notInts);
+
+        int bytes = size * Integer.BYTES + Integer.bitCount(notInts) * Integer.BYTES;
+        if (buffer.remaining() < 1 + Integer.BYTES + bytes) throw new IllegalArgumentException("Truncated stack");
+
+        buffer.position(buffer.position() + 1 + Integer.BYTES);
+        for (int i = 0; i < size; ++i) {
+            if ((notInts & (1 << i)) == 0) {
+                this.ints[i] = buffer.getInt();
+            } else {
+                this.doubles[i] = Double.longBitsToDouble(buffer.getLong());
+            }
+        }
+        this.notInts = notInts;
+        this.size = size;
+    }
+
+    private double valueAt(int index) {
+        return (this.notInts & (1 << index)) == 0 ? this.ints[index] : this.doubles[index];
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= this.size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + this.size);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+}
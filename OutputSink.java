@@ -0,0 +1,36 @@
+public interface OutputSink {
+    /*
+    An OutputSink receives everything the calculator prints. Results printed by "=" and "d" arrive as ints and the
+    messages as Diagnostics, so a sink can format them however it likes without the calculator building a String for
+    every line of output.
+
+    The operand passed to unrecognised() is only valid during the call, a sink that keeps it has to copy it.
+
+    endOfLine() is called once processCommand has handled a line of input, a sink can use it to decide when to flush.
+    */
+
+    void value(int value);
+
+    default void display(OperandStack stack) {
+        /*
+        Prints the stack for "d", from the bottom to the top. An empty stack prints Integer.MIN_VALUE, as the legacy
+        calculator did. A sink that wants the stack as a whole can override this, the stack is only valid during the
+        call.
+        */
+
+        if (stack.isEmpty()) {
+            value(Integer.MIN_VALUE);
+            return;
+        }
+
+        for (int i = 0; i < stack.size(); ++i) value(stack.floor(i));
+    }
+
+    void diagnostic(Diagnostic diagnostic);
+
+    void unrecognised(CharSequence operand);
+
+    default void endOfLine() {}
+
+    void flush();
+}
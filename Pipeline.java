@@ -0,0 +1,145 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+public class Pipeline {
+    /*
+    The Pipeline runs a calculator over an input stream in three stages, each on its own thread, so waiting for input
+    or for the output to be written does not hold up evaluation:
+
+    - the reader reads and decodes lines exactly as the serial path in Main does, with BufferedReader.readLine, and
+    hands them on in batches of up to BATCH_SIZE lines. A batch is handed on early when no more input is waiting,
+    so an interactive user is not kept waiting for a batch to fill up.
+
+    - the evaluator runs each line through SRPN.processCommand. The output of a batch is formatted by a
+    BufferedOutputSink and handed on as chunks of bytes.
+
+    - the writer writes the chunks to the output stream and flushes it whenever it has caught up.
+
+    The stages hand off through SpscRingBuffers, so there are no locks between them and at most RING_CAPACITY batches
+    or chunks are in flight, a slow writer holds up the evaluator and a slow evaluator holds up the reader. There is
+    only ever one thread evaluating, so the output is exactly what the serial path prints, in the same order.
+
+    Lines are handed on rather than tokens, the lexing and compiling is done by the evaluator where a line seen before
+    is taken from its LineCache.
+    */
+
+    static final int BATCH_SIZE = 256;
+    static final int RING_CAPACITY = 64;
+    private static final int CHUNK_SIZE = 1 << 16;
+
+//  Marks the end of the input and of the output.
+    private static final String[] END_OF_INPUT = new String[0];
+    private static final byte[] END_OF_OUTPUT = new byte[0];
+
+    private final SpscRingBuffer<String[]> lines;
+    private final SpscRingBuffer<byte[]> chunks;
+    private volatile Exception failure;
+
+    public Pipeline() {
+        this.lines = new SpscRingBuffer<>(RING_CAPACITY);
+        this.chunks = new SpscRingBuffer<>(RING_CAPACITY);
+    }
+
+    public void run(InputStream in, OutputStream out) throws IOException {
+        /*
+        Runs a new calculator over everything in the input stream and returns once all of its output has been
+        written. The calling thread is the evaluator, the reader and the writer get threads of their own.
+        */
+
+        Thread reader = new Thread(() -> read(in), "srpn-pipeline-reader");
+        Thread writer = new Thread(() -> write(out), "srpn-pipeline-writer");
+        reader.setDaemon(true);
+        reader.start();
+        writer.start();
+
+        try {
+            evaluate();
+        } finally {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        Exception failure = this.failure;
+        if (failure instanceof IOException) throw (IOException) failure;
+        if (failure != null) throw (RuntimeException) failure;
+    }
+
+    private void read(InputStream in) {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        String[] batch = new String[BATCH_SIZE];
+        int count = 0;
+
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                batch[count++] = line;
+                if (count == BATCH_SIZE || !reader.ready()) {
+                    this.lines.put(Arrays.copyOf(batch, count));
+                    count = 0;
+                }
+            }
+            if (count > 0) this.lines.put(Arrays.copyOf(batch, count));
+        } catch (IOException | UncheckedIOException e) {
+            this.failure = e;
+        } finally {
+            this.lines.put(END_OF_INPUT);
+        }
+    }
+
+    private void evaluate() {
+        BufferedOutputSink output = new BufferedOutputSink(new ChunkOutputStream(this.chunks), false, CHUNK_SIZE);
+        SRPN calculator = new SRPN(output);
+
+        try {
+            String[] batch;
+            while ((batch = this.lines.take()) != END_OF_INPUT) {
+                for (String line: batch) calculator.processCommand(line);
+                output.flush();
+            }
+        } finally {
+            this.chunks.put(END_OF_OUTPUT);
+        }
+    }
+
+    private void write(OutputStream out) {
+        try {
+            byte[] chunk;
+            while ((chunk = this.chunks.take()) != END_OF_OUTPUT) {
+                out.write(chunk);
+                if (this.chunks.isEmpty()) out.flush();
+            }
+            out.flush();
+        } catch (IOException e) {
+            this.failure = e;
+//          Keep taking chunks so the evaluator is never stuck waiting for room.
+            while (this.chunks.take() != END_OF_OUTPUT) continue;
+        }
+    }
+
+    private static final class ChunkOutputStream extends OutputStream {
+//      Hands everything written to it to the writer as one chunk per write.
+        private final SpscRingBuffer<byte[]> chunks;
+
+        ChunkOutputStream(SpscRingBuffer<byte[]> chunks) {
+            this.chunks = chunks;
+        }
+
+        @Override
+        public void write(int b) {
+            this.chunks.put(new byte[] {(byte) b});
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            if (length > 0) this.chunks.put(Arrays.copyOfRange(bytes, offset, offset + length));
+        }
+    }
+}
@@ -0,0 +1,116 @@
+import java.util.StringJoiner;
+
+public class Program {
+    /*
+    A Program is a compiled line of input. Each byte of the code array is an instruction for the calculator, in the
+    order the legacy calculator would have processed them. Instructions that need an operand take it from a constant
+    pool, each PUSH takes the next value of the constants array and each UNKNOWN takes the next character of the
+    symbols array, so the code itself stays a flat array of opcodes. Likewise each INVOKE takes the next CallSite, a
+    word to look up when the Program runs, and each DEFINE the next Definition, see Dictionary.
+
+    For Example:
+
+        "10+2-3" -> code [PUSH, PUSH, PUSH, SUBTRACT, ADD], constants [10, 2, 3].
+
+    Programs are immutable and are created by the LineCompiler, they are run by SRPN.execute().
+    */
+
+    public static final byte PUSH = 0;
+    public static final byte ADD = 1;
+    public static final byte SUBTRACT = 2;
+    public static final byte MULTIPLY = 3;
+    public static final byte DIVIDE = 4;
+    public static final byte MODULO = 5;
+    public static final byte POWER = 6;
+    public static final byte DISPLAY = 7;
+    public static final byte RANDOM = 8;
+    public static final byte EQUALS = 9;
+    public static final byte UNKNOWN = 10;
+    public static final byte INVOKE = 11;
+    public static final byte DEFINE = 12;
+
+    static final CallSite[] NO_SITES = new CallSite[0];
+    static final Definition[] NO_DEFINITIONS = new Definition[0];
+
+    public static final Program EMPTY = new Program(new byte[0], new double[0], new char[0]);
+
+    final byte[] code;
+    final double[] constants;
+    final char[] symbols;
+    final CallSite[] sites;
+    final Definition[] definitions;
+
+    Program(byte[] code, double[] constants, char[] symbols) {
+        this(code, constants, symbols, NO_SITES, NO_DEFINITIONS);
+    }
+
+    Program(byte[] code, double[] constants, char[] symbols, CallSite[] sites, Definition[] definitions) {
+        this.code = code;
+        this.constants = constants;
+        this.symbols = symbols;
+        this.sites = sites;
+        this.definitions = definitions;
+    }
+
+    public int size() {
+        return this.code.length;
+    }
+
+    public static byte operatorCode(char operator) {
+        return switch (operator) {
+            case '+' -> ADD;
+            case '-' -> SUBTRACT;
+            case '*' -> MULTIPLY;
+            case '/' -> DIVIDE;
+            case '%' -> MODULO;
+            case '^' -> POWER;
+            default -> throw new IllegalArgumentException("Unexpected value: " + operator);
+        };
+    }
+
+    public static boolean isOperator(byte opcode) {
+        return opcode >= ADD && opcode <= POWER;
+    }
+
+    boolean usesWords() {
+//      Whether the Program invokes or defines words, what it does then depends on the Dictionary it runs with.
+        return this.sites.length != 0 || this.definitions.length != 0;
+    }
+
+    @Override
+    public String toString() {
+//      Lists the instructions in the same form as the handleInfix example, e.g. [10, 2, +, 3, -].
+        StringJoiner joiner = new StringJoiner(", ", "[", "]");
+        int constant = 0;
+        int symbol = 0;
+        int site = 0;
+        int definition = 0;
+
+        for (byte opcode: this.code) {
+            switch (opcode) {
+                case PUSH -> {
+                    double value = this.constants[constant++];
+                    joiner.add(value == (long) value ? Long.toString((long) value) : Double.toString(value));
+                }
+                case ADD -> joiner.add("+");
+                case SUBTRACT -> joiner.add("-");
+                case MULTIPLY -> joiner.add("*");
+                case DIVIDE -> joiner.add("/");
+                case MODULO -> joiner.add("%");
+                case POWER -> joiner.add("^");
+                case DISPLAY -> joiner.add("d");
+                case RANDOM -> joiner.add("r");
+                case EQUALS -> joiner.add("=");
+                case UNKNOWN -> joiner.add(String.valueOf(this.symbols[symbol++]));
+                case INVOKE -> {
+//                  A word is listed as its letters, which is what it is if it is not defined.
+                    for (char letter: this.sites[site++].name.toCharArray()) joiner.add(String.valueOf(letter));
+                }
+                case DEFINE -> joiner.add(this.definitions[definition++].toString());
+                default -> throw new IllegalStateException("Unexpected value: " + opcode);
+            }
+        }
+
+        return joiner.toString();
+    }
+}
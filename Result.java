@@ -0,0 +1,95 @@
+import java.util.Arrays;
+
+public final class Result {
+    /*
+    One thing the calculator printed, as a value instead of a line of text, published by a CalculatorProcessor:
+
+        VALUE         the value "=" printed, value()
+        DISPLAY       the stack "d" printed, bottom first, values(), which is empty for an empty stack
+        DIAGNOSTIC    a message, diagnostic()
+        UNRECOGNISED  an operand the calculator did not recognise, operand()
+
+    printTo() prints a Result to an OutputSink exactly as the calculator would have printed it.
+    */
+
+    public enum Kind {
+        VALUE,
+        DISPLAY,
+        DIAGNOSTIC,
+        UNRECOGNISED
+    }
+
+    private static final int[] EMPTY = new int[0];
+
+    private final Kind kind;
+    private final int[] values;
+    private final Diagnostic diagnostic;
+    private final String operand;
+
+    private Result(Kind kind, int[] values, Diagnostic diagnostic, String operand) {
+        this.kind = kind;
+        this.values = values;
+        this.diagnostic = diagnostic;
+        this.operand = operand;
+    }
+
+    static Result value(int value) {
+        return new Result(Kind.VALUE, new int[] {value}, null, null);
+    }
+
+    static Result display(int[] values) {
+        return new Result(Kind.DISPLAY, values, null, null);
+    }
+
+    static Result diagnostic(Diagnostic diagnostic) {
+        return new Result(Kind.DIAGNOSTIC, EMPTY, diagnostic, null);
+    }
+
+    static Result unrecognised(String operand) {
+        return new Result(Kind.UNRECOGNISED, EMPTY, Diagnostic.UNRECOGNISED, operand);
+    }
+
+    public Kind kind() {
+        return this.kind;
+    }
+
+    public int value() {
+//      The value of a VALUE, or the top of the stack of a DISPLAY.
+        if (this.values.length == 0) throw new IllegalStateException("No value: " + this);
+        return this.values[this.values.length - 1];
+    }
+
+    public int[] values() {
+        return this.values.clone();
+    }
+
+    public Diagnostic diagnostic() {
+        return this.diagnostic;
+    }
+
+    public String operand() {
+        return this.operand;
+    }
+
+    public void printTo(OutputSink sink) {
+        switch (this.kind) {
+            case VALUE -> sink.value(this.values[0]);
+            case DISPLAY -> {
+                if (this.values.length == 0) sink.value(Integer.MIN_VALUE);
+                for (int value: this.values) sink.value(value);
+            }
+            case DIAGNOSTIC -> sink.diagnostic(this.diagnostic);
+            case UNRECOGNISED -> sink.unrecognised(this.operand);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return switch (this.kind) {
+            case VALUE -> "VALUE " + this.values[0];
+            case DISPLAY -> "DISPLAY " + Arrays.toString(this.values);
+            case DIAGNOSTIC -> "DIAGNOSTIC " + this.diagnostic.outcome();
+            case UNRECOGNISED -> "UNRECOGNISED " + this.operand;
+        };
+    }
+}
@@ -0,0 +1,15 @@
+public interface ResultSink {
+    /*
+    A ResultSink receives what a Calculator works out for a line, as values rather than text: the results of "=" and
+    "d" as ints, the messages as Diagnostics and an unrecognised operand as the character it was. None of them build a
+    String, so a program embedding the calculator can handle the results without allocating.
+
+    The methods are called in the order the legacy calculator would have printed the lines.
+    */
+
+    void value(int value);
+
+    void diagnostic(Diagnostic diagnostic);
+
+    void unrecognised(char operand);
+}
@@ -1,27 +1,106 @@
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.util.*;
 
 public class SRPN {
-    final public Stack<Double> numbers;
+//  The numbers "r" pushes, in order.
+    private static final int[] RANDOM_NUMBERS = {
+        1804289383,
+        846930886,
+        1681692777,
+        1714636915,
+        1957747793,
+        424238335,
+        719885386,
+        1649760492,
+        596516649,
+        1189641421,
+        1025202362,
+        1350490027,
+        783368690,
+        1102520059,
+        2044897763,
+        1967513926,
+        1365180540,
+        1540383426,
+        304089172,
+        1303455736,
+        35005211,
+        521595368,
+    };
+
+//  The most bytes the words defined in a session can take in a snapshot, see Dictionary.
+    public static final int MAX_WORDS_BYTES = 2048;
+
+//  The version of the snapshot format, and the most bytes a snapshot can take.
+    public static final byte SNAPSHOT_VERSION = 2;
+    public static final int MAX_SNAPSHOT_BYTES = 3 + MAX_WORDS_BYTES + 1 + Integer.BYTES + OperandStack.CAPACITY * Double.BYTES;
+
+//  How deeply words can run other words, a word that runs itself stops here.
+    public static final int MAX_INVOCATION_DEPTH = 64;
+
+//  How many words a line can run in all, counting those run by other words.
+    public static final int MAX_INVOCATIONS_PER_LINE = 1 << 16;
+
+    final public OperandStack numbers;
     private boolean isComment;
     private int pseudoRandomNumberIndex;
+    private LineCompiler compiler;
+    private LineCache cache;
+    private final OutputSink output;
+    private Diagnostic outcome;
+    private final CalculatorMetrics metrics;
+//  counts, peakDepth and the arrays of numbers are also used directly by the code of the BytecodeCompiler.
+    final long[] counts;
+    private int depthAtLineStart;
+    int peakDepth;
+    private TreeEvaluator trees;
+    private int compileThreshold;
+    private Journal journal;
+    private long session;
+    private Dictionary library;
+    private Dictionary dictionary;
+    private int invocationDepth;
+    private int invocations;
+//  Holds an unrecognised character while it is printed, so printing one does not allocate.
+    private final CharBuffer unrecognised;
 
     public SRPN() {
+        this(new BufferedOutputSink(System.out, true));
+    }
+
+    public SRPN(OutputSink output) {
+        this(null, output);
+    }
+
+    public SRPN(LineCache cache, OutputSink output) {
+        this(cache, output, new CalculatorMetrics());
+    }
+
+    public SRPN(LineCache cache, OutputSink output, CalculatorMetrics metrics) {
         /*
-        The constructor initialises a Stack which will keep track of the order of integers that are to be processed.
+        The constructor initialises an OperandStack which will keep track of the order of integers that are to be processed.
         This gives the calculator a memory so it will 'remember' what was inputted on previous lines, it also keeps
-        track of whether the calculator is expecting to receive a comment.
+        track of whether the calculator is expecting to receive a comment. Everything the calculator prints goes to an
+        OutputSink, by default a BufferedOutputSink on System.out that is flushed at the end of every line.
+
+        A calculator is cheap to create, so a server can keep a great many idle sessions. Without a LineCache it makes
+        its own, and that, the LineCompiler and the Dictionary of the session's words are only made when they are first
+        needed. The metrics can be shared by many calculators, such as CalculatorMetrics.PROCESS, instead of each
+        having its own.
 
         The key methods of this class are:
 
         - processCommand(), this method handles the preprocessing of input before it is added to the
-        calculator.
+        calculator. Lines that have been seen before are taken from a LineCache instead of being compiled again.
 
         - handleInput(), this method processes the user input, if it is a number the number will be added to the stack which
         acts as the calculator's working memory, however if it is a special character it will perform an action on the
         stack.
 
-        - handleOneLineInput() method preprocess input, it a string containing multiple inputs into a list of single
-        inputs. The list contains strings that are in the correct format to be processed by the calculator.
+        - execute() method runs a Program, a line of input that the LineCompiler has already put in the order the
+        legacy calculator would process it, this is how one line input such as "10+2-3" is handled.
 
         - processOperation(), this method acts as the actual calculator. It takes an input of a stack and
         an operation, It then performs the required operation on the appropriate elements of the stack. By taking a
@@ -29,42 +108,232 @@ public class SRPN {
         one line input.
         */
 
-        this.numbers = new Stack<>();
+        this.numbers = new OperandStack();
         this.isComment = false;
         this.pseudoRandomNumberIndex = 0;
+        this.cache = cache;
+        this.output = output;
+        this.metrics = metrics;
+        this.counts = new long[CalculatorMetrics.COUNTERS];
+        this.unrecognised = CharBuffer.allocate(1);
+        this.compileThreshold = BytecodeCompiler.DEFAULT_THRESHOLD;
+        CalculatorMetrics.registerProcessMetrics();
+    }
+
+    public void processCommand(CharSequence s) {
+//      This method processes the command according to the input from the user. Any CharSequence can be passed in, it
+//      is only copied into a String when the line is not already in the cache.
+
+        StageEvents.Command event = StageEvents.Command.begin(s);
+        this.outcome = null;
+        if (this.journal != null) this.journal.append(this.session, s);
+
+        CompiledLine line = getCache().get(s, this.isComment);
+        boolean cacheHit = line != null;
+
+        if (line == null) {
+            boolean inComment = this.isComment;
+            Program program = compileLine(s);
+            line = ConstantFolder.fold(program, this.isComment);
+            this.cache.put(s, inComment, line);
+        }
+
+        this.isComment = line.endsInComment;
+
+        StageEvents.Execute execute = StageEvents.Execute.begin(line.program);
+        run(line);
+        if (execute != null) execute.end(this.outcome);
+
+        endOfLine();
+        if (event != null) event.end(line, cacheHit, this.outcome);
     }
 
-    public void processCommand(String s) {
-//      This method processes the command according to the input from the user.
+    private void run(CompiledLine line) {
+        /*
+        Runs a line. The folded Program is run when the stack is shallow enough that the original could not
+        overflow, and counts as if the original had run. Whichever Program is usually run is compiled to bytecode once
+        the line is hot.
+        */
 
-        if (s.equals("") || (this.isComment && !s.contains("#"))) return;
+        Program program = line.program;
+        int peak = -1;
+        if (line.folded != null) {
+            peak = line.peaks[this.numbers.size()];
+            if (peak < 0) {
+                execute(line.program);
+                return;
+            }
+            program = line.folded;
+        }
 
-        if (s.contains("#")) s = handleComment(s);
+        if (line.compiled != null) {
+            line.compiled.run(this, program);
+        } else {
+            execute(program);
+            if (this.compileThreshold > 0 && ++line.invocations == this.compileThreshold) {
+                line.compiled = BytecodeCompiler.compile(program);
+            }
+        }
+
+        if (line.folded != null) {
+            for (int i = Program.ADD; i <= Program.POWER; ++i) this.counts[i] += line.foldedOperators[i];
+            if (peak > this.peakDepth) this.peakDepth = peak;
+        }
+    }
+
+    private Program compileLine(CharSequence s) {
+        /*
+        This method compiles a line that is not in the cache. The comments are removed first, this is the only step
+        that depends on the state of the calculator, it updates isComment.
+        */
+
+        if (s.length() == 0 || (this.isComment && !contains(s, '#'))) return Program.EMPTY;
+
+        if (contains(s, '#')) {
+            StageEvents.Comment comment = StageEvents.Comment.begin(s);
+            s = handleComment(s);
+            if (comment != null) comment.commit();
+        }
 
 //      The handle comment method may return an empty string, so we have to make this check again.
-        if (s.equals("")) return;
+        if (s.length() == 0) return Program.EMPTY;
+
+        StageEvents.Compile compile = StageEvents.Compile.begin(s);
+        if (this.compiler == null) this.compiler = new LineCompiler();
+        Definition definition = Definition.parse(s, this.compiler);
+        Program program = definition != null
+                ? new Program(new byte[] {Program.DEFINE}, new double[0], new char[0], Program.NO_SITES, new Definition[] {definition})
+                : this.compiler.compile(s);
+        if (compile != null) compile.end(program);
+
+        return program;
+    }
+
+    public void reset() {
+        /*
+        Puts the calculator back in the state of a new SRPN, so one calculator can be reused for many independent
+        scripts. The LineCache is kept, what it holds does not depend on the state of the calculator. The words
+        defined in the session are forgotten, those of the library are kept.
+        */
+
+//      The metrics hold the depth at the start of the line, a line that threw part way through never added the rest.
+        this.metrics.add(this.counts, -this.depthAtLineStart, 0);
+        Arrays.fill(this.counts, 0);
+        this.numbers.clear();
+        this.isComment = false;
+        this.pseudoRandomNumberIndex = 0;
+        this.outcome = null;
+        this.depthAtLineStart = 0;
+        this.peakDepth = 0;
+        if (this.dictionary != null) this.dictionary.clear();
+    }
+
+    public int snapshotSize() {
+        return 3 + (this.dictionary != null ? this.dictionary.encodedSize() : Short.BYTES) + this.numbers.encodedSize();
+    }
 
-//      split input string at spaces; effectively treating a space as a new line
-        for (String string: s.split("\\s")) {
-            for (String input: handleOneLineInput(string)) handleInput(input, this.numbers);
+    public void snapshot(ByteBuffer buffer) {
+        /*
+        Writes the state of the calculator to buffer, so another calculator, possibly in another process, can carry on
+        from it with restore(). The state is the stack, whether a comment is open, which random number is next and the
+        words defined in the session, the snapshot is a byte with the format version, a byte of flags, a byte with the
+        random index, then the words, see Dictionary, and then the stack, see OperandStack. It takes snapshotSize()
+        bytes, never more than MAX_SNAPSHOT_BYTES. The words of the library are not part of it.
+        */
+
+        if (buffer.remaining() < snapshotSize()) throw new BufferOverflowException();
+        buffer.put(SNAPSHOT_VERSION);
+        buffer.put((byte) (this.isComment ? 1 : 0));
+        buffer.put((byte) this.pseudoRandomNumberIndex);
+        if (this.dictionary != null) {
+            this.dictionary.writeTo(buffer);
+        } else {
+            buffer.putShort((short) 0);
+        }
+        this.numbers.writeTo(buffer);
+    }
+
+    public void restore(ByteBuffer buffer) {
+        /*
+        Puts the calculator in the state a snapshot() was taken of, reading it from buffer. The LineCache and the
+        library are kept, the words of the session are replaced by those of the snapshot. A snapshot that is not valid
+        throws an IllegalArgumentException and leaves the calculator alone. Version 1 snapshots, from before words
+        could be defined, have no words and are read as a session that has defined none.
+        */
+
+        if (buffer.remaining() < 3) throw new IllegalArgumentException("Truncated snapshot");
+        int start = buffer.position();
+        byte version = buffer.get(start);
+        byte flags = buffer.get(start + 1);
+        int random = buffer.get(start + 2);
+        if (version != 1 && version != SNAPSHOT_VERSION) throw new IllegalArgumentException("Unknown snapshot version: " + version);
+        if ((flags & ~1) != 0) throw new IllegalArgumentException("Bad snapshot flags: " + flags);
+        if (random < 0 || random >= RANDOM_NUMBERS.length) {
+            throw new IllegalArgumentException("Bad random number index: " + random);
+        }
+
+        Dictionary words = new Dictionary(this.library, MAX_WORDS_BYTES);
+        buffer.position(start + 3);
+        try {
+            if (version != 1) words.readFrom(buffer);
+            this.numbers.readFrom(buffer);
+        } catch (IllegalArgumentException e) {
+            buffer.position(start);
+            throw e;
         }
+        this.dictionary = words.size() > 0 ? words : null;
+
+        this.metrics.add(this.counts, this.numbers.size() - this.depthAtLineStart, this.numbers.size());
+        Arrays.fill(this.counts, 0);
+        this.isComment = flags == 1;
+        this.pseudoRandomNumberIndex = random;
+        this.outcome = null;
+        this.depthAtLineStart = this.numbers.size();
+        this.peakDepth = this.depthAtLineStart;
     }
 
-    public int handleInput(String userInput, Stack<Double> stack) {
+    public LineCache getCache() {
+        if (this.cache == null) this.cache = new LineCache();
+        return this.cache;
+    }
+
+    public void setLibrary(Dictionary library) {
         /*
-        This method handles input. It uses regex to match with digits and operations. It also handles the special cases
-        where d and r are entered.
+        Gives the calculator a frozen Dictionary of words shared with other calculators, or none if it is null. The
+        words defined in the session so far are forgotten, words defined from now on shadow those of the library.
+        */
+
+        this.library = library;
+        this.dictionary = null;
+    }
+
+    public Dictionary getDictionary() {
+//      The words defined in this session, with the library as its parent.
+        if (this.dictionary == null) this.dictionary = new Dictionary(this.library, MAX_WORDS_BYTES);
+        return this.dictionary;
+    }
+
+    public int handleInput(String userInput, OperandStack stack) {
+        /*
+        This method handles a single input. If it is a number the number will be added to the stack, otherwise it
+        handles the special cases where d, r, = or an operator is entered. The input is classified by looking at its
+        characters, lines entered by the user go through the Lexer instead and never reach this method.
          */
 
+        int result = handleSingleInput(userInput, stack);
+        endOfLine();
+        return result;
+    }
+
+    private int handleSingleInput(String userInput, OperandStack stack) {
 //      Return immediately if the input is empty or whitespace
-        if (userInput.matches("\\s") || userInput.equals("")) {
+        if (userInput.equals("") || (userInput.length() == 1 && Lexer.isWhitespace(userInput.charAt(0)))) {
             return 0;
         }
 
 //      Match with input if it is a digit of any length optionally preceded by a negative sign
-        if (userInput.matches("^-?\\d+")) {
-            double inputNumber = handleSaturation(Double.parseDouble(userInput));
-            addToStack(inputNumber, stack);
+        if (Lexer.isNumber(userInput, 0, userInput.length())) {
+            handleNumber(Lexer.parseNumber(userInput, 0, userInput.length()), stack);
             return 0;
         }
 
@@ -74,182 +343,318 @@ public class SRPN {
         }
 
         if (userInput.equals("r")) {
-            addToStack(this.getPseudoRandomNumber(), stack);
-            this.pseudoRandomNumberIndex = (this.pseudoRandomNumberIndex + 1) % 22;
+            handleRandom(stack);
             return 0;
         }
 
-        if (userInput.matches("[*+-/%^]")) {
-//          If the stack is too small to have an operation performed on it .
-            if (stack.size() <= 1) {
-                System.out.println("Stack underflow");
-                return 0;
-            }
-
-//          If operation will result in division by zero, print "Divide by 0."
-            if (stack.peek() == 0 && userInput.equals("/") && stack.size() > 1) {
-                System.out.println("Divide by 0.");
-                return 0;
-            }
-
-            processOperation(userInput, stack);
+        if (userInput.length() == 1 && Lexer.isOperator(userInput.charAt(0))) {
+            handleOperator(Program.operatorCode(userInput.charAt(0)), stack);
             return 0;
         }
 
         if (userInput.charAt(userInput.length()-1) == '=') {
-            if (stack.isEmpty()) {
-                System.out.println("Stack empty.");
-                return 0;
-            }
-
-            System.out.println( (int) Math.floor(stack.peek()));
-            return (int) Math.floor(stack.peek());
+            return handleEquals(stack);
         }
 
-        System.out.println("Unrecognised operator or operand \"" + userInput + "\"");
+        handleUnrecognised(userInput);
         return 0;
     }
 
-    private List<String> handleOneLineInput(String userInput) {
-        /*
-        This method handles one line input from the user. It parses it into a form that can then be easily processed
-        by the handleInfix method, or if it is not infix form ensures that it will be handled correctly by the
-        calculator.
-        */
+    private void handleNumber(double number, OperandStack stack) {
+        addToStack(handleSaturation(number), stack);
+    }
 
-//      Split at occurrence of operator. Only count "-" as an operator if it is not followed by a digit.
-        String delimiter = "[dr+*/%=^]|-(?!\\d)";
-        ArrayList<String> inputArray  = new ArrayList<>(Arrays.asList(userInput.split(String.format("((?<=%s)|(?=%s))",
-                delimiter, delimiter))));
-
-//      This cleans up the input, for example an element of our array could be 4-5 after initial split, this splits
-//      it to be 4, -, 5. It handles the case invalid characters are entered. For example "test" becomes "t", "e", "s", "t"
-        int numbers = inputArray.size();
-        for (int i = 0; i < numbers; ++i) {
-//          Split at a negative sign unless it at the start and followed by a digit.
-            delimiter = "(?<!^)-(?=\\d)|-(?!\\d)";
-            String splitAt = String.format("((?<=%s)|(?=%s))", delimiter, delimiter);
-            ArrayList<String> values = new ArrayList<>(Arrays.asList(inputArray.get(i).split(splitAt)));
-            inputArray.remove(i);
-            inputArray.addAll(i, values);
-            numbers += values.size() - 1;
-
-            if (!inputArray.get(i).matches("-?\\d+|[dr+*/%=^\\-]")) {
-                values = new ArrayList<>(Arrays.asList(inputArray.get(i).split("")));
-                inputArray.remove(i);
-                inputArray.addAll(i, values);
-                numbers += values.size() - 1;
-            }
-        }
+    private void handleRandom(OperandStack stack) {
+        addToStack(nextRandom(), stack);
+    }
 
-        return handleInfix(inputArray);
+    int nextRandom() {
+//      Draws the number "r" pushes, whether or not there is room for it.
+        ++this.counts[CalculatorMetrics.RANDOM];
+        int number = this.getPseudoRandomNumber();
+        this.pseudoRandomNumberIndex = (this.pseudoRandomNumberIndex + 1) % 22;
+        return number;
     }
 
-    private List<String> handleInfix(ArrayList<String> infix) {
-    /*
-        This method handles the infix behaviour the legacy calculator produces. It takes an input of an ArrayList
-        containing the input values from the user. The method returns a list containing the correct order for the
-        polish calculator to process.
+    private void handleOperator(byte operator, OperandStack stack) {
+        ++this.counts[operator];
 
-        This method uses a map to store key value pairs which represent the order of precedence
-        an operator has, in the case the lower the value the higher the precedence.
+//      If the stack is too small to have an operation performed on it .
+        if (stack.size() <= 1) {
+            report(Diagnostic.STACK_UNDERFLOW);
+            return;
+        }
 
-        Then there is a loop over all the different values. If a value is not an operator it will add it to an ArrayList
-        that contains the final order. If a value is an operator then it will pop all operators from the operator stack
-        until the operator at the top of the stack is of equal or less precedence, then the operator will be added to
-        the operator stack.
+//      If operation will result in division by zero, print "Divide by 0."
+        if (operator == Program.DIVIDE && stack.isTopZero()) {
+            report(Diagnostic.DIVIDE_BY_ZERO);
+            return;
+        }
 
-        Finally after the loop is finished if there are any operators remaining on the stack they are added to the
-        end of the ArrayList.
+        processOperation(operator, stack);
+    }
 
-        For Example:
+    private int handleEquals(OperandStack stack) {
+        ++this.counts[CalculatorMetrics.EQUALS];
 
-            handleInput("10+2-3+10*2") -> handleInfix([10, +, 2, -, 3, +, 10, *, 2]) -> [10, 2, +, 3, 10, 2, *, +, -].
+        if (stack.isEmpty()) {
+            report(Diagnostic.STACK_EMPTY);
+            return 0;
+        }
 
-        We end up with a slightly modified version of Bodmas where precedence is respected but calculations are made
-        right to left instead of left to right. This implementation is a slightly modified implementation of Dijskra's
-        shunting yard algorithm, for more information see https://brilliant.org/wiki/shunting-yard-algorithm/.
-     */
+        int top = stack.floor(stack.size() - 1);
+        this.output.value(top);
+        return top;
+    }
 
-        Stack<String> operators = new Stack<>();
-        ArrayList<String> processedOrder = new ArrayList<>();
-        Map<String, Integer> precedence = new HashMap<>();
-        precedence.put("^", 0);
-        precedence.put("%", 1);
-        precedence.put("*", 2);
-        precedence.put("/", 2);
-        precedence.put("+", 3);
-        precedence.put("-", 4);
+    private void handleUnrecognised(CharSequence userInput) {
+        if (this.outcome == null) this.outcome = Diagnostic.UNRECOGNISED;
+        ++this.counts[CalculatorMetrics.DIAGNOSTICS + Diagnostic.UNRECOGNISED.ordinal()];
+        this.output.unrecognised(userInput);
+    }
 
-        for (String item: infix) {
-//          If item is a digit with an optional negative sign or a r or =.
-            if (item.matches("-?\\d+|[r=]")) {
-                processedOrder.add(item);
-            }
+    private void handleUnrecognised(char symbol) {
+        this.unrecognised.put(0, symbol);
+        handleUnrecognised(this.unrecognised);
+    }
 
-//          If item is an operator
-            if (item.matches("[*/+\\-^%]")) {
-                try {
-                    while (precedence.get(operators.peek()) < precedence.get(item)) {
-                        processedOrder.add(operators.pop());
-                    }
-                } catch (EmptyStackException e) {}
-                operators.add(item);
-            }
+    public void execute(Program program) {
+        /*
+        This method runs a compiled Program against the stack. It walks the code array and performs each instruction
+        in turn, taking the operands of PUSH, UNKNOWN, INVOKE and DEFINE instructions from the pools of the Program.
 
-//          If item matches "d"
-            if (item.matches("d")) {
-                while (operators.size() > 0) {
-                    processedOrder.add(operators.pop());
+        With a TreeEvaluator, long runs of arithmetic are handed to it to be evaluated in parallel instead. A run it
+        does not take, because it is too short or divides by zero, is performed one instruction at a time as usual.
+        */
+
+        byte[] code = program.code;
+        double[] constants = program.constants;
+        char[] symbols = program.symbols;
+        int constant = 0;
+        int symbol = 0;
+        int site = 0;
+        int definition = 0;
+        int sequentialUntil = 0;
+
+        for (int pc = 0; pc < code.length; ++pc) {
+            byte opcode = code[pc];
+
+            if (this.trees != null && pc >= sequentialUntil && (opcode == Program.PUSH || Program.isOperator(opcode))) {
+                int end = this.trees.runEnd(code, pc, this.numbers.size());
+                if (this.trees.worthEvaluating(pc, end) && this.trees.evaluate(program, pc, end, constant, this.numbers)) {
+                    for (int i = pc; i < end; ++i) if (code[i] != Program.PUSH) ++this.counts[code[i]];
+                    constant += this.trees.pushes;
+                    if (this.trees.peakDepth > this.peakDepth) this.peakDepth = this.trees.peakDepth;
+                    pc = end - 1;
+                    continue;
                 }
-                processedOrder.add(item);
+                sequentialUntil = end;
+            }
+
+            switch (opcode) {
+                case Program.PUSH -> handleNumber(constants[constant++], this.numbers);
+                case Program.DISPLAY -> this.printStack();
+                case Program.RANDOM -> handleRandom(this.numbers);
+                case Program.EQUALS -> handleEquals(this.numbers);
+                case Program.UNKNOWN -> handleUnrecognised(symbols[symbol++]);
+                case Program.INVOKE -> invoke(program.sites[site++]);
+                case Program.DEFINE -> define(program.definitions[definition++]);
+                default -> handleOperator(opcode, this.numbers);
             }
+        }
+    }
 
-//          If item is anything else
-            if (!item.matches("d|[*/+\\-^%]|-?\\d+|[r=]")) {
-                processedOrder.add(item);
+    private void invoke(CallSite site) {
+        /*
+        Runs a word, looking it up in the Dictionary through its CallSite. A word that is not defined, or that would
+        run too deeply, is a run of unrecognised characters, which is what the legacy calculator made of it. Once a
+        line has run MAX_INVOCATIONS_PER_LINE words the rest are skipped, and the first one skipped is reported, so a
+        word that runs itself several times cannot keep the calculator busy for ever.
+        */
+
+        if (this.invocations >= MAX_INVOCATIONS_PER_LINE) {
+            if (this.invocations == MAX_INVOCATIONS_PER_LINE) {
+                ++this.invocations;
+                report(Diagnostic.WORD_LIMIT);
             }
+            return;
         }
 
-        while (operators.size() > 0) {
-            processedOrder.add(operators.pop());
+        Definition definition = this.invocationDepth < MAX_INVOCATION_DEPTH ? site.resolve(getDictionary()) : null;
+        if (definition == null) {
+            for (int i = 0; i < site.name.length(); ++i) handleUnrecognised(site.name.charAt(i));
+            return;
         }
 
-        return processedOrder;
+        ++this.invocations;
+        ++this.invocationDepth;
+        try {
+            execute(definition.body());
+        } finally {
+            --this.invocationDepth;
+        }
     }
 
-    private static void processOperation(String operation, Stack<Double> stack) {
+    private void define(Definition definition) {
+//      Defines a word in the session, unless the words of the session would no longer fit in a snapshot.
+        Dictionary dictionary = getDictionary();
+        if (!dictionary.fits(definition)) {
+            report(Diagnostic.WORD_LIMIT);
+            return;
+        }
+        dictionary.define(definition);
+    }
+
+    public void setCompileThreshold(int threshold) {
+        /*
+        Compiles a line to bytecode once it has been run threshold times, see BytecodeCompiler. 0 never compiles, the
+        default is BytecodeCompiler.DEFAULT_THRESHOLD. Only lines kept in the LineCache are counted.
+        */
+
+        if (threshold < 0) throw new IllegalArgumentException("Threshold must not be negative: " + threshold);
+        this.compileThreshold = threshold;
+    }
+
+    public void setJournal(Journal journal, long session) {
+//      Appends every line to journal, tagged with session, before it is run, or to no journal if it is null.
+        this.journal = journal;
+        this.session = session;
+    }
+
+    public void setTreeEvaluator(TreeEvaluator trees) {
+//      Evaluates long runs of arithmetic in parallel with the given TreeEvaluator, or never if it is null.
+        this.trees = trees;
+    }
+
+    void perform(byte opcode, double number, char symbol) {
+//      Performs a single instruction, for callers that produce instructions one at a time instead of as a Program.
+        switch (opcode) {
+            case Program.PUSH -> handleNumber(number, this.numbers);
+            case Program.DISPLAY -> this.printStack();
+            case Program.RANDOM -> handleRandom(this.numbers);
+            case Program.EQUALS -> handleEquals(this.numbers);
+            case Program.UNKNOWN -> handleUnrecognised(symbol);
+            default -> handleOperator(opcode, this.numbers);
+        }
+    }
+
+    void resume(Program program, int start, int pc, int end, int size) {
+        /*
+        Carries on with a run of arithmetic compiled by the BytecodeCompiler, the instructions from start to end, from
+        the one at pc. size is the depth of the stack when the run started. The compiled code has stored the elements
+        the instructions before pc wrote in the stack's ints, they are counted and made part of the stack here, the
+        rest of the run is performed one instruction at a time.
+        */
+
+        int constant = 0;
+        for (int i = 0; i < start; ++i) if (program.code[i] == Program.PUSH) ++constant;
+
+        int height = 0;
+        int lowest = Integer.MAX_VALUE;
+        for (int i = start; i < pc; ++i) {
+            byte opcode = program.code[i];
+            if (Program.isOperator(opcode)) {
+                ++this.counts[opcode];
+                --height;
+            } else {
+                if (opcode == Program.PUSH) ++constant;
+                if (size + ++height > this.peakDepth) this.peakDepth = size + height;
+            }
+            lowest = Math.min(lowest, height - 1);
+        }
+        if (pc > start) this.numbers.setIntsWritten(size + lowest, size + height);
+
+        for (int i = pc; i < end; ++i) {
+            byte opcode = program.code[i];
+            switch (opcode) {
+                case Program.PUSH -> handleNumber(program.constants[constant++], this.numbers);
+                case Program.RANDOM -> handleRandom(this.numbers);
+                default -> handleOperator(opcode, this.numbers);
+            }
+        }
+    }
+
+    Diagnostic outcome() {
+//      The first diagnostic of the last line, or null if it had none.
+        return this.outcome;
+    }
+
+    boolean isComment() {
+        return this.isComment;
+    }
+
+    void setComment(boolean isComment) {
+        this.isComment = isComment;
+    }
+
+    void endOfLine() {
+//      Called at the end of every line of input, the counts of the line are added to the metrics in one go.
+        ++this.counts[CalculatorMetrics.LINES];
+        this.metrics.add(this.counts, this.numbers.size() - this.depthAtLineStart, this.peakDepth);
+        Arrays.fill(this.counts, 0);
+        this.depthAtLineStart = this.numbers.size();
+        this.peakDepth = this.depthAtLineStart;
+        this.invocations = 0;
+
+        this.output.endOfLine();
+    }
+
+    public CalculatorMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    private static void processOperation(byte operation, OperandStack stack) {
         /*
         This method handles the case an operation is entered. It pops the top two integers off the stack and performs
-        the appropriate calculation. It then adds the result back to the stack. If a division by 0 occurs, this error
-        is printed, and then both numbers are added back to the stack, effectively leaving the stack unchanged.
+        the appropriate calculation. It then adds the result back to the stack. If a division by 0 occurs, both
+        numbers are added back to the stack, effectively leaving the stack unchanged.
+
+        Two whole numbers are worked out with IntArithmetic, only a result that is not a whole number, or an operand
+        that is not, takes the double arithmetic of apply().
         */
 
+        if (stack.topTwoAreInts()) {
+            int a = stack.popInt();
+            int b = stack.popInt();
+            long result = IntArithmetic.apply(operation, b, a);
+            if (result != IntArithmetic.NOT_AN_INT) {
+                stack.pushInt((int) result);
+            } else if (operation == Program.DIVIDE && a == 0) {
+                stack.pushInt(b);
+                stack.pushInt(a);
+            } else {
+                stack.push(apply(operation, b, a));
+            }
+            return;
+        }
+
         double a = stack.pop();
         double b = stack.pop();
-        double result;
-
-        switch (operation) {
-            case "*" -> result = a * b;
-            case "+" -> result = a + b;
-            case "-" -> result = b - a;
-            case "/" -> {
-                if (a == 0) {
-                    result = 0;
-                    stack.add(a);
-                    stack.add(b);
-                    break;
-                }
-                result = b / a;
-            }
-            case "%" -> result = b % a;
-            case "^", "\\^" -> result = (int) Math.pow(b, a);
-            default -> throw new IllegalStateException("Unexpected value: " + operation);
+
+        if (operation == Program.DIVIDE && a == 0) {
+            stack.push(b);
+            stack.push(a);
+            return;
         }
-        stack.add(handleSaturation(result));
+
+        stack.push(apply(operation, b, a));
     }
 
-    private static double handleSaturation(double number) {
+    static double apply(byte operation, double b, double a) {
+//      The result of b operation a, saturated. Division by zero is up to the caller.
+        double result = switch (operation) {
+            case Program.MULTIPLY -> a * b;
+            case Program.ADD -> a + b;
+            case Program.SUBTRACT -> b - a;
+            case Program.DIVIDE -> b / a;
+            case Program.MODULO -> b % a;
+            case Program.POWER -> (int) Math.pow(b, a);
+            default -> throw new IllegalStateException("Unexpected value: " + operation);
+        };
+        return handleSaturation(result);
+    }
+
+    static double handleSaturation(double number) {
         /*
         This helper method handles saturation. If a number is entered that is out of the range for the values of an
         integer it will either return the upper bound, or the lower bound. Else, it will simply return the number.
@@ -267,96 +672,77 @@ public class SRPN {
         return number;
     }
 
+    private void report(Diagnostic diagnostic) {
+//      Prints a diagnostic, the first one of each line is remembered as the outcome of the line.
+        if (this.outcome == null) this.outcome = diagnostic;
+        ++this.counts[CalculatorMetrics.DIAGNOSTICS + diagnostic.ordinal()];
+        this.output.diagnostic(diagnostic);
+    }
+
     private void printStack() {
         /*
-        This method copies the Stack with the integers to be processed. It then creates a new stack in order to print
-        out each integer in the correct order.
+        This method prints out each integer on the stack in order, from the bottom of the stack to the top.
          */
 
-        Stack<Double> copyOfNumbers = (Stack<Double>) this.numbers.clone();
-        Stack<Double> numbersToPrint = new Stack<>();
-
-        if (this.numbers.isEmpty()) {
-            System.out.println(Integer.MIN_VALUE);
-            return;
-        }
-
-        while (!copyOfNumbers.isEmpty()) {
-            numbersToPrint.add(copyOfNumbers.pop());
-        }
-
-        while (!numbersToPrint.isEmpty()) {
-            System.out.println((int) Math.floor(numbersToPrint.pop()));
-        }
+        ++this.counts[CalculatorMetrics.DISPLAY];
+        this.output.display(this.numbers);
     }
 
-    private static void addToStack(double toAdd, Stack<Double> stack) {
+    private void addToStack(double toAdd, OperandStack stack) {
         /*
             This helper function takes an input of a stack and a double that is intended to be added to the stack.
             It then checks the size of stack and if the stack is sufficiently small it will then add the double
             to the stack, else it will simply print "Stack overflow.".
          */
-        if (stack.size() > 22) {
-            System.out.println("Stack overflow.");
+        if (stack.isFull()) {
+            report(Diagnostic.STACK_OVERFLOW);
             return;
         }
 
-        stack.add(toAdd);
+        stack.push(toAdd);
+        if (stack.size() > this.peakDepth) this.peakDepth = stack.size();
     }
 
     private int getPseudoRandomNumber() {
         /*
             This method takes no arguments. It uses the pseudoRandomNumberIndex property to select a pseudorandom number
-            from an array.
+            from RANDOM_NUMBERS.
          */
 
-        int[] randomNumbers = new int[] {
-            1804289383,
-            846930886,
-            1681692777,
-            1714636915,
-            1957747793,
-            424238335,
-            719885386,
-            1649760492,
-            596516649,
-            1189641421,
-            1025202362,
-            1350490027,
-            783368690,
-            1102520059,
-            2044897763,
-            1967513926,
-            1365180540,
-            1540383426,
-            304089172,
-            1303455736,
-            35005211,
-            521595368,
-        };
-
-        return randomNumbers[this.pseudoRandomNumberIndex];
+        return RANDOM_NUMBERS[this.pseudoRandomNumberIndex];
     }
 
-    private String handleComment(String s) {
-/*      This method processes a string containing a "#". It splits the string at # but retains the #, it then returns
-        a string with the comments removed. To handle multi line comments it updates a boolean field which is set to
-        true when part of a string will be removed.
+    private CharSequence handleComment(CharSequence s) {
+/*      This method processes a string containing a "#". It returns the string with the comments removed. To handle
+        multi line comments it updates a boolean field which is set to true when part of a string will be removed.
+
+        A "#" only starts or ends a comment when it is surrounded by spaces or the start or end of the line, so "a#b"
+        is not a comment.
 
         For example, if this.isComment = False to begin, then this is how the following string is manipulated:
-        "# comment # notComment" -> ["#", " comment", "#", " notComment"] -> [" notComment"]. */
+        "# comment # notComment" -> " notComment". */
 
-//      The delimiter we can use is a hash that is adjacent to anything but whitespace.
-        String delimiter = "(?<![^ ])#(?![^ ])";
-//      Using positive lookahead and lookbehind we can split at our delimiter whilst adding our delimiter to the array
-        String[] comments  = s.split(String.format("((?<=%s)|(?=%s))", delimiter, delimiter));
-        StringBuilder returnString = new StringBuilder();
+        StringBuilder returnString = new StringBuilder(s.length());
 
-        for (String c: comments) {
-            if (c.equals("#")) this.isComment = !this.isComment;
-            if (!this.isComment && !c.equals("#")) returnString.append(c);
+        for (int i = 0, length = s.length(); i < length; ++i) {
+            char c = s.charAt(i);
+            boolean delimiter = c == '#' && (i == 0 || s.charAt(i - 1) == ' ')
+                    && (i == length - 1 || s.charAt(i + 1) == ' ');
+
+            if (delimiter) {
+                this.isComment = !this.isComment;
+            } else if (!this.isComment) {
+                returnString.append(c);
+            }
         }
 
-        return returnString.toString();
+        return returnString;
+    }
+
+    private static boolean contains(CharSequence s, char c) {
+        for (int i = 0, length = s.length(); i < length; ++i) {
+            if (s.charAt(i) == c) return true;
+        }
+        return false;
     }
 }
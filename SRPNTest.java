@@ -2,6 +2,33 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.jupiter.api.DisplayName;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
 public class SRPNTest {
@@ -458,4 +485,1103 @@ public class SRPNTest {
         srpn.processCommand("5+5test");
         assertEquals(10, srpn.handleInput("=", srpn.numbers));
     }
-}
\ No newline at end of file
+
+    @Test
+    @DisplayName("Handle one line inputs")
+    public void handleNegativeAdjacentText() {
+        srpn.processCommand("3");
+        srpn.processCommand("-5a");
+        assertEquals(-2, srpn.handleInput("=", srpn.numbers));
+    }
+
+    @Test
+    @DisplayName("Handle one line inputs")
+    public void handleTabsAsSpaces() {
+        srpn.processCommand("2\t3\t*");
+        assertEquals(6, srpn.handleInput("=", srpn.numbers));
+    }
+
+    @Test
+    @DisplayName("Handle stack overflow")
+    public void handleStackOverflow() {
+        for (int i = 1; i <= 25; ++i) srpn.processCommand(Integer.toString(i));
+        assertEquals(23, srpn.numbers.size());
+        assertEquals(1, srpn.numbers.get(0));
+        assertEquals(23, srpn.handleInput("=", srpn.numbers));
+    }
+
+    @Test
+    @DisplayName("Compile one line inputs into the order they are processed")
+    public void compileOneLineInput() {
+        LineCompiler compiler = new LineCompiler();
+        assertEquals("[10, 2, +, 3, 10, 2, *, +, -]", compiler.compile("10+2-3+10*2").toString());
+        assertEquals("[11, 5, 10, =, +, +, d, 2, *]", compiler.compile("11+5+10=d*2").toString());
+        assertEquals("[5, 5, t, e, s, t, +]", compiler.compile("5+5test").toString());
+    }
+
+    @Test
+    @DisplayName("Cache compiled lines separately inside and outside of comments")
+    public void cacheLinesWithCommentState() {
+        srpn.processCommand("1");
+        srpn.processCommand("#");
+        srpn.processCommand("5 #");
+        assertEquals(1, srpn.handleInput("=", srpn.numbers));
+        srpn.processCommand("5 #");
+        assertEquals(5, srpn.handleInput("=", srpn.numbers));
+        srpn.processCommand("#");
+        srpn.processCommand("1");
+        assertEquals(1, srpn.handleInput("=", srpn.numbers));
+        assertEquals(5, srpn.getCache().misses());
+        assertEquals(1, srpn.getCache().hits());
+    }
+
+    @Test
+    @DisplayName("Evict the least recently used line from the cache")
+    public void cacheEvictsLeastRecentlyUsed() {
+        LineCache cache = new LineCache(2);
+        srpn = new SRPN(cache, new MemoryOutputSink());
+        srpn.processCommand("1");
+        srpn.processCommand("2");
+        srpn.processCommand("1");
+        srpn.processCommand("3");
+        srpn.processCommand("2");
+        assertEquals(2, cache.size());
+        assertEquals(2, cache.evictions());
+        assertEquals(1, cache.hits());
+        assertEquals(2, srpn.handleInput("=", srpn.numbers));
+    }
+
+    @Test
+    @DisplayName("Capture output in memory")
+    public void captureOutputInMemory() {
+        MemoryOutputSink output = new MemoryOutputSink();
+        srpn = new SRPN(output);
+        srpn.processCommand("d");
+        srpn.processCommand("+ 5 0 /");
+        srpn.processCommand("x=");
+        assertEquals(List.of("-2147483648", "Stack underflow", "Divide by 0.",
+                "Unrecognised operator or operand \"x\"", "0"), output.lines());
+    }
+
+    @Test
+    @DisplayName("Buffer output until the end of the line")
+    public void bufferOutputUntilEndOfLine() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BufferedOutputSink output = new BufferedOutputSink(bytes);
+        srpn = new SRPN(output);
+        srpn.processCommand("-2147483648 7 d");
+        assertEquals(0, bytes.size());
+        output.flush();
+        String separator = System.lineSeparator();
+        assertEquals("-2147483648" + separator + "7" + separator, bytes.toString());
+
+//      Unrecognised characters are written in the default charset, whether they are ASCII or not.
+        bytes.reset();
+        output.unrecognised("x");
+        output.unrecognised("a\u00e9b");
+        output.flush();
+        assertEquals("Unrecognised operator or operand \"x\"" + separator
+                + "Unrecognised operator or operand \"" + new String("a\u00e9b".getBytes()) + "\"" + separator,
+                bytes.toString());
+    }
+
+    @Test
+    @DisplayName("Process lines read straight from a byte buffer")
+    public void processByteCharSequence() {
+        ByteBuffer bytes = ByteBuffer.wrap("10 # a comment #\n2*3+1\n".getBytes());
+        ByteCharSequence line = new ByteCharSequence();
+        srpn.processCommand(line.set(bytes, 0, 16));
+        srpn.processCommand(line.set(bytes, 17, 22));
+        assertEquals(7, srpn.handleInput("=", srpn.numbers));
+        srpn.processCommand(line.set(bytes, 17, 22));
+        assertEquals(1, srpn.getCache().hits());
+    }
+
+    @Test
+    @DisplayName("Stream input through the calculator one window at a time")
+    public void streamInputInWindows() throws IOException {
+        String input = "3 -5a\r\n# comment\n still # 10--5*2\n2147483648 1 + 12x d\n5test d";
+        MemoryOutputSink expected = new MemoryOutputSink();
+        SRPN lines = new SRPN(expected);
+        for (String line: input.split("\r\n|\n")) lines.processCommand(line);
+
+        MemoryOutputSink streamed = new MemoryOutputSink();
+        new StreamingEvaluator(new SRPN(streamed), 3).evaluate(new StringReader(input));
+        assertEquals(expected.lines(), streamed.lines());
+
+//      Lines that fit in the window are run by processCommand, so words can be defined and used.
+        input = ": sq dup * ;\n: dup 1 ;\n5 sq d\n" + "1+".repeat(20) + "1 d\n" + "2 ".repeat(30) + "test d";
+        expected.clear();
+        lines = new SRPN(expected);
+        for (String line: input.split("\n")) lines.processCommand(line);
+
+        streamed.clear();
+        new StreamingEvaluator(new SRPN(streamed), 32).evaluate(new StringReader(input));
+        assertEquals(expected.lines(), streamed.lines());
+    }
+
+    @Test
+    @DisplayName("Record flight recorder events for each stage")
+    public void recordStageEvents() throws IOException {
+        srpn = new SRPN(new MemoryOutputSink());
+        Path file = Files.createTempFile("srpn", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("srpn.Command");
+            recording.enable("srpn.Comment");
+            recording.enable("srpn.Compile");
+            recording.enable("srpn.Execute");
+            recording.start();
+            srpn.processCommand("1 2 + # comment #");
+            srpn.processCommand("1 2 + # comment #");
+            srpn.processCommand("5 0 / 6 d");
+            recording.stop();
+            recording.dump(file);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+        Files.delete(file);
+        assertEquals(3, events.stream().filter(e -> e.getEventType().getName().equals("srpn.Command")).count());
+        assertEquals(1, events.stream().filter(e -> e.getEventType().getName().equals("srpn.Comment")).count());
+        assertEquals(2, events.stream().filter(e -> e.getEventType().getName().equals("srpn.Compile")).count());
+        assertEquals(List.of("ok", "ok", "divide-by-zero"), events.stream()
+                .filter(e -> e.getEventType().getName().equals("srpn.Execute"))
+                .sorted((a, b) -> a.getStartTime().compareTo(b.getStartTime()))
+                .map(e -> e.getString("outcome")).toList());
+    }
+
+    @Test
+    @DisplayName("Count what the calculator does in its metrics")
+    public void countMetrics() throws JMException {
+        srpn = new SRPN(new MemoryOutputSink());
+        srpn.processCommand("1 2 + 3 * r d");
+        srpn.processCommand("+ 0 / x =");
+        srpn.processCommand("-");
+
+        CalculatorMetrics metrics = srpn.getMetrics();
+        assertEquals(3, metrics.getLinesProcessed());
+        assertEquals(2, metrics.getAdditions());
+        assertEquals(1, metrics.getSubtractions());
+        assertEquals(1, metrics.getMultiplications());
+        assertEquals(1, metrics.getDivisions());
+        assertEquals(1, metrics.getRandomDraws());
+        assertEquals(1, metrics.getDisplayEmissions());
+        assertEquals(1, metrics.getEqualsEmissions());
+        assertEquals(1, metrics.getDivideByZeros());
+        assertEquals(1, metrics.getUnrecognisedOperands());
+        assertEquals(0, metrics.getStackUnderflows());
+        assertEquals(1, metrics.getCurrentStackDepth());
+        assertEquals(2, metrics.getMaxStackDepth());
+
+        metrics.register("countMetrics");
+        ObjectName name = new ObjectName("srpn:type=Calculator,name=\"countMetrics\"");
+        assertEquals(3L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "LinesProcessed"));
+        metrics.unregister();
+        assertEquals(true, ManagementFactory.getPlatformMBeanServer()
+                .isRegistered(new ObjectName("srpn:type=Calculator,name=\"process\"")));
+
+//      Calculators can share their metrics, a new one adds nothing until it runs a line.
+        CalculatorMetrics shared = new CalculatorMetrics();
+        SRPN first = new SRPN(null, new MemoryOutputSink(), shared);
+        SRPN second = new SRPN(null, new MemoryOutputSink(), shared);
+        assertEquals(0, shared.getLinesProcessed());
+        first.processCommand("1 2 +");
+        second.processCommand("3 4 5 + +");
+        assertEquals(2, shared.getLinesProcessed());
+        assertEquals(3, shared.getAdditions());
+        assertEquals(2, shared.getCurrentStackDepth());
+    }
+
+    @Test
+    @DisplayName("Serve an independent calculator to each connection")
+    public void serveSessions() throws IOException, InterruptedException {
+        String input = "1 2 + d\n r r d\r5 d\n# comment\n3 # and\r\n#\n*\n x =";
+        MemoryOutputSink expected = new MemoryOutputSink();
+        SRPN local = new SRPN(expected);
+        for (String line: input.split("\r\n|\r|\n")) local.processCommand(line);
+
+        try (Server server = new Server(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2)) {
+            server.start();
+            List<Socket> sockets = new ArrayList<>();
+            try {
+                for (int i = 0; i < 50; ++i) {
+                    Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+                    sockets.add(socket);
+                    socket.getOutputStream().write(input.getBytes());
+                    socket.shutdownOutput();
+                }
+                for (Socket socket: sockets) {
+                    InputStream in = socket.getInputStream();
+                    assertEquals(expected.toString() + System.lineSeparator(), new String(in.readAllBytes()));
+                }
+            } finally {
+                for (Socket socket: sockets) socket.close();
+            }
+
+//          A client that sends all its input before reading gets all its output, however much is waiting, and a
+//          session that has ended leaves nothing on the stack depth of the process.
+            StringBuilder lines = new StringBuilder();
+            for (int i = 1; i <= OperandStack.CAPACITY; ++i) lines.append(i).append(' ');
+            lines.append(" ".repeat(300_000)).append('\n').append("d\n".repeat(30_000));
+            MemoryOutputSink many = new MemoryOutputSink();
+            SRPN manyLocal = new SRPN(many);
+            for (String line: lines.toString().split("\n")) manyLocal.processCommand(line);
+
+            long depth = CalculatorMetrics.PROCESS.getCurrentStackDepth();
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+                Thread writer = new Thread(() -> {
+                    try {
+                        socket.getOutputStream().write(lines.toString().getBytes());
+                        socket.shutdownOutput();
+                    } catch (IOException e) {
+                        throw new java.io.UncheckedIOException(e);
+                    }
+                });
+                writer.start();
+                Thread.sleep(200);
+                assertEquals(many.toString() + System.lineSeparator(), new String(socket.getInputStream().readAllBytes()));
+                writer.join();
+            }
+            assertEquals(depth, CalculatorMetrics.PROCESS.getCurrentStackDepth());
+        }
+    }
+
+    @Test
+    @DisplayName("Run each session on a thread of its own")
+    public void runSessionsOnThreads() throws InterruptedException {
+        String input = "1 2 + d\r\n r r d\r# comment\n3 # and\r\n#\n*\n" + "1+".repeat(200) + "1\n x =";
+        MemoryOutputSink expected = new MemoryOutputSink();
+        SRPN local = new SRPN(expected);
+        for (String line: input.split("\r\n|\r|\n")) local.processCommand(line);
+        long depth = CalculatorMetrics.PROCESS.getCurrentStackDepth();
+
+        for (SessionRunner runner: List.of(new SessionRunner(), new SessionRunner(SessionRunner.platformThreadFactory()))) {
+            List<MemoryOutputSink> outputs = new ArrayList<>();
+            List<SessionRunner.Session> sessions = new ArrayList<>();
+            for (int i = 0; i < 100; ++i) {
+                MemoryOutputSink output = new MemoryOutputSink();
+                outputs.add(output);
+                sessions.add(runner.start(new ByteArrayInputStream(input.getBytes()), output));
+            }
+            for (SessionRunner.Session session: sessions) session.join();
+
+            for (int i = 0; i < 100; ++i) {
+                assertEquals(null, sessions.get(i).failure());
+                assertEquals(expected.lines(), outputs.get(i).lines());
+            }
+            assertEquals(0, runner.activeSessions());
+//          Sessions that have ended leave nothing on the stack depth of the process.
+            assertEquals(depth, CalculatorMetrics.PROCESS.getCurrentStackDepth());
+        }
+
+//      A line that is too long, or an OutputSink that throws, ends the session with the failure.
+        SessionRunner runner = new SessionRunner(SessionRunner.platformThreadFactory());
+        byte[] longLine = new byte[Server.MAX_LINE_LENGTH + 1];
+        Arrays.fill(longLine, (byte) '1');
+        SessionRunner.Session tooLong = runner.start(new ByteArrayInputStream(longLine), new MemoryOutputSink());
+        SessionRunner.Session broken = runner.start(new ByteArrayInputStream("1 2 d\n".getBytes()), new MemoryOutputSink() {
+            @Override
+            public void value(int value) {
+                throw new IllegalStateException("Sink is broken");
+            }
+        });
+        tooLong.join();
+        broken.join();
+        assertEquals(IOException.class, tooLong.failure().getClass());
+        assertEquals(IllegalStateException.class, broken.failure().getClass());
+        assertEquals(depth, CalculatorMetrics.PROCESS.getCurrentStackDepth());
+    }
+
+    @Test
+    @DisplayName("Pipeline output matches the serial output")
+    public void pipelineMatchesSerial() throws IOException {
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 5000; ++i) input.append(i % 7).append(i % 3 == 0 ? " + d\n" : " r * # x\n").append("=\n");
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        BufferedOutputSink sink = new BufferedOutputSink(expected);
+        SRPN serial = new SRPN(sink);
+        for (String line: input.toString().split("\n")) serial.processCommand(line);
+        sink.flush();
+
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        new Pipeline().run(new ByteArrayInputStream(input.toString().getBytes()), actual);
+        assertEquals(expected.toString(), actual.toString());
+    }
+
+    @Test
+    @DisplayName("Evaluate independent scripts in parallel")
+    public void evaluateScriptsInParallel() {
+        List<String> scripts = new ArrayList<>();
+        for (int i = 0; i < 2000; ++i) {
+            scripts.add(i % 5 == 0 ? "r r d\r\n# open\n" + i + " d" : i + " " + (i % 7) + " /\r" + (i % 3) + " * d\n=");
+        }
+
+        BatchEvaluator evaluator = new BatchEvaluator();
+        List<ScriptResult> results = evaluator.evaluate(scripts.stream());
+        assertEquals(true, evaluator.idleWorkers() >= 1);
+        evaluator.evaluate(scripts.subList(0, 100));
+        assertEquals(true, evaluator.idleWorkers() <= 2 * java.util.concurrent.ForkJoinPool.commonPool().getParallelism());
+
+        assertEquals(scripts.size(), results.size());
+        for (int i = 0; i < scripts.size(); ++i) {
+            MemoryOutputSink output = new MemoryOutputSink();
+            SRPN fresh = new SRPN(output);
+            for (String line: scripts.get(i).split("\r\n|\r|\n")) fresh.processCommand(line);
+            assertEquals(output.lines(), results.get(i).output());
+            assertEquals(Arrays.toString(fresh.numbers.toArray()), Arrays.toString(results.get(i).stack()));
+        }
+    }
+
+    @Test
+    @DisplayName("Evaluate long arithmetic in parallel with the same result")
+    public void evaluateTreesInParallel() {
+        java.util.Random random = new java.util.Random(15);
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 300; ++i) {
+            StringBuilder line = new StringBuilder();
+            int trees = 1 + random.nextInt(3);
+            for (int j = 0; j < trees; ++j) appendTree(line, random, 1 + random.nextInt(9));
+            if (i % 10 == 0) line.append("10+2*3-4/0%5^2 - - d");
+            lines.add(line.append(random.nextInt(4) == 0 ? "d" : "").toString());
+        }
+
+//      A long chain is left to the sequential path, and a chain on top of a tree is evaluated around the tree.
+        lines.add("1" + " 3 -".repeat(100_000) + " d");
+        StringBuilder spine = new StringBuilder();
+        appendTree(spine, random, 9);
+        lines.add(spine.append("2 * 1 - ".repeat(50)).append('d').toString());
+
+        MemoryOutputSink sequentialOutput = new MemoryOutputSink();
+        SRPN sequential = new SRPN(sequentialOutput);
+        MemoryOutputSink parallelOutput = new MemoryOutputSink();
+        SRPN parallel = new SRPN(parallelOutput);
+        parallel.setTreeEvaluator(new TreeEvaluator(java.util.concurrent.ForkJoinPool.commonPool(), 2));
+
+        for (String line: lines) {
+            sequential.processCommand(line);
+            parallel.processCommand(line);
+            assertEquals(Arrays.toString(sequential.numbers.toArray()), Arrays.toString(parallel.numbers.toArray()));
+        }
+        assertEquals(sequentialOutput.lines(), parallelOutput.lines());
+        assertEquals(sequential.getMetrics().getDivisions(), parallel.getMetrics().getDivisions());
+        assertEquals(sequential.getMetrics().getMaxStackDepth(), parallel.getMetrics().getMaxStackDepth());
+    }
+
+    private static void appendTree(StringBuilder line, java.util.Random random, int height) {
+        if (height == 0) {
+            int[] values = {0, 1, 2, 3, 7, -5, 46341, 2147483647, -2147483648};
+            line.append(values[random.nextInt(values.length)]).append(' ');
+            return;
+        }
+        appendTree(line, random, random.nextInt(height));
+        appendTree(line, random, height - 1);
+        line.append("+-*/%^".charAt(random.nextInt(6))).append(' ');
+    }
+
+    @Test
+    @DisplayName("Compile hot lines to bytecode with the same result")
+    public void compileHotLines() {
+        String[] lines = {"1 2 + d", "r r r * -", "10+2-3+10*2", "0 -0 * 5 0 / % =", "x 7 \u20ac ^ d", "",
+                "1 1 1 1 1 1 1 1 1 1 1 1 1 1 1 1 1 1 1 1 1 1 1 1 1", "+ + + + + + + + + + + + + + + + + + + + + + + =",
+                "-5 3 % 2147483647 2 * d", "# comment # 4 -", "d d d", "7 2 / 3 * 4 0 / 5 + d", "0 * 1 + 3 r - 4 % d",
+                "d 5 5 5 5 5 5 5 5 5 5 5 5 5 5 5 5 5 5 5 5 5 5 5 + d"};
+
+        MemoryOutputSink interpretedOutput = new MemoryOutputSink();
+        SRPN interpreted = new SRPN(interpretedOutput);
+        interpreted.setCompileThreshold(0);
+        MemoryOutputSink compiledOutput = new MemoryOutputSink();
+        SRPN compiled = new SRPN(compiledOutput);
+        compiled.setCompileThreshold(2);
+
+        for (int i = 0; i < 5; ++i) {
+            for (String line: lines) {
+                interpreted.processCommand(line);
+                compiled.processCommand(line);
+                assertEquals(Arrays.toString(interpreted.numbers.toArray()), Arrays.toString(compiled.numbers.toArray()));
+            }
+        }
+        assertEquals(interpretedOutput.lines(), compiledOutput.lines());
+        assertEquals(true, compiled.getCache().get("r r r * -", false).compiled != null);
+        assertEquals(null, interpreted.getCache().get("r r r * -", false).compiled);
+
+//      A line whose method would be too big for the JIT to compile is left to the interpreter.
+        String big = " 1 +".repeat(1000);
+        compiled.processCommand(big);
+        compiled.processCommand(big);
+        assertEquals(null, compiled.getCache().get(big, false).compiled);
+
+//      A line longer than the cache takes is run without being kept.
+        String huge = " 1 +".repeat(3000);
+        compiled.processCommand(huge);
+        assertEquals(null, compiled.getCache().get(huge, false));
+        assertEquals(true, compiled.getCache().get("7 2 / 3 * 4 0 / 5 + d", false).compiled != null);
+    }
+
+    @Test
+    @DisplayName("Fold constant arithmetic when it cannot overflow")
+    public void foldConstants() {
+        srpn = new SRPN(new MemoryOutputSink());
+        srpn.processCommand("3*4+2^8");
+        srpn.processCommand("5 0 / 3 r +");
+        assertEquals("[268]", srpn.getCache().get("3*4+2^8", false).folded().toString());
+        assertEquals(null, srpn.getCache().get("5 0 / 3 r +", false).folded());
+
+        String[] lines = {"1 1 1 1 1 1 1 1 1 1 1 1 1 1 1 1 1 1 1 1 1", "r3*4", "d", "3 4 + 5 6 * d", "3 4 + 5 6 * d", "+ + + + + + + d",
+                "3 4 + 5 6 * d", "2147483647 2 * 1 + -2 / d", "10 3 % 0 -5 * d", "= + + + + + + + + + + + + + + + d"};
+        MemoryOutputSink foldedOutput = new MemoryOutputSink();
+        SRPN folded = new SRPN(foldedOutput);
+        MemoryOutputSink originalOutput = new MemoryOutputSink();
+        SRPN original = new SRPN(originalOutput);
+        LineCompiler compiler = new LineCompiler();
+
+        for (String line: lines) {
+            folded.processCommand(line);
+            original.execute(compiler.compile(line));
+            original.endOfLine();
+        }
+        assertEquals(originalOutput.lines(), foldedOutput.lines());
+        assertEquals(original.getMetrics().getAdditions(), folded.getMetrics().getAdditions());
+        assertEquals(original.getMetrics().getMaxStackDepth(), folded.getMetrics().getMaxStackDepth());
+    }
+
+    @Test
+    @DisplayName("Evaluate a template over columns like the calculator would")
+    public void evaluateColumns() {
+        java.util.Random random = new java.util.Random(18);
+        int rows = 3000;
+        int[][] columns = new int[3][rows];
+        int[] values = {0, 1, -1, 2, 7, -13, 46341, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        for (int[] column: columns) {
+            for (int i = 0; i < rows; ++i) column[i] = random.nextBoolean() ? values[random.nextInt(values.length)] : random.nextInt();
+        }
+
+        String[] templates = {"$0*$1+$2", "$0 $1 / $2 -", "$0%$1^2 $2 +", "3 $2 - $0 *", "$1/$0/$2", "$0 $1 - $2 ^", "-5 $1 -", "$0-$1"};
+        for (String text: templates) {
+            ColumnTemplate template = ColumnTemplate.compile(text);
+            int[] vectorised = template.evaluate(columns);
+            int[] scalar = new int[rows];
+            template.evaluate(columns, scalar, ColumnKernels.SCALAR);
+
+            for (int i = 0; i < rows; ++i) {
+                SRPN calculator = new SRPN(new MemoryOutputSink());
+                calculator.processCommand(text.replace("$0", Integer.toString(columns[0][i]))
+                        .replace("$1", Integer.toString(columns[1][i])).replace("$2", Integer.toString(columns[2][i])));
+                int expected = calculator.handleInput("=", calculator.numbers);
+                assertEquals(expected, vectorised[i], text + " row " + i);
+                assertEquals(expected, scalar[i], text + " row " + i);
+            }
+        }
+        assertEquals(true, ColumnTemplate.isVectorized());
+
+        for (String text: new String[] {"$0 -$1", "1$0", "$0$1", "$0 r +", "$0 +", "-$0", "$0x"}) {
+            boolean rejected = false;
+            try {
+                ColumnTemplate.compile(text);
+            } catch (IllegalArgumentException e) {
+                rejected = true;
+            }
+            assertEquals(true, rejected, text);
+        }
+    }
+
+    @Test
+    @DisplayName("Integer arithmetic gives the same results as double arithmetic")
+    public void integerArithmeticMatchesDoubles() {
+        List<Integer> edges = new ArrayList<>();
+        for (int i = -64; i <= 64; ++i) edges.add(i);
+        for (int shift = 6; shift < 32; ++shift) {
+            for (int offset = -1; offset <= 1; ++offset) {
+                edges.add((1 << shift) + offset);
+                edges.add(-(1 << shift) + offset);
+            }
+        }
+        for (int value: new int[] {1290, 1291, 46340, 46341, 65535, 65536, Integer.MAX_VALUE, Integer.MIN_VALUE}) {
+            edges.add(value);
+            edges.add(-value);
+        }
+
+        byte[] operators = {Program.ADD, Program.SUBTRACT, Program.MULTIPLY, Program.DIVIDE, Program.MODULO, Program.POWER};
+        for (byte operator: operators) {
+            for (int b: edges) {
+                for (int a: edges) assertSameArithmetic(operator, b, a);
+            }
+        }
+
+        java.util.Random random = new java.util.Random(19);
+        for (int i = 0; i < 2_000_000; ++i) {
+            byte operator = operators[random.nextInt(operators.length)];
+            int b = random.nextInt();
+            int a = random.nextInt(3) == 0 ? random.nextInt(64) - 8 : random.nextInt();
+            if (random.nextBoolean()) b = b >> random.nextInt(32);
+            assertSameArithmetic(operator, b, a);
+        }
+
+//      The results that are not whole numbers go on the stack as doubles and keep behaving like them.
+        SRPN srpn = new SRPN(new MemoryOutputSink());
+        srpn.processCommand("0 -5 * -4 2 % 7 2 / 5 0 %");
+        assertEquals(Double.doubleToRawLongBits(-0.0), Double.doubleToRawLongBits(srpn.numbers.get(0)));
+        assertEquals(Double.doubleToRawLongBits(-0.0), Double.doubleToRawLongBits(srpn.numbers.get(1)));
+        assertEquals(3.5, srpn.numbers.get(2));
+        assertEquals(true, Double.isNaN(srpn.numbers.get(3)));
+        assertEquals(false, srpn.numbers.isInt(2));
+        assertEquals(0, srpn.handleInput("=", srpn.numbers));
+        srpn.processCommand("d 3 * 1 0 -2 * /");
+        assertEquals(6, srpn.numbers.size());
+        assertEquals(true, srpn.numbers.isInt(4));
+        assertEquals(true, srpn.numbers.isTopZero());
+    }
+
+    private static void assertSameArithmetic(byte operator, int b, int a) {
+//      Division by zero never reaches the arithmetic, the calculator checks for it first.
+        if (operator == Program.DIVIDE && a == 0) return;
+
+        double expected = SRPN.apply(operator, b, a);
+        long result = IntArithmetic.apply(operator, b, a);
+        String message = b + " " + a + " " + operator;
+        if (result == IntArithmetic.NOT_AN_INT) {
+            boolean wholeNumber = expected == (int) expected && Double.doubleToRawLongBits(expected) != Double.doubleToRawLongBits(-0.0);
+            assertEquals(false, wholeNumber, message);
+        } else {
+            assertEquals(Double.doubleToRawLongBits(expected), Double.doubleToRawLongBits((double) result), message);
+        }
+    }
+
+    @Test
+    @DisplayName("Evaluate lines through the embedding API without allocating")
+    public void embedWithoutAllocating() {
+        CountingSink sink = new CountingSink();
+        String[] lines = {"3 4 + 5 * =", "d", "1 0 /", "x", "1 # comment", "still # 2", "10 3 % 7 - 2 ^ =", "r r + =",
+                "+ + + + =", "0 -5 * 7 2 / + ="};
+
+        Calculator calculator = new Calculator();
+        assertEquals(null, calculator.evaluate("3 4 +", sink));
+        assertEquals(null, calculator.evaluate("=", sink));
+        assertEquals(7, sink.last);
+        assertEquals(Diagnostic.DIVIDE_BY_ZERO, calculator.evaluate("0 / x", sink));
+        assertEquals('x', sink.lastUnrecognised);
+        calculator.reset();
+        assertEquals(0, calculator.depth());
+        assertEquals(Diagnostic.STACK_EMPTY, calculator.evaluate("=", sink));
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        for (int i = 0; i < 20_000; ++i) {
+            for (String line: lines) calculator.evaluate(line, sink);
+            if (i % 2 == 0) calculator.reset();
+        }
+        sink.values = 0;
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < 1000; ++i) {
+            for (String line: lines) calculator.evaluate(line, sink);
+            if (i % 2 == 0) calculator.reset();
+        }
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+        assertEquals(0L, allocated);
+        assertEquals(true, sink.values > 0);
+
+//      The output is what the calculator prints, as values.
+        MemoryOutputSink expected = new MemoryOutputSink();
+        SRPN srpn = new SRPN(expected);
+        MemoryOutputSink actual = new MemoryOutputSink();
+        ResultSink forward = new ResultSink() {
+            public void value(int value) { actual.value(value); }
+            public void diagnostic(Diagnostic diagnostic) { actual.diagnostic(diagnostic); }
+            public void unrecognised(char operand) { actual.unrecognised(String.valueOf(operand)); }
+        };
+        calculator.reset();
+        for (String line: lines) {
+            srpn.processCommand(line);
+            calculator.evaluate(line, forward);
+        }
+        assertEquals(expected.lines(), actual.lines());
+    }
+
+    @Test
+    @DisplayName("Lend calculators from a pool")
+    public void poolCalculators() throws InterruptedException {
+        CalculatorPool pool = new CalculatorPool(2, 16);
+        Calculator first = pool.acquire();
+        first.evaluate("1 2 3", new CountingSink());
+        first.close();
+        assertEquals(1, pool.idle());
+
+//      Closing a calculator twice gives it back once, so two threads never acquire the same one.
+        first.close();
+        assertEquals(1, pool.idle());
+
+        Calculator again = pool.acquire();
+        assertEquals(first, again);
+        assertEquals(0, again.depth());
+        assertEquals(0, pool.idle());
+        again.close();
+
+        List<Thread> threads = new ArrayList<>();
+        int[] totals = new int[8];
+        for (int t = 0; t < totals.length; ++t) {
+            int index = t;
+            Thread thread = new Thread(() -> {
+                CountingSink sink = new CountingSink();
+                for (int i = 0; i < 2000; ++i) {
+                    try (Calculator calculator = pool.acquire()) {
+                        calculator.evaluate(index + " " + i + " +", sink);
+                        calculator.evaluate("=", sink);
+                        totals[index] += sink.last - index - i;
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread: threads) thread.join();
+
+        for (int total: totals) assertEquals(0, total);
+        assertEquals(2, pool.idle());
+    }
+
+    private static final class CountingSink implements ResultSink {
+        int values;
+        int last;
+        int diagnostics;
+        char lastUnrecognised;
+
+        @Override
+        public void value(int value) {
+            ++this.values;
+            this.last = value;
+        }
+
+        @Override
+        public void diagnostic(Diagnostic diagnostic) {
+            ++this.diagnostics;
+        }
+
+        @Override
+        public void unrecognised(char operand) {
+            this.lastUnrecognised = operand;
+        }
+    }
+
+    @Test
+    @DisplayName("Restore a calculator from a snapshot")
+    public void snapshotAndRestore() {
+        MemoryOutputSink originalOutput = new MemoryOutputSink();
+        SRPN original = new SRPN(originalOutput);
+        original.processCommand(": sq 2 ^ ;");
+        original.processCommand("0 -5 * 7 2 / 5 0 % r r 2147483647 -12 # open comment");
+
+        ByteBuffer buffer = ByteBuffer.allocate(SRPN.MAX_SNAPSHOT_BYTES);
+        original.snapshot(buffer);
+        assertEquals(original.snapshotSize(), buffer.position());
+        buffer.flip();
+
+        MemoryOutputSink restoredOutput = new MemoryOutputSink();
+        SRPN restored = new SRPN(restoredOutput);
+        restored.processCommand("1 2 3");
+        restored.restore(buffer);
+        assertEquals(0, buffer.remaining());
+        assertEquals(Arrays.toString(original.numbers.toArray()), Arrays.toString(restored.numbers.toArray()));
+        assertEquals(Double.doubleToRawLongBits(-0.0), Double.doubleToRawLongBits(restored.numbers.get(0)));
+
+        for (String line: new String[] {"still in the comment # d", "r d", "+ + + = d", "/ / d", "3 sq ="}) {
+            original.processCommand(line);
+            restored.processCommand(line);
+        }
+        assertEquals(originalOutput.lines(), restoredOutput.lines());
+
+//      A full stack and as many words as fit take the most bytes, and a bad snapshot leaves the calculator alone.
+        MemoryOutputSink fullOutput = new MemoryOutputSink();
+        SRPN full = new SRPN(fullOutput);
+        for (int i = 0; i < OperandStack.CAPACITY; ++i) full.numbers.push(1.0 / 3);
+        full.processCommand(": a" + " ".repeat(1018) + ";");
+        full.processCommand(": b ;");
+        assertEquals(List.of("Word limit reached."), fullOutput.lines());
+        buffer.clear();
+        full.snapshot(buffer);
+        assertEquals(SRPN.MAX_SNAPSHOT_BYTES, buffer.position());
+
+        buffer.flip();
+        buffer.put(0, (byte) 99);
+        boolean rejected = false;
+        try {
+            restored.restore(buffer);
+        } catch (IllegalArgumentException e) {
+            rejected = true;
+        }
+        assertEquals(true, rejected);
+        assertEquals(0, buffer.position());
+        assertEquals(Arrays.toString(original.numbers.toArray()), Arrays.toString(restored.numbers.toArray()));
+        assertEquals(1, restored.getDictionary().size());
+
+//      A version 1 snapshot is the same without the words, it restores the stack and forgets the words of the session.
+        buffer.clear();
+        buffer.put((byte) 1).put((byte) 0).put((byte) 2);
+        OperandStack numbers = new OperandStack();
+        numbers.push(4);
+        numbers.push(-1);
+        numbers.writeTo(buffer);
+        buffer.flip();
+        restored.restore(buffer);
+        assertEquals(0, buffer.remaining());
+        assertEquals("[4.0, -1.0]", Arrays.toString(restored.numbers.toArray()));
+        assertEquals(0, restored.getDictionary().size());
+        restoredOutput.clear();
+        restored.processCommand("r d");
+        MemoryOutputSink freshOutput = new MemoryOutputSink();
+        new SRPN(freshOutput).processCommand("r r r d");
+        assertEquals(List.of("4", "-1", freshOutput.lines().get(2)), restoredOutput.lines());
+    }
+
+    @Test
+    @DisplayName("Save and restore many sessions through a snapshot file")
+    public void snapshotManySessions() throws IOException {
+        Map<Long, SRPN> sessions = new HashMap<>();
+        for (long id = 0; id < 20_000; ++id) {
+            SRPN calculator = new SRPN(new MemoryOutputSink());
+            calculator.processCommand(id + " " + (id % 7) + " / r");
+            sessions.put(id * 31, calculator);
+        }
+
+        Path file = Files.createTempFile("sessions", ".snapshot");
+        try {
+            SnapshotFile.write(file, sessions);
+            Map<Long, SRPN> restored = new HashMap<>();
+            int count = SnapshotFile.read(file, id -> restored.computeIfAbsent(id, key -> new SRPN(new MemoryOutputSink())));
+
+            assertEquals(sessions.size(), count);
+            assertEquals(sessions.size(), restored.size());
+            for (Map.Entry<Long, SRPN> session: sessions.entrySet()) {
+                assertEquals(Arrays.toString(session.getValue().numbers.toArray()),
+                        Arrays.toString(restored.get(session.getKey()).numbers.toArray()));
+            }
+
+            Files.write(file, new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10});
+            boolean rejected = false;
+            try {
+                SnapshotFile.read(file, id -> new SRPN(new MemoryOutputSink()));
+            } catch (IOException e) {
+                rejected = true;
+            }
+            assertEquals(true, rejected);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    @DisplayName("Recover sessions from a snapshot and the journal")
+    public void journalAndRecover() throws IOException {
+        Path directory = Files.createTempDirectory("journal");
+        Path snapshot = directory.resolve("sessions.snapshot");
+        Path logs = directory.resolve("logs");
+        String[] lines = {"1 2 +", "3 r *", "# open", "still open #", "10 3 /", "d", "é€\uD83D\uDE00 x", "5 0 /", "^ - %", ": sq 2 ^ ;", "3 sq"};
+
+        try {
+            Map<Long, SRPN> sessions = new HashMap<>();
+            Journal journal = new Journal(logs, 256, TimeUnit.MICROSECONDS.toNanos(200));
+            for (long id = 1; id <= 5; ++id) {
+                SRPN calculator = new SRPN(new MemoryOutputSink());
+                calculator.setJournal(journal, id);
+                sessions.put(id, calculator);
+            }
+
+            for (int i = 0; i < 40; ++i) {
+                for (Map.Entry<Long, SRPN> session: sessions.entrySet()) {
+                    session.getValue().processCommand(lines[(int) ((i + session.getKey()) % lines.length)]);
+                }
+                journal.awaitDurable(journal.lastSequence());
+            }
+            long covered = journal.lastSequence();
+            journal.awaitDurable(covered);
+            assertEquals(200L, covered);
+            SnapshotFile.write(snapshot, sessions, covered);
+            assertEquals(true, journal.compact(covered) > 0);
+
+            for (int i = 0; i < 13; ++i) {
+                for (Map.Entry<Long, SRPN> session: sessions.entrySet()) {
+                    session.getValue().processCommand(lines[(int) ((i * session.getKey()) % lines.length)]);
+                }
+            }
+            journal.awaitDurable(journal.lastSequence());
+            journal.close();
+
+//          A record torn by a crash is cut off.
+            List<Path> segments;
+            try (java.util.stream.Stream<Path> files = Files.list(logs)) {
+                segments = files.sorted().toList();
+            }
+            Files.write(segments.get(segments.size() - 1), new byte[] {0, 0, 0, 40, 1, 2, 3}, java.nio.file.StandardOpenOption.APPEND);
+
+            Map<Long, SRPN> recovered = new HashMap<>();
+            long last = Journal.recover(snapshot, logs, id -> recovered.computeIfAbsent(id, key -> new SRPN(new MemoryOutputSink())));
+            assertEquals(265L, last);
+            for (Map.Entry<Long, SRPN> session: sessions.entrySet()) {
+                ByteBuffer expected = ByteBuffer.allocate(SRPN.MAX_SNAPSHOT_BYTES);
+                session.getValue().snapshot(expected);
+                ByteBuffer actual = ByteBuffer.allocate(SRPN.MAX_SNAPSHOT_BYTES);
+                recovered.get(session.getKey()).snapshot(actual);
+                assertEquals(expected.flip(), actual.flip());
+            }
+
+            List<String> replayed = new ArrayList<>();
+            try (Journal reopened = new Journal(logs, 256, 0)) {
+                assertEquals(265L, reopened.lastSequence());
+                reopened.awaitDurable(reopened.append(9, "7 8 +"));
+            }
+            assertEquals(266L, Journal.replay(logs, 0, (sequence, session, line) -> replayed.add(line.toString())));
+            assertEquals(true, replayed.contains(lines[6]));
+            assertEquals("7 8 +", replayed.get(replayed.size() - 1));
+        } finally {
+            try (java.util.stream.Stream<Path> files = Files.walk(directory)) {
+                for (Path path: files.sorted(java.util.Comparator.reverseOrder()).toList()) Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Spill sessions from a store and restore them on access")
+    public void storeSessions() throws IOException, InterruptedException {
+        Path spill = Files.createTempFile("sessions", ".spill");
+        String[] lines = {"1 2 +", "3 r *", "10 3 /", "# open", "still open #", "5 0 /", "^ - %", "0 -4 *", "7 8 9", ": sq 2 ^ ;", "3 sq"};
+
+        try (SessionStore store = new SessionStore(spill, 4, 64, id -> new SRPN(new MemoryOutputSink()))) {
+            Map<Long, SRPN> expected = new HashMap<>();
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < 4; ++t) {
+                Map<Long, SRPN> own = new HashMap<>();
+                long first = t * 500L;
+                for (long id = first; id < first + 500; ++id) own.put(id << 40, new SRPN(new MemoryOutputSink()));
+                expected.putAll(own);
+
+                Thread thread = new Thread(() -> {
+                    java.util.Random random = new java.util.Random(first);
+                    for (int i = 0; i < 20_000; ++i) {
+                        long id = (first + random.nextInt(500)) << 40;
+                        String line = lines[random.nextInt(lines.length)];
+                        store.processCommand(id, line);
+                        own.get(id).processCommand(line);
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+            for (Thread thread: threads) thread.join();
+
+            assertEquals(2000L, store.size());
+            assertEquals(true, store.resident() <= 64);
+            assertEquals(true, store.spilled() >= 2000 - 64);
+
+            store.evictIdle(0);
+            assertEquals(0, store.resident());
+            for (Map.Entry<Long, SRPN> session: expected.entrySet()) {
+                double[] stack = store.apply(session.getKey(), calculator -> calculator.numbers.toArray());
+                assertEquals(Arrays.toString(session.getValue().numbers.toArray()), Arrays.toString(stack));
+            }
+
+//          Slots are reused, the file never needs more than one for each session.
+            assertEquals(true, store.spillBytes() <= 2000L * (8 + SRPN.MAX_SNAPSHOT_BYTES));
+            assertEquals(true, store.remove(0L));
+            assertEquals(false, store.remove(0L));
+            assertEquals(1999L, store.size());
+            assertEquals(0, (int) store.apply(0L, calculator -> calculator.numbers.size()));
+        }
+
+//      The stack depth of the process counts the sessions in memory, however often they are spilled and reloaded.
+        long depth = CalculatorMetrics.PROCESS.getCurrentStackDepth();
+        try (SessionStore store = new SessionStore(spill, 1, 1, id -> new SRPN(null, new MemoryOutputSink(), CalculatorMetrics.PROCESS))) {
+            for (long id = 0; id < 3; ++id) store.processCommand(id, "1 2 3");
+            for (int round = 0; round < 5; ++round) {
+                for (long id = 0; id < 3; ++id) store.processCommand(id, "");
+                assertEquals(depth + 3, CalculatorMetrics.PROCESS.getCurrentStackDepth());
+            }
+            for (long id = 0; id < 3; ++id) store.remove(id);
+            assertEquals(depth, CalculatorMetrics.PROCESS.getCurrentStackDepth());
+        }
+
+        assertEquals(1000, SessionStore.maxResidentFor(1000L * SessionStore.RESIDENT_SESSION_BYTES));
+        assertEquals(SessionStore.DEFAULT_SHARDS, SessionStore.maxResidentFor(0));
+        try (SessionStore store = new SessionStore(spill, id -> new SRPN(new MemoryOutputSink()))) {
+            store.processCommand(1L, "3 4 +");
+            assertEquals(7.0, (double) store.apply(1L, calculator -> calculator.numbers.get(0)));
+        }
+        assertEquals(false, Files.exists(spill));
+    }
+
+    @Test
+    @DisplayName("Publish results to a slow subscriber with backpressure")
+    public void processWithBackpressure() throws InterruptedException {
+        String[] lines = {"3 4 + =", "d", "1 0 /", "x y", "10 3 / 2 * =", "# open", "d # d", "r r r d", "+ + + + + + + ="};
+        List<String> input = new ArrayList<>();
+        for (int i = 0; i < 3000; ++i) input.add(lines[i % lines.length]);
+
+        MemoryOutputSink expected = new MemoryOutputSink();
+        SRPN reference = new SRPN(expected);
+        for (String line: input) reference.processCommand(line);
+
+//      A subscriber that takes one result at a time.
+        MemoryOutputSink actual = new MemoryOutputSink();
+        java.util.concurrent.CountDownLatch completed = new java.util.concurrent.CountDownLatch(1);
+        List<Result.Kind> kinds = new ArrayList<>();
+        CalculatorProcessor processor = new CalculatorProcessor(16);
+        processor.subscribe(new Flow.Subscriber<>() {
+            Flow.Subscription subscription;
+
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            public void onNext(Result result) {
+                result.printTo(actual);
+                kinds.add(result.kind());
+                this.subscription.request(1);
+            }
+
+            public void onError(Throwable throwable) {}
+
+            public void onComplete() {
+                completed.countDown();
+            }
+        });
+
+        try (SubmissionPublisher<String> publisher = new SubmissionPublisher<>(java.util.concurrent.ForkJoinPool.commonPool(), 8)) {
+            publisher.subscribe(processor);
+            for (String line: input) publisher.submit(line);
+        }
+        assertEquals(true, completed.await(30, TimeUnit.SECONDS));
+        assertEquals(expected.lines(), actual.lines());
+        assertEquals(true, kinds.contains(Result.Kind.DISPLAY));
+        assertEquals(true, kinds.contains(Result.Kind.UNRECOGNISED));
+
+//      Without demand only the buffered lines are taken from upstream.
+        long[] requested = {0};
+        CalculatorProcessor idle = new CalculatorProcessor(16);
+        idle.subscribe(new Flow.Subscriber<>() {
+            public void onSubscribe(Flow.Subscription subscription) {}
+            public void onNext(Result result) {}
+            public void onError(Throwable throwable) {}
+            public void onComplete() {}
+        });
+        idle.onSubscribe(new Flow.Subscription() {
+            public void request(long n) {
+                requested[0] += n;
+            }
+
+            public void cancel() {}
+        });
+        for (int i = 0; i < requested[0]; ++i) idle.onNext("1 d");
+        assertEquals(16L, requested[0]);
+
+//      Results already waiting are not published from inside the subscriber's onSubscribe.
+        CalculatorProcessor ready = new CalculatorProcessor(16);
+        ready.onSubscribe(new Flow.Subscription() {
+            public void request(long n) {}
+            public void cancel() {}
+        });
+        ready.onNext("1 d");
+        ready.onComplete();
+        List<String> signals = new ArrayList<>();
+        ready.subscribe(new Flow.Subscriber<>() {
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(1);
+                signals.add("subscribed");
+            }
+
+            public void onNext(Result result) {
+                signals.add("next");
+            }
+
+            public void onError(Throwable throwable) {}
+
+            public void onComplete() {
+                signals.add("complete");
+            }
+        });
+        assertEquals(List.of("subscribed", "next", "complete"), signals);
+    }
+
+    @Test
+    @DisplayName("Define words, share a library of them and look them up through call sites")
+    public void defineWords() {
+        MemoryOutputSink output = new MemoryOutputSink();
+        SRPN calculator = new SRPN(output);
+        calculator.processCommand(": sq 2 ^ ;");
+        calculator.processCommand("3 sq =");
+        calculator.processCommand("4sq=");
+        assertEquals(List.of("9", "16"), output.lines());
+
+//      Redefining a word is seen by call sites that have already cached it.
+        calculator.processCommand(": f 1 + ;");
+        calculator.processCommand("5 f =");
+        calculator.processCommand(": f 2 + ;");
+        calculator.processCommand("5 f =");
+        assertEquals(List.of("9", "16", "6", "7"), output.lines());
+
+//      A word that runs itself stops, printing its name as unrecognised characters.
+        calculator.processCommand(": loop loop ;");
+        calculator.processCommand("loop");
+        assertEquals(8, output.lines().size());
+
+//      A line can only run so many words, however many times a word runs itself.
+        calculator.processCommand(": x x x x ;");
+        calculator.processCommand("x");
+        assertEquals(1, Collections.frequency(output.lines(), "Word limit reached."));
+        assertEquals(1L, calculator.getMetrics().getWordLimitsReached());
+        calculator.processCommand("2 sq =");
+        assertEquals("4", output.lines().get(output.lines().size() - 1));
+
+//      A library is compiled once and shared, a session can shadow its words without the other sessions seeing it.
+        Dictionary library = new Dictionary();
+        library.define(": cube 3 ^ ;");
+        library.define(": twice 2 * ;");
+        library.freeze();
+        MemoryOutputSink firstOutput = new MemoryOutputSink();
+        MemoryOutputSink secondOutput = new MemoryOutputSink();
+        SRPN first = new SRPN(firstOutput);
+        SRPN second = new SRPN(secondOutput);
+        first.setLibrary(library);
+        second.setLibrary(library);
+        first.processCommand(": twice 3 * ;");
+        for (SRPN session: List.of(first, second)) session.processCommand("2 cube twice =");
+        assertEquals(List.of("24"), firstOutput.lines());
+        assertEquals(List.of("16"), secondOutput.lines());
+        assertEquals(1, first.getDictionary().size());
+        assertEquals(0, second.getDictionary().size());
+
+//      The words a library's words run are looked up in the Dictionary of whichever session runs them.
+        Dictionary calls = new Dictionary();
+        calls.define(": again twice twice ;");
+        calls.freeze();
+        first.setLibrary(calls);
+        second.setLibrary(calls);
+        first.processCommand(": twice 3 * ;");
+        second.processCommand(": twice 2 * ;");
+        firstOutput.clear();
+        secondOutput.clear();
+        for (int i = 0; i < 3; ++i) {
+            for (SRPN session: List.of(first, second)) session.processCommand("1 again =");
+        }
+        assertEquals(List.of("9", "9", "9"), firstOutput.lines());
+        assertEquals(List.of("4", "4", "4"), secondOutput.lines());
+        first.setLibrary(library);
+        second.setLibrary(library);
+        firstOutput.clear();
+        first.processCommand(": twice 3 * ;");
+
+//      Resetting forgets the session's words but keeps the library.
+        first.reset();
+        first.processCommand("2 twice =");
+        assertEquals(List.of("4"), firstOutput.lines());
+
+//      Words that are not defined, and lines that only look like definitions, print what they always did.
+        String[] input = {"3 foo 4 + =", ": sq", "sq; 2", ":sq 2 ;", "aBc d", "x1y2=z"};
+        MemoryOutputSink expected = new MemoryOutputSink();
+        SRPN reference = new SRPN(expected);
+        MemoryOutputSink actual = new MemoryOutputSink();
+        SRPN words = new SRPN(actual);
+        words.setLibrary(library);
+        for (String line: input) {
+            reference.processCommand(line);
+            words.processCommand(line);
+        }
+        assertEquals(expected.lines(), actual.lines());
+    }
+}
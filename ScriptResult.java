@@ -0,0 +1,30 @@
+import java.util.Arrays;
+import java.util.List;
+
+public final class ScriptResult {
+    /*
+    What a script left behind when it was evaluated by a BatchEvaluator: every line it printed and its final stack,
+    from the bottom to the top.
+    */
+
+    private final List<String> output;
+    private final double[] stack;
+
+    ScriptResult(List<String> output, double[] stack) {
+        this.output = output;
+        this.stack = stack;
+    }
+
+    public List<String> output() {
+        return this.output;
+    }
+
+    public double[] stack() {
+        return this.stack.clone();
+    }
+
+    @Override
+    public String toString() {
+        return "ScriptResult" + this.output + " " + Arrays.toString(this.stack);
+    }
+}
@@ -0,0 +1,340 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class Server implements Closeable {
+    /*
+    The Server hosts many independent calculators over TCP. Each connection is a session with its own SRPN, so its
+    own stack, comment state and random number sequence, exactly as if it was a separate process reading stdin.
+
+    Lines end at "\n", "\r" or "\r\n", the same as on stdin. Lines are passed to the session's calculator as a view
+    of the input buffer without being decoded, and the output is formatted into a per session buffer and written back
+    when the socket is ready for it.
+
+    Connections are accepted on one thread and handed out in turn to a few event loops, each a thread with its own
+    Selector. No thread ever blocks on a single connection, so a handful of threads can serve thousands of sessions.
+    A session whose output is not being read stops running lines once MAX_PENDING_OUTPUT bytes of it are waiting, and
+    stops being read from. The rest of its input is kept and run once the socket has taken the output, so a slow
+    client cannot make the server buffer more than MAX_PENDING_OUTPUT and what one line prints. A line may be at most
+    MAX_LINE_LENGTH bytes long, a longer line closes the connection, and so does anything a session throws, without
+    touching the other sessions. A session that ends resets its calculator, so its stack no longer counts towards
+    the current stack depth of the process metrics.
+    */
+
+    public static final int MAX_LINE_LENGTH = 1 << 20;
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    private static final int MAX_PENDING_OUTPUT = 1 << 20;
+//  The largest array the JVM is sure to allocate.
+    private static final int MAX_BUFFER_SIZE = Integer.MAX_VALUE - 8;
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector acceptSelector;
+    private final EventLoop[] loops;
+    private final Thread acceptor;
+    private volatile boolean running;
+
+    public Server(InetSocketAddress address, int eventLoops) throws IOException {
+        if (eventLoops <= 0) throw new IllegalArgumentException("Event loops must be positive: " + eventLoops);
+
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(address, 1024);
+        this.serverChannel.configureBlocking(false);
+        this.acceptSelector = Selector.open();
+        this.serverChannel.register(this.acceptSelector, SelectionKey.OP_ACCEPT);
+
+        this.loops = new EventLoop[eventLoops];
+        for (int i = 0; i < eventLoops; ++i) this.loops[i] = new EventLoop("srpn-event-loop-" + i);
+        this.acceptor = new Thread(this::accept, "srpn-acceptor");
+    }
+
+    public int getPort() {
+        return this.serverChannel.socket().getLocalPort();
+    }
+
+    public void start() {
+        this.running = true;
+        for (EventLoop loop: this.loops) loop.thread.start();
+        this.acceptor.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.running = false;
+        this.acceptSelector.close();
+        this.serverChannel.close();
+        for (EventLoop loop: this.loops) loop.selector.close();
+
+        try {
+            this.acceptor.join();
+            for (EventLoop loop: this.loops) loop.thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void accept() {
+        int next = 0;
+
+        try {
+            while (this.running) {
+                this.acceptSelector.select();
+                this.acceptSelector.selectedKeys().clear();
+
+                SocketChannel channel;
+                while ((channel = this.serverChannel.accept()) != null) {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    this.loops[next].add(channel);
+                    next = (next + 1) % this.loops.length;
+                }
+            }
+        } catch (ClosedSelectorException e) {
+//          The server has been closed.
+        } catch (IOException e) {
+            if (this.running) System.err.println("Accepting connections failed: " + e.getMessage());
+        }
+    }
+
+    private final class EventLoop implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        final Queue<SocketChannel> added;
+
+        EventLoop(String name) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, name);
+            this.added = new ConcurrentLinkedQueue<>();
+        }
+
+        void add(SocketChannel channel) {
+            this.added.add(channel);
+            this.selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (Server.this.running) {
+                    this.selector.select();
+
+                    SocketChannel channel;
+                    while ((channel = this.added.poll()) != null) {
+                        channel.register(this.selector, SelectionKey.OP_READ, new Session(channel));
+                    }
+
+                    Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        ((Session) key.attachment()).handle(key);
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+//              The server has been closed.
+            } catch (IOException e) {
+                if (Server.this.running) System.err.println("Event loop failed: " + e.getMessage());
+            } finally {
+                closeAll();
+            }
+        }
+
+        private void closeAll() {
+            try {
+                for (SelectionKey key: this.selector.keys()) ((Session) key.attachment()).close(key);
+            } catch (ClosedSelectorException e) {
+//              Nothing more can be done for these connections.
+            }
+
+            SocketChannel channel;
+            while ((channel = this.added.poll()) != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+//                  Nothing more can be done for this connection.
+                }
+            }
+        }
+    }
+
+    private static final class Session {
+        /*
+        A connection and its calculator. The input buffer is always in write mode, complete lines are taken from
+        its start. The output buffer collects what the calculator prints until the socket takes it.
+        */
+
+        private final SocketChannel channel;
+        private final SRPN calculator;
+        private final BufferedOutputSink sink;
+        private final PendingOutput output;
+        private final ByteCharSequence line;
+        private ByteBuffer input;
+        private boolean endOfInput;
+//      Whether the last byte handled was a "\r", so a "\n" straight after it, even in the next read, ends no line.
+        private boolean skipLineFeed;
+//      Whether lines were left in the input because too much output was waiting.
+        private boolean paused;
+
+        Session(SocketChannel channel) {
+            this.channel = channel;
+            this.output = new PendingOutput();
+            this.sink = new BufferedOutputSink(this.output, false, INITIAL_BUFFER_SIZE);
+            this.calculator = new SRPN(null, this.sink, CalculatorMetrics.PROCESS);
+            this.line = new ByteCharSequence();
+            this.input = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        }
+
+        void handle(SelectionKey key) {
+            try {
+                if (key.isReadable()) read();
+                if (this.output.buffer.position() > 0) write();
+                if (this.paused && this.output.buffer.position() < MAX_PENDING_OUTPUT) {
+                    processLines();
+                    this.sink.flush();
+                }
+
+                boolean drained = this.output.buffer.position() == 0;
+                if (this.endOfInput && !this.paused && drained) {
+                    close(key);
+                    return;
+                }
+
+                int interest = 0;
+                if (!this.endOfInput && !this.paused && this.output.buffer.position() < MAX_PENDING_OUTPUT) {
+                    interest |= SelectionKey.OP_READ;
+                }
+                if (!drained) interest |= SelectionKey.OP_WRITE;
+                key.interestOps(interest);
+            } catch (IOException e) {
+                close(key);
+            } catch (RuntimeException e) {
+                System.err.println("Session failed: " + e);
+                close(key);
+            }
+        }
+
+        private void read() throws IOException {
+            if (!this.input.hasRemaining()) {
+                if (this.input.capacity() >= MAX_LINE_LENGTH) throw new IOException("Line too long");
+                ByteBuffer bigger = ByteBuffer.allocate(Math.min(this.input.capacity() * 2, MAX_LINE_LENGTH));
+                this.input.flip();
+                bigger.put(this.input);
+                this.input = bigger;
+            }
+
+            int read = this.channel.read(this.input);
+            if (read == -1) this.endOfInput = true;
+
+            processLines();
+            this.sink.flush();
+        }
+
+        private void processLines() {
+//          Stops before a line once MAX_PENDING_OUTPUT bytes are waiting, the line and those after it are kept.
+            int end = this.input.position();
+            int start = 0;
+            boolean ascii = true;
+            this.paused = false;
+
+            for (int i = 0; i < end; ++i) {
+                byte b = this.input.get(i);
+                if (this.skipLineFeed) {
+                    this.skipLineFeed = false;
+                    if (b == '\n') {
+                        start = i + 1;
+                        continue;
+                    }
+                }
+                if (b == '\n' || b == '\r') {
+                    if (this.output.buffer.position() >= MAX_PENDING_OUTPUT) {
+                        this.paused = true;
+                        break;
+                    }
+                    processLine(start, i, ascii);
+                    this.skipLineFeed = b == '\r';
+                    start = i + 1;
+                    ascii = true;
+                } else if (b < 0) {
+                    ascii = false;
+                }
+            }
+
+//          At the end of the input the last line does not need a line break.
+            if (this.endOfInput && !this.paused && start < end) {
+                processLine(start, end, ascii);
+                start = end;
+            }
+
+            this.input.flip();
+            this.input.position(start);
+            this.input.compact();
+        }
+
+        private void processLine(int start, int end, boolean ascii) {
+            if (ascii) {
+                this.calculator.processCommand(this.line.set(this.input, start, end));
+                return;
+            }
+
+            byte[] bytes = new byte[end - start];
+            this.input.get(start, bytes);
+            this.calculator.processCommand(new String(bytes, Charset.defaultCharset()));
+        }
+
+        private void write() throws IOException {
+            ByteBuffer buffer = this.output.buffer;
+            buffer.flip();
+            this.channel.write(buffer);
+            buffer.compact();
+        }
+
+        private void close(SelectionKey key) {
+            key.cancel();
+            this.calculator.reset();
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+//              The connection is gone either way.
+            }
+        }
+    }
+
+    private static final class PendingOutput extends OutputStream {
+//      The output of a session waiting to be written to its socket, kept in write mode.
+        ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureCapacity(1);
+            this.buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            ensureCapacity(length);
+            this.buffer.put(bytes, offset, length);
+        }
+
+        private void ensureCapacity(int length) throws IOException {
+            if (this.buffer.remaining() >= length) return;
+            if (length > MAX_BUFFER_SIZE - this.buffer.position()) throw new IOException("Too much output waiting");
+
+            long capacity = this.buffer.capacity();
+            while (capacity - this.buffer.position() < length) capacity = Math.min(capacity * 2, MAX_BUFFER_SIZE);
+            ByteBuffer bigger = ByteBuffer.allocate((int) capacity);
+            this.buffer.flip();
+            bigger.put(this.buffer);
+            this.buffer = bigger;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SessionRunner implements Closeable {
+    /*
+    The SessionRunner runs every calculator session on a thread of its own with plain blocking code: the thread reads
+    the session's input a line at a time, passes each line to the session's SRPN and flushes the session's OutputSink
+    whenever no more input is waiting, the same as Main does for stdin. It is the alternative to the event loops of the
+    Server, which trade that simple code for a handful of threads.
+
+    A calculator shares nothing with other calculators but the process wide metrics, which are safe to update from
+    any thread, so sessions need no locking. Each session has its own input and its own OutputSink, nothing is
+    written to System.out.
+
+    By default the sessions run on virtual threads, so a JVM can hold 100k+ mostly idle sessions that cost a small
+    heap object each rather than a platform thread stack. Virtual threads are only there on Java 21 or later and the
+    build targets Java 17, so they are looked up by reflection, on an older JVM the runner falls back to platform
+    threads and isVirtual() says so.
+
+    To keep the footprint of an idle session small its input buffer starts at INITIAL_BUFFER_SIZE bytes and only grows
+    for longer lines, up to Server.MAX_LINE_LENGTH bytes, a longer line ends the session. Lines end at "\n", "\r" or
+    "\r\n" like BufferedReader.readLine, ASCII lines are passed to the calculator without being decoded.
+
+    A session that ends, however it ends, resets its calculator, so its stack no longer counts towards the current
+    stack depth of the process metrics.
+    */
+
+    static final int INITIAL_BUFFER_SIZE = 128;
+    private static final int OUTPUT_BUFFER_SIZE = 256;
+
+    private final ThreadFactory threads;
+    private final boolean virtual;
+    private final Set<Session> sessions;
+
+    public SessionRunner() {
+        this(virtualThreadFactory());
+    }
+
+    public SessionRunner(ThreadFactory threads) {
+        this.virtual = threads != null && threads == VirtualThreads.FACTORY;
+        this.threads = threads != null ? threads : platformThreadFactory();
+        this.sessions = ConcurrentHashMap.newKeySet();
+    }
+
+    public static ThreadFactory virtualThreadFactory() {
+//      Returns null when the JVM has no virtual threads.
+        return VirtualThreads.FACTORY;
+    }
+
+    public static ThreadFactory platformThreadFactory() {
+        AtomicLong next = new AtomicLong();
+        return runnable -> new Thread(runnable, "srpn-session-" + next.getAndIncrement());
+    }
+
+    public boolean isVirtual() {
+        return this.virtual;
+    }
+
+    public int activeSessions() {
+        return this.sessions.size();
+    }
+
+    public Session start(InputStream input, OutputSink output) {
+        /*
+        Starts a session reading from input and printing to output. The session ends at the end of the input, the
+        input is not closed by the session, closing it from another thread is how to end a session early.
+        */
+
+        return start(input, output, null);
+    }
+
+    public void serve(ServerSocket server) throws IOException {
+        /*
+        Accepts connections until the ServerSocket is closed and runs a session for each of them on its own thread.
+        The session closes its connection when the client has sent everything.
+        */
+
+        while (!server.isClosed()) {
+            Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                if (server.isClosed()) return;
+                throw e;
+            }
+
+            socket.setTcpNoDelay(true);
+            BufferedOutputSink output = new BufferedOutputSink(socket.getOutputStream(), false, OUTPUT_BUFFER_SIZE);
+            start(socket.getInputStream(), output, socket);
+        }
+    }
+
+    private Session start(InputStream input, OutputSink output, Closeable connection) {
+        Session session = new Session(new SRPN(null, output, CalculatorMetrics.PROCESS), input, output, connection);
+        this.sessions.add(session);
+        session.thread = this.threads.newThread(session);
+        session.thread.start();
+        return session;
+    }
+
+    @Override
+    public void close() {
+//      Ends every session that is still running by closing what it reads from.
+        for (Session session: this.sessions) session.close();
+    }
+
+    public final class Session implements Runnable, Closeable {
+        private final SRPN calculator;
+        private final InputStream input;
+        private final OutputSink output;
+        private final Closeable connection;
+        private final ByteCharSequence line;
+        private Thread thread;
+        private volatile Exception failure;
+
+        private Session(SRPN calculator, InputStream input, OutputSink output, Closeable connection) {
+            this.calculator = calculator;
+            this.input = input;
+            this.output = output;
+            this.connection = connection;
+            this.line = new ByteCharSequence();
+        }
+
+        public SRPN calculator() {
+            return this.calculator;
+        }
+
+        public void join() throws InterruptedException {
+            this.thread.join();
+        }
+
+        public Exception failure() {
+//          The exception that ended the session, null if it ended at the end of its input. A line that is too long
+//          ends it with an IOException, and anything the calculator or the OutputSink throws ends it too.
+            return this.failure;
+        }
+
+        @Override
+        public void run() {
+            try {
+                readLines();
+            } catch (IOException | RuntimeException e) {
+                this.failure = e;
+            } finally {
+                this.calculator.reset();
+                if (this.connection != null) close();
+                SessionRunner.this.sessions.remove(this);
+            }
+        }
+
+        private void readLines() throws IOException {
+            byte[] bytes = new byte[INITIAL_BUFFER_SIZE];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            int start = 0;
+            int scanned = 0;
+            int end = 0;
+            boolean ascii = true;
+            boolean skipLineFeed = false;
+
+            while (true) {
+                for (; scanned < end; ++scanned) {
+                    byte b = bytes[scanned];
+                    if (skipLineFeed) {
+                        skipLineFeed = false;
+                        if (b == '\n') {
+                            start = scanned + 1;
+                            continue;
+                        }
+                    }
+                    if (b == '\n' || b == '\r') {
+                        processLine(buffer, start, scanned, ascii);
+                        skipLineFeed = b == '\r';
+                        start = scanned + 1;
+                        ascii = true;
+                    } else if (b < 0) {
+                        ascii = false;
+                    }
+                }
+
+//              Everything that has arrived is handled, let the user see the output before waiting for more.
+                if (this.input.available() == 0) this.output.flush();
+
+                if (start > 0) {
+                    System.arraycopy(bytes, start, bytes, 0, end - start);
+                    end -= start;
+                    scanned -= start;
+                    start = 0;
+                }
+                if (end == bytes.length) {
+                    if (bytes.length >= Server.MAX_LINE_LENGTH) throw new IOException("Line too long");
+                    bytes = Arrays.copyOf(bytes, Math.min(bytes.length * 2, Server.MAX_LINE_LENGTH));
+                    buffer = ByteBuffer.wrap(bytes);
+                }
+
+                int read = this.input.read(bytes, end, bytes.length - end);
+                if (read == -1) break;
+                end += read;
+            }
+
+//          The last line does not need a line break.
+            if (start < end) processLine(buffer, start, end, ascii);
+            this.output.flush();
+        }
+
+        private void processLine(ByteBuffer buffer, int start, int end, boolean ascii) {
+            if (ascii) {
+                this.calculator.processCommand(this.line.set(buffer, start, end));
+                return;
+            }
+
+            byte[] bytes = new byte[end - start];
+            buffer.get(start, bytes);
+            this.calculator.processCommand(new String(bytes, Charset.defaultCharset()));
+        }
+
+        @Override
+        public void close() {
+            try {
+                if (this.connection != null) {
+                    this.connection.close();
+                } else {
+                    this.input.close();
+                }
+            } catch (IOException e) {
+//              The session ends either way.
+            }
+        }
+    }
+
+    private static final class VirtualThreads {
+//      Thread.ofVirtual().factory(), looked up once on Java 21 or later.
+        static final ThreadFactory FACTORY = lookUp();
+
+        private static ThreadFactory lookUp() {
+            try {
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+//              No virtual threads, or only as a preview feature that is not enabled.
+                return null;
+            }
+        }
+    }
+}
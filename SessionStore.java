@@ -0,0 +1,359 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.LongFunction;
+
+public final class SessionStore implements Closeable {
+    /*
+    A SessionStore holds the calculators of many sessions, keyed by a long id, and keeps only a bounded number of them
+    in memory. The others are spilled to a file as snapshots, see SRPN.snapshot(), and restored when they are used
+    again, so a session carries on where it left off whether it was in memory or not:
+
+        store.apply(id, calculator -> calculator.processCommand(line));
+
+    The store is split into shards by id, each with a ConcurrentHashMap of the sessions in memory, so finding one
+    takes no lock. A session is used under its own monitor, one thread at a time. Restoring a session, and anything
+    else that changes which sessions are in memory, takes the lock of its shard.
+
+    Each shard keeps at most its share of maxResident sessions in memory. A shard that goes over it spills its least
+    recently used eighth in one pass, and evictIdle() spills the sessions that have not been used for a while. A
+    spilled session costs an entry in a map of longs in memory and a slot of MAX_SNAPSHOT_BYTES in the file, enough for
+    its stack and its words, slots are reused once their session is back in memory. The file is scratch space, it is
+    deleted when the store is closed, or straight away where the file system allows it.
+
+    A spilled calculator is reset before it is dropped, so the current stack depth of the metrics it counts into
+    covers the sessions in memory, it goes down as sessions are spilled and up again as they are restored.
+
+    A resident session takes about RESIDENT_SESSION_BYTES of heap, so maxResidentFor() gives how many fit in a budget.
+    A store made without a maxResident keeps as many as fit in a quarter of the largest heap the JVM may have.
+    */
+
+    public static final int DEFAULT_SHARDS = 64;
+
+//  The heap a resident session that has run a line takes, SessionFootprint in the benchmarks module measured 1990
+//  bytes with 100000 and with 200000 sessions.
+    public static final int RESIDENT_SESSION_BYTES = 2048;
+
+    private static final int SLOT_BYTES = Long.BYTES + SRPN.MAX_SNAPSHOT_BYTES;
+
+    private final Shard[] shards;
+    private final int maxResidentPerShard;
+    private final LongFunction<SRPN> factory;
+    private final FileChannel spill;
+
+//  Free slots in the spill file, and the slot after the last one used.
+    private final Object slots;
+    private int[] freeSlots;
+    private int freeCount;
+    private int nextSlot;
+
+    public SessionStore(Path spillFile, LongFunction<SRPN> factory) throws IOException {
+        this(spillFile, maxResidentFor(Runtime.getRuntime().maxMemory() / 4), factory);
+    }
+
+    public SessionStore(Path spillFile, int maxResident, LongFunction<SRPN> factory) throws IOException {
+        this(spillFile, DEFAULT_SHARDS, maxResident, factory);
+    }
+
+    public SessionStore(Path spillFile, int shards, int maxResident, LongFunction<SRPN> factory) throws IOException {
+        /*
+        factory makes the calculator of a session that is new or being restored, with the OutputSink it should
+        print to. shards must be a power of two.
+        */
+
+        if (shards < 1 || Integer.bitCount(shards) != 1) throw new IllegalArgumentException("Shards must be a power of two: " + shards);
+        if (maxResident < shards) throw new IllegalArgumentException("Must keep at least one session per shard: " + maxResident);
+
+        this.shards = new Shard[shards];
+        for (int i = 0; i < shards; ++i) this.shards[i] = new Shard();
+        this.maxResidentPerShard = maxResident / shards;
+        this.factory = factory;
+        this.spill = FileChannel.open(spillFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        this.slots = new Object();
+        this.freeSlots = new int[16];
+    }
+
+    public <T> T apply(long id, Function<SRPN, T> action) {
+//      Runs action on the calculator of a session, restoring it or making a new one first if it is not in memory.
+        Shard shard = shardOf(id);
+        while (true) {
+            Session session = shard.resident.get(id);
+            if (session == null) session = load(shard, id);
+
+            synchronized (session) {
+//              The session may have been spilled between finding it and locking it, it is found again if so.
+                if (session.spilled) continue;
+                session.lastUsed = System.nanoTime();
+                return action.apply(session.calculator);
+            }
+        }
+    }
+
+    public void processCommand(long id, CharSequence line) {
+        apply(id, calculator -> {
+            calculator.processCommand(line);
+            return null;
+        });
+    }
+
+    public boolean remove(long id) {
+//      Forgets a session, returning whether there was one.
+        Shard shard = shardOf(id);
+        synchronized (shard) {
+            Session session = shard.resident.remove(id);
+            if (session != null) {
+                synchronized (session) {
+                    session.spilled = true;
+                    session.calculator.reset();
+                }
+                return true;
+            }
+
+            int slot = shard.spilled.remove(id);
+            if (slot < 0) return false;
+            freeSlot(slot);
+            return true;
+        }
+    }
+
+    public int evictIdle(long idleNanos) {
+//      Spills every session in memory that has not been used for idleNanos, returning how many were spilled.
+        long now = System.nanoTime();
+        int evicted = 0;
+        for (Shard shard: this.shards) {
+            synchronized (shard) {
+                for (Session session: shard.resident.values()) {
+                    if (now - session.lastUsed >= idleNanos) {
+                        spill(shard, session);
+                        ++evicted;
+                    }
+                }
+            }
+        }
+        return evicted;
+    }
+
+    public int resident() {
+        int resident = 0;
+        for (Shard shard: this.shards) resident += shard.resident.size();
+        return resident;
+    }
+
+    public int spilled() {
+        int spilled = 0;
+        for (Shard shard: this.shards) {
+            synchronized (shard) {
+                spilled += shard.spilled.size();
+            }
+        }
+        return spilled;
+    }
+
+    public long size() {
+        return resident() + (long) spilled();
+    }
+
+    public static int maxResidentFor(long heapBytes) {
+//      How many resident sessions fit in heapBytes, but at least one per shard.
+        return (int) Math.max(DEFAULT_SHARDS, Math.min(Integer.MAX_VALUE, heapBytes / RESIDENT_SESSION_BYTES));
+    }
+
+    long spillBytes() throws IOException {
+        return this.spill.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.spill.close();
+    }
+
+    private Session load(Shard shard, long id) {
+//      Makes the session resident, restoring it from the spill file if it was spilled.
+        synchronized (shard) {
+            Session session = shard.resident.get(id);
+            if (session != null) return session;
+
+            SRPN calculator = this.factory.apply(id);
+            int slot = shard.spilled.remove(id);
+            if (slot >= 0) {
+                ByteBuffer buffer = shard.buffer.clear();
+                read(buffer, slot);
+                if (buffer.getLong() != id) throw new IllegalStateException("Spill file does not hold session " + id);
+                calculator.restore(buffer);
+                freeSlot(slot);
+            }
+
+            session = new Session(id, calculator);
+            shard.resident.put(id, session);
+            if (shard.resident.size() > this.maxResidentPerShard) evictLeastRecentlyUsed(shard, session);
+            return session;
+        }
+    }
+
+    private void evictLeastRecentlyUsed(Shard shard, Session keep) {
+//      Spills the least recently used eighth of the shard, but never the session that is being loaded.
+        List<Session> sessions = new ArrayList<>(shard.resident.values());
+        sessions.sort(Comparator.comparingLong(session -> session.lastUsed));
+        int evict = Math.max(1, sessions.size() / 8);
+        for (Session session: sessions) {
+            if (evict == 0) break;
+            if (session == keep) continue;
+            spill(shard, session);
+            --evict;
+        }
+    }
+
+    private void spill(Shard shard, Session session) {
+//      Called with the lock of the shard held.
+        synchronized (session) {
+            ByteBuffer buffer = shard.buffer.clear();
+            buffer.putLong(session.id);
+            session.calculator.snapshot(buffer);
+            int slot = allocateSlot();
+            write(buffer.flip(), slot);
+//          The calculator is dropped, resetting it takes its stack off the metrics, restoring it adds it back.
+            session.calculator.reset();
+
+            session.spilled = true;
+            shard.resident.remove(session.id);
+            shard.spilled.put(session.id, slot);
+        }
+    }
+
+    private int allocateSlot() {
+        synchronized (this.slots) {
+            return this.freeCount > 0 ? this.freeSlots[--this.freeCount] : this.nextSlot++;
+        }
+    }
+
+    private void freeSlot(int slot) {
+        synchronized (this.slots) {
+            if (this.freeCount == this.freeSlots.length) this.freeSlots = Arrays.copyOf(this.freeSlots, 2 * this.freeCount);
+            this.freeSlots[this.freeCount++] = slot;
+        }
+    }
+
+    private void write(ByteBuffer buffer, int slot) {
+        try {
+            long position = (long) slot * SLOT_BYTES;
+            while (buffer.hasRemaining()) position += this.spill.write(buffer, position);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void read(ByteBuffer buffer, int slot) {
+        try {
+            long position = (long) slot * SLOT_BYTES;
+            while (buffer.hasRemaining()) {
+                int read = this.spill.read(buffer, position);
+                if (read < 0) break;
+                position += read;
+            }
+            buffer.flip();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Shard shardOf(long id) {
+//      The id is mixed first so that ids that differ only in their high bits are spread over the shards too.
+        long mixed = id * 0x9E3779B97F4A7C15L;
+        return this.shards[(int) (mixed >>> 32) & (this.shards.length - 1)];
+    }
+
+    private static final class Shard {
+        final ConcurrentHashMap<Long, Session> resident = new ConcurrentHashMap<>();
+        final LongIntMap spilled = new LongIntMap();
+        final ByteBuffer buffer = ByteBuffer.allocate(SLOT_BYTES);
+    }
+
+    private static final class Session {
+        final long id;
+        final SRPN calculator;
+        volatile long lastUsed;
+        boolean spilled;
+
+        Session(long id, SRPN calculator) {
+            this.id = id;
+            this.calculator = calculator;
+            this.lastUsed = System.nanoTime();
+        }
+    }
+
+    private static final class LongIntMap {
+        /*
+        An open addressing map from session ids to slots, so a spilled session costs twelve bytes or so in memory
+        rather than the objects of a map entry. A slot is stored plus one, 0 marks an empty entry.
+        */
+
+        private long[] keys = new long[16];
+        private int[] values = new int[16];
+        private int size;
+
+        int size() {
+            return this.size;
+        }
+
+        void put(long key, int value) {
+            if (2 * (this.size + 1) > this.keys.length) grow();
+            int mask = this.keys.length - 1;
+            int i = index(key, mask);
+            while (this.values[i] != 0 && this.keys[i] != key) i = (i + 1) & mask;
+            if (this.values[i] == 0) ++this.size;
+            this.keys[i] = key;
+            this.values[i] = value + 1;
+        }
+
+        int remove(long key) {
+//          Returns the value that was removed, or -1 if there was none.
+            int mask = this.keys.length - 1;
+            int i = index(key, mask);
+            while (this.values[i] != 0 && this.keys[i] != key) i = (i + 1) & mask;
+            if (this.values[i] == 0) return -1;
+
+            int value = this.values[i] - 1;
+            this.values[i] = 0;
+            --this.size;
+
+//          Moves later entries of the same run back into the gap, so lookups never stop early.
+            for (int j = (i + 1) & mask; this.values[j] != 0; j = (j + 1) & mask) {
+                int home = index(this.keys[j], mask);
+                if (((j - home) & mask) >= ((j - i) & mask)) {
+                    this.keys[i] = this.keys[j];
+                    this.values[i] = this.values[j];
+                    this.values[j] = 0;
+                    i = j;
+                }
+            }
+            return value;
+        }
+
+        private void grow() {
+            long[] keys = this.keys;
+            int[] values = this.values;
+            this.keys = new long[2 * keys.length];
+            this.values = new int[2 * values.length];
+            this.size = 0;
+            for (int i = 0; i < keys.length; ++i) {
+                if (values[i] != 0) put(keys[i], values[i] - 1);
+            }
+        }
+
+        private static int index(long key, int mask) {
+            long mixed = key * 0x9E3779B97F4A7C15L;
+            return (int) (mixed ^ (mixed >>> 32)) & mask;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.function.LongFunction;
+
+public final class SnapshotFile {
+    /*
+    A SnapshotFile holds the snapshots of many sessions at once, so a process can save every session before it stops
+    and the next one can carry on with them. Each session is identified by a long. The file is a header, the magic
+    number, the format version, the number of sessions and the sequence number of the last Journal line the snapshot
+    covers, followed by a record for each session, its id and then the calculator's snapshot, see SRPN.snapshot().
+    Version 1 files have no sequence number, they are read as covering no lines.
+
+    The file is written and read through a memory mapping, so saving or restoring is a pass over memory with no read
+    or write call per session. It is written to a temporary file first and moved into place once it is complete, so
+    a crash while writing leaves the previous file as it was.
+    */
+
+    private static final int MAGIC = 0x53525053;
+    private static final short VERSION = 2;
+    private static final int HEADER_BYTES = Integer.BYTES + Short.BYTES + Integer.BYTES + Long.BYTES;
+    private static final int VERSION_1_HEADER_BYTES = Integer.BYTES + Short.BYTES + Integer.BYTES;
+
+    private SnapshotFile() {}
+
+    public static void write(Path file, Map<Long, SRPN> sessions) throws IOException {
+        write(file, sessions, 0);
+    }
+
+    public static void write(Path file, Map<Long, SRPN> sessions, long journalSequence) throws IOException {
+//      journalSequence is the last Journal line the sessions have run, recovery replays the lines after it.
+        long size = HEADER_BYTES;
+        for (SRPN calculator: sessions.values()) size += Long.BYTES + calculator.snapshotSize();
+        if (size > Integer.MAX_VALUE) throw new IllegalArgumentException("Too many sessions for one file: " + sessions.size());
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(MAGIC);
+            buffer.putShort(VERSION);
+            buffer.putInt(sessions.size());
+            buffer.putLong(journalSequence);
+            for (Map.Entry<Long, SRPN> session: sessions.entrySet()) {
+                buffer.putLong(session.getKey());
+                session.getValue().snapshot(buffer);
+            }
+            buffer.force();
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static int read(Path file, LongFunction<SRPN> sessions) throws IOException {
+        /*
+        Restores every session in the file, sessions gives the calculator to restore each id into. Returns the number
+        of sessions. A file that is not a valid SnapshotFile throws an IOException.
+        */
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            readHeader(file, buffer);
+            int count = buffer.getInt(Integer.BYTES + Short.BYTES);
+            for (int i = 0; i < count; ++i) sessions.apply(buffer.getLong()).restore(buffer);
+            return count;
+        } catch (IllegalArgumentException | BufferUnderflowException e) {
+            throw new IOException("Corrupt snapshot file: " + file, e);
+        }
+    }
+
+    public static long journalSequence(Path file) throws IOException {
+//      The sequence number of the last Journal line the snapshot covers.
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (header.hasRemaining() && channel.read(header) >= 0) {}
+            header.flip();
+            return readHeader(file, header) == 1 ? 0 : header.getLong(VERSION_1_HEADER_BYTES);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Corrupt snapshot file: " + file, e);
+        }
+    }
+
+    private static short readHeader(Path file, ByteBuffer buffer) throws IOException {
+//      Checks the header and leaves buffer at the first record, returning the version.
+        if (buffer.remaining() < VERSION_1_HEADER_BYTES || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a snapshot file: " + file);
+        }
+        short version = buffer.getShort();
+        if (version < 1 || version > VERSION) throw new IOException("Unknown snapshot file version " + version + ": " + file);
+        buffer.position(version == 1 ? VERSION_1_HEADER_BYTES : HEADER_BYTES);
+        return version;
+    }
+}
@@ -0,0 +1,107 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class SpscRingBuffer<E> {
+    /*
+    A bounded queue for exactly one producer thread and one consumer thread, used to hand work between the stages of
+    a Pipeline without locks. The elements live in an array used as a ring, the producer only ever writes the tail
+    and the consumer only ever writes the head, so the two never contend for a write. An element is published by
+    writing it to the array and then releasing the new tail, the consumer reads the tail before the element, so it
+    always sees the element fully written.
+
+    Each side keeps a cached copy of the other side's index and only reads the real one when the cache says the
+    buffer is full or empty, which keeps the threads from reading each other's cache lines on every operation. A
+    side's index and its cache are kept together in an Index, padded so the two sides never share a cache line.
+
+    offer() and poll() never block. put() and take() wait, spinning briefly first and then parking for longer and
+    longer up to MAX_PARK_NANOS, so a stage waiting on slow input does not burn a core.
+    */
+
+    private static final int SPINS = 100;
+    private static final long MAX_PARK_NANOS = 1_000_000;
+
+    private final Object[] elements;
+    private final int mask;
+//  The head and the cached tail are only written by the consumer, the tail and the cached head by the producer.
+    private final Index head;
+    private final Index tail;
+
+    public SpscRingBuffer(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+
+        this.elements = new Object[capacity];
+        this.mask = capacity - 1;
+        this.head = new Index();
+        this.tail = new Index();
+    }
+
+    public int capacity() {
+        return this.elements.length;
+    }
+
+    public boolean offer(E element) {
+        if (element == null) throw new NullPointerException();
+
+        long tail = this.tail.getPlain();
+        if (tail - this.tail.cached == this.elements.length) {
+            this.tail.cached = this.head.getAcquire();
+            if (tail - this.tail.cached == this.elements.length) return false;
+        }
+
+        this.elements[(int) tail & this.mask] = element;
+        this.tail.setRelease(tail + 1);
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long head = this.head.getPlain();
+        if (head == this.head.cached) {
+            this.head.cached = this.tail.getAcquire();
+            if (head == this.head.cached) return null;
+        }
+
+        int index = (int) head & this.mask;
+        E element = (E) this.elements[index];
+        this.elements[index] = null;
+        this.head.setRelease(head + 1);
+        return element;
+    }
+
+    public boolean isEmpty() {
+//      Only exact when called by the consumer.
+        return this.head.getPlain() == this.tail.getAcquire();
+    }
+
+    public void put(E element) {
+        for (int waits = 0; !offer(element); ++waits) backOff(waits);
+    }
+
+    public E take() {
+        E element;
+        for (int waits = 0; (element = poll()) == null; ++waits) backOff(waits);
+        return element;
+    }
+
+    private static void backOff(int waits) {
+        if (waits < SPINS) {
+            Thread.onSpinWait();
+        } else {
+            LockSupport.parkNanos(Math.min(1_000L << Math.min(waits - SPINS, 10), MAX_PARK_NANOS));
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static final class Index extends AtomicLong {
+        /*
+        The index one side writes and its cached copy of the other side's index. Fields of a subclass are laid out
+        after those of its superclass, so the longs after the two take the rest of their cache line and the line after
+        it, which some CPUs fetch in pairs, and the other side's Index cannot start on either.
+        */
+
+        long cached;
+        long p01, p02, p03, p04, p05, p06, p07, p08, p09, p10, p11, p12, p13, p14, p15;
+    }
+}
@@ -0,0 +1,129 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+public final class StageEvents {
+    /*
+    JDK Flight Recorder events for each stage of SRPN.processCommand, so a recording shows where the time goes:
+
+    - srpn.Command covers a whole line, including whether it was found in the LineCache.
+    - srpn.Comment covers removing comments from a line that contains a "#".
+    - srpn.Compile covers lexing the line and putting it in order with the shunting yard.
+    - srpn.Execute covers evaluating the compiled line against the stack.
+
+    The events are disabled by default and are turned on in a recording, e.g.
+
+        java -XX:StartFlightRecording:settings=srpn.jfc ...   with <event name="srpn.Compile"> enabled in srpn.jfc.
+
+    Each stage asks begin() for an event, which returns null unless the event is enabled, so when recording is off a
+    stage costs one check and allocates nothing. The outcome of a line is "ok" or the first diagnostic it printed.
+    */
+
+    private static final Command COMMAND_PROBE = new Command();
+    private static final Comment COMMENT_PROBE = new Comment();
+    private static final Compile COMPILE_PROBE = new Compile();
+    private static final Execute EXECUTE_PROBE = new Execute();
+
+    private StageEvents() {}
+
+    static String outcome(Diagnostic diagnostic) {
+        return diagnostic == null ? "ok" : diagnostic.outcome();
+    }
+
+    @Category("SRPN")
+    @Enabled(false)
+    @StackTrace(false)
+    abstract static class StageEvent extends Event {
+        @Label("Line Length")
+        int lineLength;
+
+        @Label("Token Count")
+        int tokenCount;
+    }
+
+    @Name("srpn.Command")
+    @Label("Process Command")
+    @Description("A line of input handled by SRPN.processCommand")
+    static final class Command extends StageEvent {
+        @Label("Cache Hit")
+        boolean cacheHit;
+
+        @Label("Outcome")
+        String outcome;
+
+        static Command begin(CharSequence line) {
+            if (!COMMAND_PROBE.isEnabled()) return null;
+
+            Command event = new Command();
+            event.lineLength = line.length();
+            event.begin();
+            return event;
+        }
+
+        void end(CompiledLine line, boolean cacheHit, Diagnostic outcome) {
+            this.tokenCount = line.program.size();
+            this.cacheHit = cacheHit;
+            this.outcome = StageEvents.outcome(outcome);
+            commit();
+        }
+    }
+
+    @Name("srpn.Comment")
+    @Label("Remove Comments")
+    @Description("Comments removed from a line containing a #")
+    static final class Comment extends StageEvent {
+        static Comment begin(CharSequence line) {
+            if (!COMMENT_PROBE.isEnabled()) return null;
+
+            Comment event = new Comment();
+            event.lineLength = line.length();
+            event.begin();
+            return event;
+        }
+    }
+
+    @Name("srpn.Compile")
+    @Label("Compile Line")
+    @Description("A line lexed and ordered by the shunting yard")
+    static final class Compile extends StageEvent {
+        static Compile begin(CharSequence line) {
+            if (!COMPILE_PROBE.isEnabled()) return null;
+
+            Compile event = new Compile();
+            event.lineLength = line.length();
+            event.begin();
+            return event;
+        }
+
+        void end(Program program) {
+            this.tokenCount = program.size();
+            commit();
+        }
+    }
+
+    @Name("srpn.Execute")
+    @Label("Execute Line")
+    @Description("A compiled line evaluated against the stack")
+    static final class Execute extends StageEvent {
+        @Label("Outcome")
+        String outcome;
+
+        static Execute begin(Program program) {
+            if (!EXECUTE_PROBE.isEnabled()) return null;
+
+            Execute event = new Execute();
+            event.tokenCount = program.size();
+            event.begin();
+            return event;
+        }
+
+        void end(Diagnostic outcome) {
+            this.outcome = StageEvents.outcome(outcome);
+            commit();
+        }
+    }
+}
@@ -0,0 +1,313 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class StreamingEvaluator {
+    /*
+    The StreamingEvaluator evaluates input for a calculator one character at a time, so a line of any length can be
+    handled without ever holding the whole line in memory. It is meant for producers that send enormous lines, such as
+    hundreds of megabytes of "1+1+1+...", where reading the line into a String is not an option.
+
+    Input is read from a Reader or a ByteBuffer in fixed size windows. Each character is pushed through the same three
+    steps processCommand uses, removing comments, lexing and the shunting yard, but every step keeps just enough state
+    to carry on in the next window:
+
+    - a "#" is only a comment delimiter if the character after it is a space, so it is held back for one character.
+
+    - a "-" is only part of a number if a digit follows it, so it is held back for one character as well.
+
+    - a run of digits is a number unless a character that is not a digit turns up before the end of the run, in which
+    case every digit is an operand of its own. Only the first OperandStack.CAPACITY digits are kept for that case,
+    once that many operands are pushed every further push is a stack overflow whatever its value.
+
+    - the operator stack is stored as runs of the same operator with a count, so "1+1+1+..." needs a single run.
+
+    Memory use is bounded by the number of runs on the operator stack rather than by the length of the line. Lines end
+    at "\n", "\r" or "\r\n" like BufferedReader.readLine, and ByteBuffers are read as ASCII.
+
+    Only a line longer than the window is streamed, a shorter one is held back until it ends and is then passed to
+    SRPN.processCommand as a whole, so its output is exactly that of processCommand. A streamed line has no words,
+    "d" and "r" are commands and every other letter is an unrecognised operator or operand, as it is in a line that
+    uses no defined word. A ":" definition or a call to a word in a line longer than the window is not run as one.
+    */
+
+    public static final int DEFAULT_WINDOW_SIZE = 8192;
+
+    private static final char LINE_START = '\n';
+
+    private final SRPN calculator;
+    private final char[] window;
+
+//  The line so far, while it is no longer than the window
+    private final StringBuilder line;
+    private boolean streaming;
+
+//  Comment state
+    private char previous;
+    private boolean pendingHash;
+    private boolean lastWasCarriageReturn;
+    private boolean lineStarted;
+
+//  Lexer state
+    private boolean pendingMinus;
+    private boolean inRun;
+    private boolean inNumber;
+    private boolean negative;
+    private boolean exploded;
+    private long value;
+    private long digits;
+    private final byte[] prefix;
+
+//  Shunting yard state, runs of the same operator
+    private char[] operators;
+    private long[] counts;
+    private int runs;
+
+    public StreamingEvaluator(SRPN calculator) {
+        this(calculator, DEFAULT_WINDOW_SIZE);
+    }
+
+    public StreamingEvaluator(SRPN calculator, int windowSize) {
+        if (windowSize <= 0) throw new IllegalArgumentException("Window size must be positive: " + windowSize);
+
+        this.calculator = calculator;
+        this.window = new char[windowSize];
+        this.line = new StringBuilder();
+        this.prefix = new byte[OperandStack.CAPACITY];
+        this.operators = new char[8];
+        this.counts = new long[8];
+        this.previous = LINE_START;
+    }
+
+    public void evaluate(Reader reader) throws IOException {
+        int read;
+        while ((read = reader.read(this.window)) != -1) {
+            for (int i = 0; i < read; ++i) accept(this.window[i]);
+        }
+        finish();
+    }
+
+    public void evaluate(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) accept((char) (buffer.get() & 0xFF));
+        finish();
+    }
+
+    public void accept(char c) {
+        /*
+        Takes the next character of the input. Line breaks end the current line, everything else is held back while
+        the line fits in the window and goes through the comment filter once it is streamed.
+        */
+
+        if (c == '\n' || c == '\r') {
+            boolean crlf = c == '\n' && this.lastWasCarriageReturn;
+            this.lastWasCarriageReturn = c == '\r';
+            if (!crlf) endLine();
+            return;
+        }
+
+        this.lastWasCarriageReturn = false;
+        this.lineStarted = true;
+
+        if (!this.streaming) {
+            if (this.line.length() < this.window.length) {
+                this.line.append(c);
+                return;
+            }
+            stream();
+        }
+        filter(c);
+    }
+
+    public void finish() {
+//      The end of the input ends the last line, unless it already ended with a line break.
+        if (this.lineStarted) endLine();
+    }
+
+    private void stream() {
+//      The line has outgrown the window, what was held back of it is evaluated and the rest follows as it comes.
+        this.streaming = true;
+        for (int i = 0; i < this.line.length(); ++i) filter(this.line.charAt(i));
+        this.line.setLength(0);
+    }
+
+    private void filter(char c) {
+        if (this.pendingHash) {
+            this.pendingHash = false;
+            if (c == ' ') {
+                this.calculator.setComment(!this.calculator.isComment());
+            } else if (!this.calculator.isComment()) {
+                lex('#');
+            }
+        }
+
+        if (c == '#' && (this.previous == LINE_START || this.previous == ' ')) {
+            this.pendingHash = true;
+        } else if (!this.calculator.isComment()) {
+            lex(c);
+        }
+
+        this.previous = c;
+    }
+
+    private void endLine() {
+        if (!this.streaming) {
+            this.calculator.processCommand(this.line);
+            this.line.setLength(0);
+            this.lineStarted = false;
+            return;
+        }
+
+//      A "#" at the end of a line is followed by nothing, so it is a delimiter.
+        if (this.pendingHash) {
+            this.pendingHash = false;
+            this.calculator.setComment(!this.calculator.isComment());
+        }
+
+        endPiece();
+        this.previous = LINE_START;
+        this.lineStarted = false;
+        this.streaming = false;
+        this.calculator.endOfLine();
+    }
+
+    private void lex(char c) {
+        if (this.pendingMinus) {
+            this.pendingMinus = false;
+            if (Lexer.isDigit(c)) {
+//              Inside a run the "-" splits the run, at the start of a run it is a negative sign.
+                if (this.inRun) {
+                    operator('-');
+                    startNumber(false);
+                } else {
+                    this.inRun = true;
+                    startNumber(true);
+                }
+                digit(c);
+                return;
+            }
+
+            this.inRun = false;
+            operator('-');
+        }
+
+        if (Lexer.isWhitespace(c)) {
+            endPiece();
+            return;
+        }
+
+        if (c == '-') {
+            endNumber();
+            this.pendingMinus = true;
+            return;
+        }
+
+        if (c == 'd' || c == 'r' || c == '=' || Lexer.isOperator(c)) {
+            endNumber();
+            this.inRun = false;
+            switch (c) {
+                case 'd' -> {
+                    while (this.runs > 0) popOperator();
+                    this.calculator.perform(Program.DISPLAY, 0, c);
+                }
+                case 'r' -> this.calculator.perform(Program.RANDOM, 0, c);
+                case '=' -> this.calculator.perform(Program.EQUALS, 0, c);
+                default -> operator(c);
+            }
+            return;
+        }
+
+        if (!this.inRun) {
+            this.inRun = true;
+            startNumber(false);
+        }
+
+        if (Lexer.isDigit(c)) {
+            digit(c);
+        } else {
+            explode();
+            this.calculator.perform(Program.UNKNOWN, 0, c);
+        }
+    }
+
+    private void startNumber(boolean negative) {
+        this.inNumber = true;
+        this.negative = negative;
+        this.exploded = false;
+        this.value = 0;
+        this.digits = 0;
+    }
+
+    private void digit(char c) {
+        if (this.exploded) {
+            this.calculator.perform(Program.PUSH, c - '0', c);
+            return;
+        }
+
+        if (this.value < 1L << 32) this.value = this.value * 10 + (c - '0');
+        if (this.digits < this.prefix.length) this.prefix[(int) this.digits] = (byte) (c - '0');
+        ++this.digits;
+    }
+
+    private void explode() {
+        /*
+        A character that is not a digit turned up in the middle of a run, so the run is not a number. The digits seen
+        so far become operands of their own. Only the first OperandStack.CAPACITY of them are kept, pushing that many
+        operands fills the stack, so the value of any later digit is never used.
+        */
+
+        if (this.exploded) return;
+        this.exploded = true;
+
+        if (this.negative) operator('-');
+        for (long i = 0; i < this.digits; ++i) {
+            double digit = i < this.prefix.length ? this.prefix[(int) i] : 0;
+            this.calculator.perform(Program.PUSH, digit, '0');
+        }
+    }
+
+    private void endNumber() {
+        if (this.inNumber && !this.exploded) {
+            this.calculator.perform(Program.PUSH, this.negative ? -(double) this.value : (double) this.value, '0');
+        }
+        this.inNumber = false;
+    }
+
+    private void endPiece() {
+        if (this.pendingMinus) {
+            this.pendingMinus = false;
+            operator('-');
+        }
+
+        endNumber();
+        this.inRun = false;
+        while (this.runs > 0) popOperator();
+    }
+
+    private void operator(char operator) {
+//      An operator ends the current number and then goes through the shunting yard.
+        endNumber();
+
+        int precedence = LineCompiler.precedence(operator);
+        while (this.runs > 0 && LineCompiler.precedence(this.operators[this.runs - 1]) < precedence) popOperator();
+
+        if (this.runs > 0 && this.operators[this.runs - 1] == operator) {
+            ++this.counts[this.runs - 1];
+            return;
+        }
+
+        if (this.runs == this.operators.length) {
+            this.operators = Arrays.copyOf(this.operators, this.runs * 2);
+            this.counts = Arrays.copyOf(this.counts, this.runs * 2);
+        }
+        this.operators[this.runs] = operator;
+        this.counts[this.runs] = 1;
+        ++this.runs;
+    }
+
+    private void popOperator() {
+        char operator = this.operators[this.runs - 1];
+        if (--this.counts[this.runs - 1] == 0) --this.runs;
+        this.calculator.perform(Program.operatorCode(operator), 0, operator);
+    }
+}
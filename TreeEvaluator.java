@@ -0,0 +1,255 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+public class TreeEvaluator {
+    /*
+    The TreeEvaluator evaluates long stretches of arithmetic in a Program in parallel. SRPN.execute() hands it every
+    run of PUSH and operator instructions. A run that needs no diagnostic is one expression tree per value it leaves
+    on the stack: the leaves are the values on the stack when the run starts and the numbers it pushes, and each
+    operator is a node whose children are the two values it pops. Independent subtrees can be worked out at the same
+    time, so a run with a big enough tree is evaluated on a ForkJoinPool, splitting a subtree into a RecursiveTask
+    for each child until the subtrees are smaller than the threshold.
+
+    Only a node whose children are both at least the threshold is split. Below a node with a small child, such as
+    every node of a left-deep chain like "1 2 + 3 + 4 + ...", the evaluation follows the big child down to the first
+    node worth splitting, the spine, works that node out and then the rest of the subtree around it in one sequential
+    pass. runEnd() looks for a node worth splitting as it finds the end of a run, and a run without one, such as a
+    chain, is left to SRPN.execute(), which is quicker at it than building the tree would be.
+
+    The tree is kept as the postfix instructions themselves, a subtree is a range of instructions that ends with its
+    root and the start of every subtree is worked out in one pass. For example, with an empty stack:
+
+        "1 2 + 3 4 + *" -> the "*" at 6 has the subtrees 0..2 and 3..5 as children.
+
+    Each node performs the same arithmetic with the same operands as processOperation does, saturating after every
+    step, so the result is bit for bit what the sequential path gives. Whether a run prints a diagnostic can mostly
+    be told from the stack depth alone, a run stops before a push onto a full stack or an operator with fewer than two
+    values, and the sequential path handles those. A division by zero depends on the values, so the evaluation
+    speculates that there is none and gives up if it finds one, the whole run is then evaluated sequentially. Nothing
+    is written to the stack until the evaluation has succeeded.
+    */
+
+    public static final int DEFAULT_THRESHOLD = 1 << 14;
+
+    private final ForkJoinPool pool;
+    private final int threshold;
+
+//  The tree of the current run, the stack values first and then the instructions of the run.
+    private byte[] opcodes;
+    private double[] values;
+    private int[] starts;
+    private final int[] roots;
+
+//  The starts of the subtrees on the stack while runEnd() scans a run, and whether it found a node worth splitting.
+    private final int[] runRoots;
+    private boolean splits;
+
+//  The results of the current run, and the stack of the sequential evaluations made on the calling thread.
+    private final double[] results;
+    private final double[] stack;
+
+//  What the last evaluated run did, for the calculator's metrics.
+    int pushes;
+    int peakDepth;
+
+    public TreeEvaluator() {
+        this(ForkJoinPool.commonPool(), DEFAULT_THRESHOLD);
+    }
+
+    public TreeEvaluator(ForkJoinPool pool, int threshold) {
+        if (threshold < 2) throw new IllegalArgumentException("Threshold must be at least 2: " + threshold);
+
+        this.pool = pool;
+        this.threshold = threshold;
+        this.opcodes = new byte[0];
+        this.values = new double[0];
+        this.starts = new int[0];
+        this.roots = new int[OperandStack.CAPACITY];
+        this.runRoots = new int[OperandStack.CAPACITY];
+        this.results = new double[OperandStack.CAPACITY];
+        this.stack = new double[OperandStack.CAPACITY];
+    }
+
+    int runEnd(byte[] code, int pc, int depth) {
+//      The end of the run that starts at pc, the run stops before anything that would print a diagnostic.
+        this.splits = false;
+        for (int i = 0; i < depth; ++i) this.runRoots[i] = pc - depth + i;
+
+        for (; pc < code.length; ++pc) {
+            byte opcode = code[pc];
+            if (opcode == Program.PUSH) {
+                if (depth == OperandStack.CAPACITY) break;
+                this.runRoots[depth++] = pc;
+            } else if (Program.isOperator(opcode)) {
+                if (depth < 2) break;
+                int right = this.runRoots[depth - 1];
+                int left = this.runRoots[depth - 2];
+                if (right - left >= this.threshold && pc - right >= this.threshold) this.splits = true;
+                --depth;
+            } else {
+                break;
+            }
+        }
+        return pc;
+    }
+
+    boolean worthEvaluating(int start, int end) {
+//      Whether the run runEnd() last found, from start to end, has a node with two children worth evaluating apart.
+        return this.splits && end - start >= this.threshold;
+    }
+
+    boolean evaluate(Program program, int start, int end, int constant, OperandStack stack) {
+        /*
+        Evaluates the run of instructions from start to end, which runEnd() found, taking its numbers from the
+        constants of the program from constant on. Returns false, leaving the stack alone, if the run divides by zero.
+        */
+
+        int size = stack.size() + end - start;
+        if (this.opcodes.length < size) {
+            this.opcodes = new byte[size];
+            this.values = new double[size];
+            this.starts = new int[size];
+        }
+
+//      Work out where each subtree starts, with the starts of the current roots on a stack.
+        int depth = 0;
+        int peak = stack.size();
+        int pushes = 0;
+        for (int i = 0; i < size; ++i) {
+            boolean existing = i < stack.size();
+            byte opcode = existing ? Program.PUSH : program.code[start + i - stack.size()];
+            this.opcodes[i] = opcode;
+
+            if (opcode == Program.PUSH) {
+                this.values[i] = existing ? stack.get(i) : SRPN.handleSaturation(program.constants[constant + pushes++]);
+                this.starts[i] = i;
+                this.roots[depth++] = i;
+                if (depth > peak) peak = depth;
+            } else {
+                --depth;
+                this.starts[i] = this.roots[depth - 1];
+            }
+        }
+
+        try {
+            for (int root = 0; root < depth; ++root) {
+                int last = root + 1 < depth ? this.roots[root + 1] - 1 : size - 1;
+                this.results[root] = isSplit(spineEnd(last))
+                        ? this.pool.invoke(new Subtree(last))
+                        : evaluateSequentially(this.roots[root], last, -1, 0, this.stack);
+            }
+        } catch (DivideByZero e) {
+            return false;
+        }
+
+        stack.clear();
+        for (int root = 0; root < depth; ++root) stack.push(this.results[root]);
+        this.pushes = pushes;
+        this.peakDepth = peak;
+        return true;
+    }
+
+    private boolean isSplit(int node) {
+        return node - this.starts[node] >= this.threshold;
+    }
+
+    private int spineEnd(int root) {
+        /*
+        Follows the bigger child down from root while the other child is below the threshold, and returns the node it
+        stops at. That node is split if it is at least the threshold, otherwise the whole subtree is small.
+        */
+
+        int node = root;
+        while (node - this.starts[node] >= this.threshold) {
+            int right = node - 1;
+            int left = this.starts[right] - 1;
+            int rightSize = right - this.starts[right] + 1;
+            int leftSize = left - this.starts[node] + 1;
+            if (leftSize >= this.threshold && rightSize >= this.threshold) break;
+            node = leftSize >= rightSize ? left : right;
+        }
+        return node;
+    }
+
+    private double evaluateSequentially(int first, int last, int inner, double value, double[] stack) {
+        /*
+        Evaluates the subtree from first to last the way execute() would, its depth is never more than the capacity.
+        The subtree whose root is inner, if it is not -1, has already been worked out to value and is skipped.
+        */
+
+        int innerStart = inner < 0 ? -1 : this.starts[inner];
+        int depth = 0;
+
+        for (int i = first; i <= last; ++i) {
+            if (i == innerStart) {
+                stack[depth++] = value;
+                i = inner;
+                continue;
+            }
+
+            byte opcode = this.opcodes[i];
+            if (opcode == Program.PUSH) {
+                stack[depth++] = this.values[i];
+                continue;
+            }
+
+            double a = stack[--depth];
+            double b = stack[--depth];
+            if (opcode == Program.DIVIDE && a == 0) throw DivideByZero.INSTANCE;
+            stack[depth++] = SRPN.apply(opcode, b, a);
+        }
+        return stack[0];
+    }
+
+    private final class Subtree extends RecursiveTask<Double> {
+        private static final long serialVersionUID = 1L;
+
+        private final int root;
+
+        Subtree(int root) {
+            this.root = root;
+        }
+
+        @Override
+        protected Double compute() {
+            int[] starts = TreeEvaluator.this.starts;
+            int node = spineEnd(this.root);
+            if (!isSplit(node)) return evaluateSequentially(starts[this.root], this.root, -1, 0, newStack());
+
+//          The right operand ends just before the node and the left one just before the right one starts.
+            int right = node - 1;
+            Subtree left = new Subtree(starts[right] - 1);
+            left.fork();
+            double a;
+            try {
+                a = new Subtree(right).compute();
+            } catch (RuntimeException e) {
+//              The run is given up, so the left operand is not needed, but it must not outlive the run either.
+                if (!left.cancel(false)) left.quietlyJoin();
+                throw e;
+            }
+            double b = left.join();
+
+            byte opcode = TreeEvaluator.this.opcodes[node];
+            if (opcode == Program.DIVIDE && a == 0) throw DivideByZero.INSTANCE;
+            double value = SRPN.apply(opcode, b, a);
+            return node == this.root ? value : evaluateSequentially(starts[this.root], this.root, node, value, newStack());
+        }
+
+        private double[] newStack() {
+//          Each task that evaluates sequentially covers at least the threshold of instructions, one stack is cheap.
+            return new double[OperandStack.CAPACITY];
+        }
+    }
+
+    private static final class DivideByZero extends RuntimeException {
+//      Thrown to give up on a run, it carries no stack trace since it is not an error.
+        private static final long serialVersionUID = 1L;
+
+        static final DivideByZero INSTANCE = new DivideByZero();
+
+        private DivideByZero() {
+            super(null, null, false, false);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+final class VectorKernels implements ColumnKernels {
+    /*
+    ColumnKernels on the Vector API, which is an incubator module, so this class is only loaded when the JVM was
+    started with --add-modules jdk.incubator.vector, see ColumnTemplate. "+", "-", "*" and "/" are worked out a vector
+    of rows at a time. Saturating with max and then min gives the same result as handleSaturation, NaN and -0.0
+    included. The vector operations have no remainder or power, "%" and "^" are left to the scalar kernels.
+    */
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    private static final double MIN = Integer.MIN_VALUE;
+    private static final double MAX = Integer.MAX_VALUE;
+
+    @Override
+    public void apply(byte operator, double[] b, double[] a, int length) {
+        if (operator == Program.MODULO || operator == Program.POWER) {
+            SCALAR.apply(operator, b, a, length);
+            return;
+        }
+
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            DoubleVector right = DoubleVector.fromArray(SPECIES, a, i);
+            DoubleVector left = DoubleVector.fromArray(SPECIES, b, i);
+            DoubleVector result = switch (operator) {
+                case Program.ADD -> right.add(left);
+                case Program.SUBTRACT -> left.sub(right);
+                case Program.MULTIPLY -> right.mul(left);
+                case Program.DIVIDE -> left.div(right);
+                default -> throw new IllegalStateException("Unexpected value: " + operator);
+            };
+            result.max(MIN).min(MAX).intoArray(b, i);
+        }
+
+        for (; i < length; ++i) b[i] = SRPN.apply(operator, b[i], a[i]);
+    }
+}
@@ -0,0 +1,84 @@
+package srpn.benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BatchBenchmark {
+    /*
+    Benchmarks the BatchEvaluator on pools of different sizes, the score is scripts per second. With enough cores
+    the score should grow close to linearly with the parallelism.
+    */
+
+    private static final int SCRIPTS = 10_000;
+
+    private static final MethodHandle NEW_EVALUATOR;
+    private static final MethodHandle EVALUATE;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> evaluator = Class.forName("BatchEvaluator");
+
+            NEW_EVALUATOR = lookup.findConstructor(evaluator, MethodType.methodType(void.class, ForkJoinPool.class))
+                    .asType(MethodType.methodType(Object.class, ForkJoinPool.class));
+            EVALUATE = lookup.findVirtual(evaluator, "evaluate", MethodType.methodType(List.class, List.class))
+                    .asType(MethodType.methodType(List.class, Object.class, List.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    @Param({"1", "2", "4", "8"})
+    public int parallelism;
+
+    private ForkJoinPool pool;
+    private Object evaluator;
+    private List<String> scripts;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        this.pool = new ForkJoinPool(this.parallelism);
+        this.evaluator = (Object) NEW_EVALUATOR.invokeExact(this.pool);
+        this.scripts = new ArrayList<>(SCRIPTS);
+        for (int i = 0; i < SCRIPTS; ++i) {
+            this.scripts.add(i + "\n" + (i % 97) + "\n*\n10+2-3+10*2 +\n# note # r r d\n" + (i % 13) + " / d\n=");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.pool.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SCRIPTS)
+    public List<?> evaluate() throws Throwable {
+        return (List<?>) EVALUATE.invokeExact(this.evaluator, this.scripts);
+    }
+}
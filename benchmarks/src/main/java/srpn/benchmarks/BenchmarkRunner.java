@@ -0,0 +1,31 @@
+package srpn.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+public class BenchmarkRunner {
+    /*
+    Runs the benchmarks with the same defaults every time, so results can be compared between changes: the GC
+    profiler is on to report allocations per operation and the results are written to jmh-baseline.json. Options given
+    on the command line are the standard JMH ones and take precedence, e.g. a benchmark name regex or -rff.
+    */
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+
+        OptionsBuilder builder = new OptionsBuilder();
+        builder.parent(commandLine);
+        if (commandLine.getProfilers().isEmpty()) builder.addProfiler(GCProfiler.class);
+        if (!commandLine.getResultFormat().hasValue()) builder.resultFormat(ResultFormatType.JSON);
+        if (!commandLine.getResult().hasValue()) builder.result("jmh-baseline.json");
+
+        Options options = builder.build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,87 @@
+package srpn.benchmarks;
+
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+final class Calculator {
+    /*
+    JMH only accepts benchmarks in a named package and code in a named package cannot refer to the calculator's
+    classes, which live in the default package. So the benchmarks reach the calculator through method handles. The
+    handles are static final, which lets the JIT inline through them as if they were direct calls.
+
+    Output goes to a BufferedOutputSink writing to a null stream, so formatting the output is part of what is measured
+    but writing it to a terminal is not.
+    */
+
+    private static final MethodHandle NEW_CACHE;
+    private static final MethodHandle NEW_SINK;
+    private static final MethodHandle NEW_SRPN;
+    private static final MethodHandle PROCESS_COMMAND;
+    private static final MethodHandle FLUSH;
+    private static final MethodHandle SET_COMPILE_THRESHOLD;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> cache = Class.forName("LineCache");
+            Class<?> sink = Class.forName("OutputSink");
+            Class<?> bufferedSink = Class.forName("BufferedOutputSink");
+            Class<?> srpn = Class.forName("SRPN");
+
+            NEW_CACHE = lookup.findConstructor(cache, MethodType.methodType(void.class, int.class))
+                    .asType(MethodType.methodType(Object.class, int.class));
+            NEW_SINK = lookup.findConstructor(bufferedSink, MethodType.methodType(void.class, OutputStream.class))
+                    .asType(MethodType.methodType(Object.class, OutputStream.class));
+            NEW_SRPN = lookup.findConstructor(srpn, MethodType.methodType(void.class, cache, sink))
+                    .asType(MethodType.methodType(Object.class, Object.class, Object.class));
+            PROCESS_COMMAND = lookup.findVirtual(srpn, "processCommand",
+                            MethodType.methodType(void.class, CharSequence.class))
+                    .asType(MethodType.methodType(void.class, Object.class, CharSequence.class));
+            FLUSH = lookup.findVirtual(sink, "flush", MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(void.class, Object.class));
+            SET_COMPILE_THRESHOLD = lookup.findVirtual(srpn, "setCompileThreshold",
+                            MethodType.methodType(void.class, int.class))
+                    .asType(MethodType.methodType(void.class, Object.class, int.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Object srpn;
+    private final Object sink;
+
+    Calculator(int cacheCapacity) {
+        try {
+            this.sink = (Object) NEW_SINK.invokeExact(OutputStream.nullOutputStream());
+            this.srpn = (Object) NEW_SRPN.invokeExact((Object) NEW_CACHE.invokeExact(cacheCapacity), this.sink);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    void processCommand(CharSequence line) {
+        try {
+            PROCESS_COMMAND.invokeExact(this.srpn, line);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    void setCompileThreshold(int threshold) {
+        try {
+            SET_COMPILE_THRESHOLD.invokeExact(this.srpn, threshold);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    void flush() {
+        try {
+            FLUSH.invokeExact(this.sink);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package srpn.benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+@State(Scope.Thread)
+public class ColumnarBenchmark {
+    /*
+    Benchmarks a ColumnTemplate over int columns against substituting every row into a line for processCommand, the
+    score is rows per second. Each row's line ends with "+" to fold its result into the value below it, so the stack
+    stays as deep as it was.
+    */
+
+    private static final int ROWS = 1 << 16;
+    private static final String TEMPLATE = "$0*$1+$2-$0/3";
+
+    private static final MethodHandle COMPILE;
+    private static final MethodHandle EVALUATE;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> template = Class.forName("ColumnTemplate");
+
+            COMPILE = lookup.findStatic(template, "compile", MethodType.methodType(template, String.class))
+                    .asType(MethodType.methodType(Object.class, String.class));
+            EVALUATE = lookup.findVirtual(template, "evaluate", MethodType.methodType(int[].class, int[][].class))
+                    .asType(MethodType.methodType(int[].class, Object.class, int[][].class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private int[][] columns;
+    private Object template;
+    private Calculator calculator;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        Random random = new Random(18);
+        this.columns = new int[3][ROWS];
+        for (int[] column: this.columns) {
+            for (int i = 0; i < ROWS; ++i) column[i] = random.nextInt(2000) - 1000;
+        }
+        this.template = (Object) COMPILE.invokeExact(TEMPLATE);
+        this.calculator = new Calculator(1024);
+        this.calculator.processCommand("0");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public int[] columnar() throws Throwable {
+        return (int[]) EVALUATE.invokeExact(this.template, this.columns);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void perRow() {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < ROWS; ++i) {
+            line.setLength(0);
+            line.append(this.columns[0][i]).append('*').append(this.columns[1][i]).append('+')
+                    .append(this.columns[2][i]).append('-').append(this.columns[0][i]).append("/3 = +");
+            this.calculator.processCommand(line);
+        }
+        this.calculator.flush();
+    }
+}
@@ -0,0 +1,62 @@
+package srpn.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CompiledLineBenchmark {
+    /*
+    Benchmarks a hot line run by the interpreter against the same line compiled to bytecode, the score is the time
+    per line. The line is arithmetic on the number already on the stack, "1 + 2 - 3 * ...", which the ConstantFolder
+    cannot fold, with ops numbers and operators. A short line after it puts the stack back to a single whole number.
+
+    compileThreshold 0 never compiles, 1 compiles the line the second time it is run. Lines of 600 ops are close to
+    the largest the BytecodeCompiler compiles, lines of 3000 ops are too long and are interpreted either way.
+    */
+
+    private static final String[] OPERATORS = {"+", "-", "*", "+", "-"};
+
+    @Param({"0", "1"})
+    public int compileThreshold;
+
+    @Param({"20", "100", "600", "3000"})
+    public int ops;
+
+    private Calculator calculator;
+    private String line;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < this.ops / 2; ++i) line.append(i % 7 + 1).append(' ').append(OPERATORS[i % 5]).append(' ');
+        this.line = line.toString();
+
+        this.calculator = new Calculator(1024);
+        this.calculator.setCompileThreshold(this.compileThreshold);
+        this.calculator.processCommand("1");
+    }
+
+    @Benchmark
+    public void hotLine() {
+        this.calculator.processCommand(this.line);
+        this.calculator.processCommand("0 * 1 +");
+        this.calculator.flush();
+    }
+}
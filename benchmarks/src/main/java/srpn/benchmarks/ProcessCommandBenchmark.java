@@ -0,0 +1,100 @@
+package srpn.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProcessCommandBenchmark {
+    /*
+    Benchmarks SRPN.processCommand on the kinds of input the calculator sees, the score is the time per line. Each
+    workload is a script of lines that leaves the stack as deep as it found it, so it can be repeated forever without
+    overflowing.
+
+    cacheCapacity 0 turns the LineCache off, so every line is lexed and compiled again, the default capacity measures
+    the repeated input case where every line is a cache hit.
+    */
+
+//  One operand or operator per line.
+    private static final String[] SINGLE_OPERANDS = {"4", "3", "*", "+", "=", "7", "-", "12", "2", "/", "+", "="};
+
+//  Long infix lines like the example in the LineCompiler, the trailing "+" folds the result into the stack.
+    private static final String[] LONG_INFIX = {"10+2-3+10*2 +", "10/5+6*21+6-51--5/6+100*6*10^5 +",
+            "11+1+2*3+2*5 -", "10+50*5%6^3 ="};
+
+//  Single and multi-line comments around a little arithmetic.
+    private static final String[] COMMENTS = {"1 # add one # +", "# start of a comment", "that goes on for a while",
+            "and still 2 3 + is ignored", "# 2 -", "# comment # = # another comment #"};
+
+//  Printing a deep stack.
+    private static final String[] DISPLAY = {"d", "d", "d", "="};
+
+    @Param({"0", "1024"})
+    public int cacheCapacity;
+
+    private Calculator calculator;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.calculator = new Calculator(this.cacheCapacity);
+        this.calculator.processCommand("0");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(12)
+    public void singleOperands() {
+        run(SINGLE_OPERANDS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(4)
+    public void longInfix() {
+        run(LONG_INFIX);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(6)
+    public void comments() {
+        run(COMMENTS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(4)
+    public void display(DeepStack stack) {
+        for (String line: DISPLAY) stack.calculator.processCommand(line);
+        stack.calculator.flush();
+    }
+
+    private void run(String[] lines) {
+        for (String line: lines) this.calculator.processCommand(line);
+        this.calculator.flush();
+    }
+
+    @State(Scope.Thread)
+    public static class DeepStack {
+        Calculator calculator;
+
+        @Setup(Level.Trial)
+        public void setUp(ProcessCommandBenchmark benchmark) {
+            this.calculator = new Calculator(benchmark.cacheCapacity);
+            for (int i = 0; i < 20; ++i) this.calculator.processCommand(Integer.toString(i * 104729));
+        }
+    }
+}
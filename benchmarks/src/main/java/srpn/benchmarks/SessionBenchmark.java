@@ -0,0 +1,63 @@
+package srpn.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SessionBenchmark {
+    /*
+    Benchmarks the SessionRunner on virtual threads against platform threads, the score is the time to start the
+    given number of sessions, run a short script in each of them and wait for them all to end. The memory an idle
+    session holds is measured by SessionFootprint instead, JMH measures allocation rates but not what stays live.
+
+    Virtual threads need Java 21 or later, on an older JVM the virtual runs fail and the platform runs go ahead.
+    */
+
+    private static final byte[] SCRIPT = String.join("\n", "4", "3", "*", "+", "=", "7", "-", "12", "2", "/", "+",
+            "10+2-3+10*2 +", "1 # add one # +", "d").getBytes();
+
+    @Param({"platform", "virtual"})
+    public String threads;
+
+    @Param({"1000", "10000"})
+    public int sessions;
+
+    private Sessions runner;
+    private Object[] started;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.runner = new Sessions(this.threads);
+        this.started = new Object[this.sessions];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.runner.close();
+    }
+
+    @Benchmark
+    public void runSessions() {
+        for (int i = 0; i < this.sessions; ++i) this.started[i] = this.runner.start(new ByteArrayInputStream(SCRIPT));
+        for (int i = 0; i < this.sessions; ++i) Sessions.join(this.started[i]);
+    }
+}
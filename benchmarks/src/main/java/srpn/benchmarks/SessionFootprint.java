@@ -0,0 +1,116 @@
+package srpn.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+
+public class SessionFootprint {
+    /*
+    Measures what an idle interactive session costs: starts the given number of sessions on virtual or platform
+    threads, each blocked reading input that never comes, and reports the heap and resident memory they hold per
+    session. The resident memory includes the stacks of platform threads, which the heap does not.
+
+        java -cp benchmarks/target/benchmarks.jar srpn.benchmarks.SessionFootprint virtual 100000
+
+    Platform threads may need a bigger thread limit (ulimit -u) for large counts. With "store" the sessions are kept
+    resident in a SessionStore instead, each having run a line, which is what SessionStore.RESIDENT_SESSION_BYTES is
+    measured with.
+    */
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: SessionFootprint <virtual | platform | store> <sessions>");
+            System.exit(2);
+        }
+
+        int count = Integer.parseInt(args[1]);
+        if (args[0].equals("store")) {
+            measureStore(count);
+            return;
+        }
+
+        Sessions runner = new Sessions(args[0]);
+        CountDownLatch end = new CountDownLatch(1);
+        Object[] sessions = new Object[count];
+
+        long heapBefore = usedHeap();
+        long residentBefore = residentMemory();
+
+        for (int i = 0; i < count; ++i) sessions[i] = runner.start(new IdleInput(end));
+        Thread.sleep(1000);
+
+        long heap = usedHeap() - heapBefore;
+        long resident = residentMemory() - residentBefore;
+        System.out.printf("%d %s sessions: %d bytes of heap, %d bytes resident per session, %d threads%n", count,
+                args[0], heap / count, resident / count, ManagementFactory.getThreadMXBean().getThreadCount());
+
+        end.countDown();
+        for (Object session: sessions) Sessions.join(session);
+    }
+
+    private static void measureStore(int count) throws IOException {
+        Path spill = Files.createTempFile("footprint", ".spill");
+//      Room for twice as many, so no shard spills however the ids fall.
+        Store store = new Store(spill, 2 * count);
+        try {
+            long heapBefore = usedHeap();
+            for (int i = 0; i < count; ++i) store.processCommand(i, "1 2 + 3 *");
+
+            long heap = usedHeap() - heapBefore;
+            System.out.printf("%d resident store sessions: %d bytes of heap per session%n", store.resident(),
+                    heap / store.resident());
+        } finally {
+            store.close();
+            Files.deleteIfExists(spill);
+        }
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; ++i) System.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private static long residentMemory() throws IOException {
+//      VmRSS from /proc, 0 where there is no /proc.
+        Path status = Path.of("/proc/self/status");
+        if (!Files.exists(status)) return 0;
+        for (String line: Files.readAllLines(status)) {
+            if (line.startsWith("VmRSS:")) return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+        }
+        return 0;
+    }
+
+    private static final class IdleInput extends InputStream {
+//      Input that blocks until the measurement is over and then ends.
+        private final CountDownLatch end;
+
+        IdleInput(CountDownLatch end) {
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                this.end.await();
+                return -1;
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            return read();
+        }
+
+        @Override
+        public int available() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package srpn.benchmarks;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ThreadFactory;
+
+final class Sessions {
+    /*
+    The SessionRunner reached through method handles, for the same reason as Calculator. A runner is created on
+    virtual or platform threads and every session prints to its own BufferedOutputSink on a null stream.
+    */
+
+    private static final MethodHandle VIRTUAL_FACTORY;
+    private static final MethodHandle PLATFORM_FACTORY;
+    private static final MethodHandle NEW_RUNNER;
+    private static final MethodHandle NEW_SINK;
+    private static final MethodHandle START;
+    private static final MethodHandle JOIN;
+    private static final MethodHandle CLOSE;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> runner = Class.forName("SessionRunner");
+            Class<?> session = Class.forName("SessionRunner$Session");
+            Class<?> sink = Class.forName("OutputSink");
+            Class<?> bufferedSink = Class.forName("BufferedOutputSink");
+
+            VIRTUAL_FACTORY = lookup.findStatic(runner, "virtualThreadFactory", MethodType.methodType(ThreadFactory.class));
+            PLATFORM_FACTORY = lookup.findStatic(runner, "platformThreadFactory", MethodType.methodType(ThreadFactory.class));
+            NEW_RUNNER = lookup.findConstructor(runner, MethodType.methodType(void.class, ThreadFactory.class))
+                    .asType(MethodType.methodType(Object.class, ThreadFactory.class));
+            NEW_SINK = lookup.findConstructor(bufferedSink,
+                            MethodType.methodType(void.class, OutputStream.class, boolean.class, int.class))
+                    .asType(MethodType.methodType(Object.class, OutputStream.class, boolean.class, int.class));
+            START = lookup.findVirtual(runner, "start", MethodType.methodType(session, InputStream.class, sink))
+                    .asType(MethodType.methodType(Object.class, Object.class, InputStream.class, Object.class));
+            JOIN = lookup.findVirtual(session, "join", MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(void.class, Object.class));
+            CLOSE = lookup.findVirtual(runner, "close", MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(void.class, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Object runner;
+
+    Sessions(String threads) {
+        try {
+            ThreadFactory factory = switch (threads) {
+                case "virtual" -> (ThreadFactory) VIRTUAL_FACTORY.invokeExact();
+                case "platform" -> (ThreadFactory) PLATFORM_FACTORY.invokeExact();
+                default -> throw new IllegalArgumentException("Threads must be virtual or platform: " + threads);
+            };
+            if (factory == null) throw new IllegalStateException("Virtual threads need Java 21 or later");
+            this.runner = (Object) NEW_RUNNER.invokeExact(factory);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    Object start(InputStream input) {
+        try {
+            Object sink = (Object) NEW_SINK.invokeExact(OutputStream.nullOutputStream(), false, 256);
+            return (Object) START.invokeExact(this.runner, input, sink);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static void join(Object session) {
+        try {
+            JOIN.invokeExact(session);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    void close() {
+        try {
+            CLOSE.invokeExact(this.runner);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package srpn.benchmarks;
+
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Path;
+import java.util.function.LongFunction;
+
+final class Store {
+    /*
+    The SessionStore reached through method handles, for the same reason as Calculator. Its sessions share the
+    process metrics and one BufferedOutputSink on a null stream, they are only ever used from one thread here.
+    */
+
+    private static final MethodHandle NEW_STORE;
+    private static final MethodHandle NEW_SINK;
+    private static final MethodHandle NEW_SRPN;
+    private static final MethodHandle PROCESS_METRICS;
+    private static final MethodHandle PROCESS_COMMAND;
+    private static final MethodHandle RESIDENT;
+    private static final MethodHandle CLOSE;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> store = Class.forName("SessionStore");
+            Class<?> cache = Class.forName("LineCache");
+            Class<?> sink = Class.forName("OutputSink");
+            Class<?> bufferedSink = Class.forName("BufferedOutputSink");
+            Class<?> metrics = Class.forName("CalculatorMetrics");
+            Class<?> srpn = Class.forName("SRPN");
+
+            NEW_STORE = lookup.findConstructor(store,
+                            MethodType.methodType(void.class, Path.class, int.class, LongFunction.class))
+                    .asType(MethodType.methodType(Object.class, Path.class, int.class, LongFunction.class));
+            NEW_SINK = lookup.findConstructor(bufferedSink, MethodType.methodType(void.class, OutputStream.class))
+                    .asType(MethodType.methodType(Object.class, OutputStream.class));
+            NEW_SRPN = lookup.findConstructor(srpn, MethodType.methodType(void.class, cache, sink, metrics))
+                    .asType(MethodType.methodType(Object.class, Object.class, Object.class, Object.class));
+            PROCESS_METRICS = lookup.findStaticGetter(metrics, "PROCESS", metrics)
+                    .asType(MethodType.methodType(Object.class));
+            PROCESS_COMMAND = lookup.findVirtual(store, "processCommand",
+                            MethodType.methodType(void.class, long.class, CharSequence.class))
+                    .asType(MethodType.methodType(void.class, Object.class, long.class, CharSequence.class));
+            RESIDENT = lookup.findVirtual(store, "resident", MethodType.methodType(int.class))
+                    .asType(MethodType.methodType(int.class, Object.class));
+            CLOSE = lookup.findVirtual(store, "close", MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(void.class, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Object store;
+
+    Store(Path spillFile, int maxResident) {
+        try {
+            Object sink = (Object) NEW_SINK.invokeExact(OutputStream.nullOutputStream());
+            Object metrics = (Object) PROCESS_METRICS.invokeExact();
+            LongFunction<Object> factory = id -> {
+                try {
+                    return (Object) NEW_SRPN.invokeExact((Object) null, sink, metrics);
+                } catch (Throwable e) {
+                    throw new IllegalStateException(e);
+                }
+            };
+            this.store = (Object) NEW_STORE.invokeExact(spillFile, maxResident, (LongFunction) factory);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    void processCommand(long id, CharSequence line) {
+        try {
+            PROCESS_COMMAND.invokeExact(this.store, id, line);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    int resident() {
+        try {
+            return (int) RESIDENT.invokeExact(this.store);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    void close() {
+        try {
+            CLOSE.invokeExact(this.store);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}